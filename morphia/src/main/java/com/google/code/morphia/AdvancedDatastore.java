@@ -1,6 +1,9 @@
 package com.google.code.morphia;
 
+import java.io.File;
+
 import com.google.code.morphia.query.Query;
+import com.google.code.morphia.query.QueryLimits;
 import com.google.code.morphia.query.UpdateOperations;
 import com.mongodb.DBDecoderFactory;
 import com.mongodb.DBObject;
@@ -49,6 +52,65 @@ public interface AdvancedDatastore extends Datastore {
 	<T> Iterable<Key<T>> insert(String kind, Iterable<T> entities, WriteConcern wc);
 
 
+	/**
+	 * Buffers saves/merges of the given entity classes (all, if none are given) and writes only the latest state of
+	 * each entity, in the background; see {@link WriteBehindBuffer}. Replaces (and flushes) any current buffer.
+	 */
+	WriteBehindBuffer enableWriteBehind(long flushInterval, int batchSize, int capacity, Class<?>... classes);
+	/** The current write-behind buffer, or null */
+	WriteBehindBuffer getWriteBehind();
+	/** Flushes and stops the write-behind buffer; saves are written directly again */
+	void disableWriteBehind();
+
+	/**
+	 * Journals saves/inserts of the given (unversioned) entity classes to a local memory-mapped file of at least
+	 * maxSize bytes, and replays them to the database in the background; see {@link WriteJournal}. Replaces (and
+	 * closes) any current one.
+	 */
+	WriteJournal enableJournal(File file, int maxSize, WriteJournal.Sync sync, Class<?>... classes);
+	/** The current write journal, or null */
+	WriteJournal getJournal();
+	/** Replays (what it can of) and closes the write journal; saves are written directly again */
+	void disableJournal();
+	
+	/**
+	 * Records the shapes of the queries run, and checks them against the declared indexes; see {@link IndexAdvisor}.
+	 * With explain, the first query of each shape is explained. Replaces any current one.
+	 */
+	IndexAdvisor enableIndexAdvisor(boolean explain);
+	/** The current index advisor, or null */
+	IndexAdvisor getIndexAdvisor();
+	/** Stops recording the query shapes */
+	void disableIndexAdvisor();
+	
+	/** Sets the guardrails of all the queries (null for none); see {@link QueryLimits} */
+	void setQueryLimits(QueryLimits limits);
+	/** The guardrails of all the queries, or null */
+	QueryLimits getQueryLimits();
+
+	/** Returns a sink which appends events of the class with batched inserts; see {@link EventSink} */
+	<T> EventSink<T> createEventSink(Class<T> clazz);
+	/** Returns a sink inserting batches of up to batchSize events, at most maxLatency ms after they are offered */
+	<T> EventSink<T> createEventSink(Class<T> clazz, int batchSize, long maxLatency, int capacity);
+
+	/**
+	 * Returns a writer which sends saves/inserts unacknowledged and checks them (with getLastError) every
+	 * checkpointOps writes or checkpointMillis ms; see {@link PipelinedWriter}. It is bound to the calling thread.
+	 */
+	PipelinedWriter createPipelinedWriter(int checkpointOps, long checkpointMillis);
+
+	/** Splits the query for a parallel scan, which can be run (and checkpointed) later; see {@link ParallelScan} */
+	<T> ParallelScan<T> createParallelScan(Query<T> query, int partitions);
+
+	/** Limits the writes to the entity's collection with the throttle (null removes it); see {@link WriteThrottle} */
+	void setWriteThrottle(Class<?> clazz, WriteThrottle throttle);
+	/** Limits the writes to the collection with the throttle (null removes it) */
+	void setWriteThrottle(String kind, WriteThrottle throttle);
+	WriteThrottle getWriteThrottle(String kind);
+
+	/** The @Version conflict (and updateVersioned retry) counts for the entity class */
+	VersionConflictStats getVersionConflictStats(Class<?> clazz);
+
 	<T> Query<T> createQuery(String kind, Class<T> clazz);
 	//DBObject implementations; in case we don't have features impl'd yet
 	<T> Query<T> createQuery(Class<T> kind, DBObject q);
@@ -0,0 +1,64 @@
+package com.google.code.morphia;
+
+import java.util.List;
+import java.util.concurrent.Future;
+
+import com.google.code.morphia.query.Query;
+import com.google.code.morphia.query.UpdateOperations;
+import com.google.code.morphia.query.UpdateResults;
+import com.mongodb.WriteConcern;
+import com.mongodb.WriteResult;
+
+/**
+ * <p>
+ * Non-blocking facade over a {@link Datastore}; each call is run on an executor and returns a {@link Future}, so
+ * independent reads/writes can be issued together instead of one after another.
+ * </p>
+ * <p>
+ * The number of calls running at the same time against a single collection is bounded (see
+ * {@link AsyncDatastoreImpl#setMaxConcurrency(int)}); calls over the limit wait their turn. Cancelling a
+ * {@link Future} (with {@code mayInterruptIfRunning}) stops a waiting call and closes the cursor of a running query.
+ * </p>
+ * <p>
+ * Queries (and entities) passed in must not be modified until the returned {@link Future} is done.
+ * </p>
+ */
+public interface AsyncDatastore {
+	/** Find the given entity (by id) */
+	<T, V> Future<T> get(Class<T> clazz, V id);
+
+	/** Saves the entity (Object) and updates the @Id field */
+	<T> Future<Key<T>> save(T entity);
+	/** Saves the entity (Object) and updates the @Id field, with the WriteConcern */
+	<T> Future<Key<T>> save(T entity, WriteConcern wc);
+	/** Inserts the entity (Object) and updates the @Id field */
+	<T> Future<Key<T>> insert(T entity);
+	/** Inserts the entity (Object) and updates the @Id field, with the WriteConcern */
+	<T> Future<Key<T>> insert(T entity, WriteConcern wc);
+
+	/** updates all entities found with the operations */
+	<T> Future<UpdateResults<T>> update(Query<T> query, UpdateOperations<T> ops);
+	/** updates the first entity found with the operations */
+	<T> Future<UpdateResults<T>> updateFirst(Query<T> query, UpdateOperations<T> ops);
+
+	/** Deletes the given entity (by @Id) */
+	<T> Future<WriteResult> delete(T entity);
+	/** Deletes the given entities based on the query */
+	<T> Future<WriteResult> delete(Query<T> query);
+
+	/** Gets the count this kind */
+	<T> Future<Long> getCount(Class<T> clazz);
+	/** Gets the count of items returned by this query; same as {@code query.countAll()} */
+	<T> Future<Long> getCount(Query<T> query);
+
+	/** Executes the query and gets the results; same as {@code query.asList()} */
+	<T> Future<List<T>> asList(Query<T> query);
+	/**
+	 * Executes the query (fetching the first batch) and returns the results for iteration on the calling thread. The
+	 * iteration counts against the collection's limit until it ends; close the results when not reading them to the end.
+	 */
+	<T> Future<FetchResults<T>> fetch(Query<T> query);
+
+	/** The (blocking) Datastore calls are delegated to */
+	Datastore getDatastore();
+}
@@ -0,0 +1,363 @@
+package com.google.code.morphia;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.code.morphia.logging.Logr;
+import com.google.code.morphia.logging.MorphiaLoggerFactory;
+import com.google.code.morphia.mapping.lazy.proxy.ProxyHelper;
+import com.google.code.morphia.query.MorphiaIterator;
+import com.google.code.morphia.query.Query;
+import com.google.code.morphia.query.QueryImpl;
+import com.google.code.morphia.query.UpdateOperations;
+import com.google.code.morphia.query.UpdateResults;
+import com.mongodb.WriteConcern;
+import com.mongodb.WriteResult;
+
+/**
+ * <p>
+ * Default {@link AsyncDatastore}; delegates to a {@link DatastoreImpl} (sharing its {@link com.google.code.morphia.mapping.Mapper}),
+ * running each call on an {@link ExecutorService}.
+ * </p>
+ * <p>
+ * When no executor is given, one thread per task is used: virtual threads if the JVM has them, otherwise a
+ * cached pool of daemon threads. Either way the per-collection limit is what bounds the load on the server.
+ * </p>
+ */
+@SuppressWarnings("unchecked")
+public class AsyncDatastoreImpl implements AsyncDatastore {
+	private static final Logr log = MorphiaLoggerFactory.get(AsyncDatastoreImpl.class);
+
+	/** The default number of calls allowed to run at the same time per collection */
+	public static final int DEFAULT_MAX_CONCURRENCY = 16;
+
+	private final DatastoreImpl ds;
+	private final ExecutorService executor;
+	private final boolean ownsExecutor;
+	private volatile int maxConcurrency = DEFAULT_MAX_CONCURRENCY;
+	private final Map<String, Integer> maxConcurrencyByKind = new ConcurrentHashMap<String, Integer>();
+	private final ConcurrentHashMap<String, Limit> limits = new ConcurrentHashMap<String, Limit>();
+
+	public AsyncDatastoreImpl(Datastore ds) {
+		this((DatastoreImpl) ds, createDefaultExecutor(), true);
+	}
+
+	public AsyncDatastoreImpl(Datastore ds, ExecutorService executor) {
+		this((DatastoreImpl) ds, executor, false);
+	}
+
+	private AsyncDatastoreImpl(DatastoreImpl ds, ExecutorService executor, boolean ownsExecutor) {
+		this.ds = ds;
+		this.executor = executor;
+		this.ownsExecutor = ownsExecutor;
+	}
+
+	/** Creates a virtual-thread-per-task executor when running on a JVM which supports it, or a cached daemon thread pool. */
+	public static ExecutorService createDefaultExecutor() {
+		try {
+			Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) m.invoke(null);
+		} catch (Exception e) {
+			//not available, use platform threads.
+		}
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "morphia-async-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/** Sets the number of calls allowed to run at the same time per collection (for collections without their own limit) */
+	public void setMaxConcurrency(int max) {
+		if (max < 1)
+			throw new IllegalArgumentException("max concurrency must be > 0");
+		maxConcurrency = max;
+		for (Map.Entry<String, Limit> e : limits.entrySet())
+			if (!maxConcurrencyByKind.containsKey(e.getKey()))
+				e.getValue().resize(max);
+	}
+
+	/** Sets the number of calls allowed to run at the same time on the collection for the class */
+	public void setMaxConcurrency(Class<?> clazz, int max) {
+		if (max < 1)
+			throw new IllegalArgumentException("max concurrency must be > 0");
+		String kind = ds.getCollection(clazz).getName();
+		maxConcurrencyByKind.put(kind, max);
+		Limit limit = limits.get(kind);
+		if (limit != null)
+			limit.resize(max);
+	}
+
+	public int getMaxConcurrency() {
+		return maxConcurrency;
+	}
+
+	/** Stops accepting calls; shuts down the executor only if it was created by this instance */
+	public void shutdown() {
+		if (ownsExecutor)
+			executor.shutdown();
+	}
+
+	public Datastore getDatastore() {
+		return ds;
+	}
+
+	/** The permits of a collection; resized (for the calls to come) when the limit changes */
+	private static class Limit extends Semaphore {
+		private static final long serialVersionUID = 1L;
+		private int max;
+
+		Limit(int max) {
+			super(max, true);
+			this.max = max;
+		}
+
+		synchronized void resize(int newMax) {
+			if (newMax > max)
+				release(newMax - max);
+			else if (newMax < max)
+				reducePermits(max - newMax);
+			max = newMax;
+		}
+	}
+
+	/**
+	 * The unit of work for a call; acquires a permit for its collection before running, and releases it when the call
+	 * exits (or, if kept, when the iteration it returned ends or is closed). A cancel only closes the cursor; the permit
+	 * is released once the call is out of the driver.
+	 */
+	private abstract class Work<V> implements Callable<V> {
+		private final String kind;
+		private volatile MorphiaIterator<?, ?> iter;
+		private volatile Semaphore acquired;
+		private final AtomicBoolean holding = new AtomicBoolean(false);
+		private volatile boolean keepPermit = false;
+		private volatile boolean cancelled = false;
+
+		Work(String kind) {
+			this.kind = kind;
+		}
+
+		public V call() throws Exception {
+			Semaphore limit = limit(kind);
+			limit.acquire();
+			acquired = limit;
+			holding.set(true);
+			boolean keep = false;
+			try {
+				V v = run();
+				keep = keepPermit && !cancelled;
+				return v;
+			} finally {
+				if (!keep)
+					close();
+			}
+		}
+
+		abstract V run() throws Exception;
+
+		/** registers the cursor so a cancel can close it */
+		<I extends MorphiaIterator<?, ?>> I track(I it) {
+			iter = it;
+			return it;
+		}
+
+		/** keeps the permit after run, for the iteration of the (tracked) cursor */
+		void keepPermit() {
+			keepPermit = true;
+		}
+
+		/** unblocks the running call; it releases the permit as it exits */
+		void cancelled() {
+			cancelled = true;
+			closeCursor();
+		}
+
+		void close() {
+			closeCursor();
+			Semaphore s = acquired;
+			if (s != null && holding.compareAndSet(true, false))
+				s.release();
+		}
+
+		private void closeCursor() {
+			MorphiaIterator<?, ?> it = iter;
+			if (it != null)
+				it.close();
+		}
+	}
+
+	private static class Task<V> extends FutureTask<V> {
+		private final Work<V> work;
+
+		Task(Work<V> work) {
+			super(work);
+			this.work = work;
+		}
+
+		@Override
+		protected void done() {
+			if (isCancelled())
+				work.cancelled();
+		}
+	}
+
+	private Semaphore limit(String kind) {
+		Limit s = limits.get(kind);
+		if (s == null) {
+			Integer max = maxConcurrencyByKind.get(kind);
+			s = new Limit(max == null ? maxConcurrency : max);
+			Limit temp = limits.putIfAbsent(kind, s);
+			if (temp != null)
+				s = temp;
+		}
+		return s;
+	}
+
+	private <V> Future<V> submit(Work<V> work) {
+		Task<V> task = new Task<V>(work);
+		executor.execute(task);
+		return task;
+	}
+
+	private String kind(Object clazzOrEntity) {
+		return ds.getCollection(clazzOrEntity instanceof Class ? (Class<?>) clazzOrEntity : ProxyHelper.unwrap(clazzOrEntity).getClass()).getName();
+	}
+
+	private String kind(Query<?> q) {
+		return ((QueryImpl<?>) q).getCollection().getName();
+	}
+
+	public <T, V> Future<T> get(final Class<T> clazz, final V id) {
+		return submit(new Work<T>(kind(clazz)) {
+			T run() {
+				return ds.get(clazz, id);
+			}
+		});
+	}
+
+	public <T> Future<Key<T>> save(T entity) {
+		return save(entity, ds.getWriteConcern(entity));
+	}
+
+	public <T> Future<Key<T>> save(final T entity, final WriteConcern wc) {
+		return submit(new Work<Key<T>>(kind(entity)) {
+			Key<T> run() {
+				return ds.save(entity, wc);
+			}
+		});
+	}
+
+	public <T> Future<Key<T>> insert(T entity) {
+		return insert(entity, ds.getWriteConcern(entity));
+	}
+
+	public <T> Future<Key<T>> insert(final T entity, final WriteConcern wc) {
+		return submit(new Work<Key<T>>(kind(entity)) {
+			Key<T> run() {
+				return ds.insert(entity, wc);
+			}
+		});
+	}
+
+	public <T> Future<UpdateResults<T>> update(final Query<T> query, final UpdateOperations<T> ops) {
+		return submit(new Work<UpdateResults<T>>(kind(query)) {
+			UpdateResults<T> run() {
+				return ds.update(query, ops);
+			}
+		});
+	}
+
+	public <T> Future<UpdateResults<T>> updateFirst(final Query<T> query, final UpdateOperations<T> ops) {
+		return submit(new Work<UpdateResults<T>>(kind(query)) {
+			UpdateResults<T> run() {
+				return ds.updateFirst(query, ops);
+			}
+		});
+	}
+
+	public <T> Future<WriteResult> delete(final T entity) {
+		return submit(new Work<WriteResult>(kind(entity)) {
+			WriteResult run() {
+				return ds.delete(entity);
+			}
+		});
+	}
+
+	public <T> Future<WriteResult> delete(final Query<T> query) {
+		return submit(new Work<WriteResult>(kind(query)) {
+			WriteResult run() {
+				return ds.delete(query);
+			}
+		});
+	}
+
+	public <T> Future<Long> getCount(final Class<T> clazz) {
+		return submit(new Work<Long>(kind(clazz)) {
+			Long run() {
+				return ds.getCount(clazz);
+			}
+		});
+	}
+
+	public <T> Future<Long> getCount(final Query<T> query) {
+		return submit(new Work<Long>(kind(query)) {
+			Long run() {
+				return query.countAll();
+			}
+		});
+	}
+
+	public <T> Future<List<T>> asList(final Query<T> query) {
+		return submit(new Work<List<T>>(kind(query)) {
+			List<T> run() {
+				MorphiaIterator<T, T> it = track((MorphiaIterator<T, T>) query.fetch().iterator());
+				List<T> results = new ArrayList<T>();
+				try {
+					while (it.hasNext()) {
+						if (Thread.currentThread().isInterrupted())
+							throw new CancellationException("asList cancelled after " + results.size() + " results");
+						results.add(it.next());
+					}
+				} finally {
+					it.close();
+				}
+				if (log.isTraceEnabled())
+					log.trace("async asList: " + results.size() + " entities, driver " + it.getDriverTime() + " ms, mapper " + it.getMapperTime() + " ms");
+				return results;
+			}
+		});
+	}
+
+	public <T> Future<FetchResults<T>> fetch(final Query<T> query) {
+		return submit(new Work<FetchResults<T>>(kind(query)) {
+			FetchResults<T> run() {
+				MorphiaIterator<T, T> it = track((MorphiaIterator<T, T>) query.fetch().iterator());
+				//sends the query and gets the first batch
+				it.hasNext();
+				keepPermit();
+				return new FetchResults<T>(it, new Runnable() {
+					public void run() {
+						close();
+					}
+				});
+			}
+		});
+	}
+}
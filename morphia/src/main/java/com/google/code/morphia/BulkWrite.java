@@ -0,0 +1,53 @@
+package com.google.code.morphia;
+
+import com.google.code.morphia.query.Query;
+import com.google.code.morphia.query.UpdateOperations;
+import com.mongodb.WriteConcern;
+
+/**
+ * <p>
+ * Accumulates a mixed batch of writes (inserts, saves, updates, upserts and deletes) and sends them to the server
+ * in as few round trips as possible when {@link #execute()} is called.
+ * </p>
+ * <p>
+ * Writes are grouped per collection: inserts (and saves of new, un-versioned entities) are sent as a single batch
+ * insert, and deletes by entity are sent as a single {@code _id $in} remove. Updates, upserts and saves of
+ * {@code @Version}ed entities are sent one at a time, but still honor the version checks done by
+ * {@link Datastore#save(Object)}.
+ * </p>
+ * <p>
+ * An ordered bulk write executes in the order the writes were added and stops at the first failure; an unordered
+ * one groups all compatible writes per collection and keeps going after a failure.
+ * </p>
+ */
+public interface BulkWrite<T> {
+	/** The kind of write recorded for each item */
+	enum Operation { INSERT, SAVE, UPDATE, UPDATE_FIRST, UPSERT, DELETE, DELETE_BY_QUERY }
+
+	/** inserts the entity (fails if the @Id already exists) */
+	BulkWrite<T> insert(T entity);
+	/** saves the entity (insert or replace, checking the @Version if there is one) */
+	BulkWrite<T> save(T entity);
+	/** saves the entities (insert or replace, checking the @Version if there is one) */
+	BulkWrite<T> save(Iterable<T> entities);
+	/** updates all entities found with the operations */
+	BulkWrite<T> update(Query<T> query, UpdateOperations<T> ops);
+	/** updates the first entity found with the operations */
+	BulkWrite<T> updateFirst(Query<T> query, UpdateOperations<T> ops);
+	/** updates the first entity found with the operations, inserting one if nothing is found */
+	BulkWrite<T> upsert(Query<T> query, UpdateOperations<T> ops);
+	/** deletes the given entity (by @Id) */
+	BulkWrite<T> delete(T entity);
+	/** deletes the entities matching the query */
+	BulkWrite<T> delete(Query<T> query);
+
+	/** @return true if writes are executed in order, stopping at the first failure */
+	boolean isOrdered();
+	/** @return the number of writes waiting to be executed */
+	int size();
+
+	/** Executes all the writes (using the default WriteConcern for the kind) and clears this builder */
+	BulkWriteResult<T> execute();
+	/** Executes all the writes with the WriteConcern and clears this builder */
+	BulkWriteResult<T> execute(WriteConcern wc);
+}
@@ -0,0 +1,360 @@
+package com.google.code.morphia;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.google.code.morphia.BulkWriteResult.Item;
+import com.google.code.morphia.annotations.NotSaved;
+import com.google.code.morphia.annotations.Version;
+import com.google.code.morphia.logging.Logr;
+import com.google.code.morphia.logging.MorphiaLoggerFactory;
+import com.google.code.morphia.mapping.MappedClass;
+import com.google.code.morphia.mapping.Mapper;
+import com.google.code.morphia.mapping.MappingException;
+import com.google.code.morphia.mapping.lazy.proxy.ProxyHelper;
+import com.google.code.morphia.query.Query;
+import com.google.code.morphia.query.UpdateOperations;
+import com.google.code.morphia.query.UpdateResults;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBEncoder;
+import com.mongodb.WriteConcern;
+import com.mongodb.WriteResult;
+
+/**
+ * Default {@link BulkWrite} implementation; see {@link Datastore#createBulkWrite(Class, boolean)}
+ */
+@SuppressWarnings("unchecked")
+public class BulkWriteImpl<T> implements BulkWrite<T> {
+	private static final Logr log = MorphiaLoggerFactory.get(BulkWriteImpl.class);
+
+	/** A single recorded write */
+	private static class Write<T> {
+		final Operation op;
+		final T entity;
+		final Query<T> query;
+		final UpdateOperations<T> ops;
+		final DBCollection dbColl;
+		/** writes with the same (non-null) batchKey can be sent in one round trip */
+		final String batchKey;
+
+		Write(Operation op, T entity, Query<T> query, UpdateOperations<T> ops, DBCollection dbColl, String batchKey) {
+			this.op = op;
+			this.entity = entity;
+			this.query = query;
+			this.ops = ops;
+			this.dbColl = dbColl;
+			this.batchKey = batchKey;
+		}
+	}
+
+	private final DatastoreImpl ds;
+	private final Class<T> clazz;
+	private final boolean ordered;
+	private final List<Write<T>> writes = new ArrayList<Write<T>>();
+
+	public BulkWriteImpl(DatastoreImpl ds, Class<T> clazz, boolean ordered) {
+		this.ds = ds;
+		this.clazz = clazz;
+		this.ordered = ordered;
+	}
+
+	public BulkWrite<T> insert(T entity) {
+		entity = ProxyHelper.unwrap(entity);
+		DBCollection dbColl = ds.getCollection(entity);
+		writes.add(new Write<T>(Operation.INSERT, entity, null, null, dbColl, "insert:" + dbColl.getName()));
+		return this;
+	}
+
+	public BulkWrite<T> save(T entity) {
+		entity = ProxyHelper.unwrap(entity);
+		DBCollection dbColl = ds.getCollection(entity);
+		MappedClass mc = ds.getMapper().getMappedClass(entity);
+		//new, un-versioned entities are just inserts, so they can go in the batch insert.
+		boolean isNew = ds.getMapper().getId(entity) == null && mc.getFieldsAnnotatedWith(Version.class).isEmpty();
+		writes.add(new Write<T>(Operation.SAVE, entity, null, null, dbColl, isNew ? "insert:" + dbColl.getName() : null));
+		return this;
+	}
+
+	public BulkWrite<T> save(Iterable<T> entities) {
+		for (T ent : entities)
+			save(ent);
+		return this;
+	}
+
+	public BulkWrite<T> update(Query<T> query, UpdateOperations<T> ops) {
+		writes.add(new Write<T>(Operation.UPDATE, null, query, ops, null, null));
+		return this;
+	}
+
+	public BulkWrite<T> updateFirst(Query<T> query, UpdateOperations<T> ops) {
+		writes.add(new Write<T>(Operation.UPDATE_FIRST, null, query, ops, null, null));
+		return this;
+	}
+
+	public BulkWrite<T> upsert(Query<T> query, UpdateOperations<T> ops) {
+		writes.add(new Write<T>(Operation.UPSERT, null, query, ops, null, null));
+		return this;
+	}
+
+	public BulkWrite<T> delete(T entity) {
+		entity = ProxyHelper.unwrap(entity);
+		if (entity instanceof Class<?>)
+			throw new MappingException("Did you mean to delete all documents? -- delete(ds.createQuery(???.class))");
+		if (ds.getMapper().getId(entity) == null)
+			throw new MappingException("Could not get id for " + entity.getClass().getName());
+		DBCollection dbColl = ds.getCollection(entity);
+		writes.add(new Write<T>(Operation.DELETE, entity, null, null, dbColl, "delete:" + dbColl.getName()));
+		return this;
+	}
+
+	public BulkWrite<T> delete(Query<T> query) {
+		writes.add(new Write<T>(Operation.DELETE_BY_QUERY, null, query, null, null, null));
+		return this;
+	}
+
+	public boolean isOrdered() {
+		return ordered;
+	}
+
+	public int size() {
+		return writes.size();
+	}
+
+	public BulkWriteResult<T> execute() {
+		return execute(ds.getWriteConcern(clazz));
+	}
+
+	public BulkWriteResult<T> execute(WriteConcern wc) {
+		List<Write<T>> toRun = new ArrayList<Write<T>>(writes);
+		writes.clear();
+
+		List<Item<T>> items = new ArrayList<Item<T>>(toRun.size());
+		for (int i = 0; i < toRun.size(); i++)
+			items.add(new Item<T>(i, toRun.get(i).op));
+
+		//the bulk writes are sent directly; the journaled writes before them go first
+		WriteJournal journal = ds.journal;
+		if (journal != null && !toRun.isEmpty() && journal.isJournaled(clazz))
+			journal.drain();
+
+		for (List<Integer> batch : plan(toRun)) {
+			boolean ok = run(toRun, items, batch, wc);
+			if (!ok && ordered)
+				break;
+		}
+
+		return new BulkWriteResult<T>(items);
+	}
+
+	/** Groups the writes into round trips; ordered writes are only grouped with their (compatible) neighbors. */
+	private List<List<Integer>> plan(List<Write<T>> toRun) {
+		List<List<Integer>> batches = new ArrayList<List<Integer>>();
+		Map<String, List<Integer>> byKey = new LinkedHashMap<String, List<Integer>>();
+		String lastKey = null;
+		for (int i = 0; i < toRun.size(); i++) {
+			String key = toRun.get(i).batchKey;
+			if (key == null) {
+				batches.add(singleton(i));
+			} else if (ordered) {
+				if (key.equals(lastKey))
+					batches.get(batches.size() - 1).add(i);
+				else
+					batches.add(singleton(i));
+			} else {
+				List<Integer> batch = byKey.get(key);
+				if (batch == null) {
+					batch = singleton(i);
+					byKey.put(key, batch);
+					batches.add(batch);
+				} else
+					batch.add(i);
+			}
+			lastKey = key;
+		}
+		return batches;
+	}
+
+	private static List<Integer> singleton(int i) {
+		List<Integer> l = new ArrayList<Integer>();
+		l.add(i);
+		return l;
+	}
+
+	/** @return false if any write in the batch failed */
+	private boolean run(List<Write<T>> toRun, List<Item<T>> items, List<Integer> batch, WriteConcern wc) {
+		Write<T> first = toRun.get(batch.get(0));
+		try {
+			if (first.batchKey != null && first.op == Operation.DELETE)
+				runDeletes(toRun, items, batch, wc);
+			else if (first.batchKey != null)
+				return runInserts(toRun, items, batch, wc);
+			else
+				runSingle(first, items.get(batch.get(0)), wc);
+			return true;
+		} catch (RuntimeException e) {
+			if (log.isDebugEnabled())
+				log.debug("Bulk write of " + batch.size() + " " + first.op + "(s) failed", e);
+			for (Integer i : batch) {
+				Item<T> item = items.get(i);
+				item.executed = true;
+				item.error = e;
+			}
+			return false;
+		}
+	}
+
+	/** @return false if any insert of the batch failed; only those (and, if ordered, the ones after) are not stored */
+	private boolean runInserts(List<Write<T>> toRun, List<Item<T>> items, List<Integer> batch, WriteConcern wc) {
+		DBCollection dbColl = toRun.get(batch.get(0)).dbColl;
+		//involvedObjects is used not only as a cache but also as a list of what needs to be called for life-cycle methods at the end.
+		List<Map<Object, DBObject>> involved = new ArrayList<Map<Object, DBObject>>(batch.size());
+		List<DBObject> dbObjs = new ArrayList<DBObject>(batch.size());
+		for (Integer i : batch) {
+			T ent = toRun.get(i).entity;
+			MappedClass mc = ds.getMapper().getMappedClass(ent);
+			if (mc.getAnnotation(NotSaved.class) != null)
+				throw new MappingException("Entity type: " + mc.getClazz().getName() + " is marked as NotSaved which means you should not try to save it!");
+			Map<Object, DBObject> involvedObjects = new LinkedHashMap<Object, DBObject>();
+			dbObjs.add(ds.entityToDBObj(ent, involvedObjects));
+			involved.add(involvedObjects);
+		}
+
+		if (log.isTraceEnabled())
+			log.trace("Executing bulk insert(" + dbColl.getName() + ") of " + dbObjs.size() + " entities");
+
+		WriteResult wr = null;
+		RuntimeException error = null;
+		long start = ds.throttle(dbColl, dbObjs.size());
+		try {
+			if (wc == null)
+				wr = dbColl.insert(dbObjs);
+			else
+				wr = dbColl.insert(dbObjs, ordered ? wc : wc.continueOnErrorForInsert(true));
+			ds.throwOnError(wc, wr);
+		} catch (RuntimeException e) {
+			error = e;
+		}
+		ds.throttled(dbColl, start);
+
+		Set<Integer> failed = Collections.emptySet();
+		if (error != null) {
+			if (log.isDebugEnabled())
+				log.debug("Bulk insert of " + batch.size() + " entities failed", error);
+			failed = notInserted(dbColl, dbObjs);
+			//can't tell; all of them failed
+			if (failed.isEmpty())
+				throw error;
+		}
+		int firstFailed = -1;
+		for (int j = 0; j < batch.size() && firstFailed < 0; j++)
+			if (failed.contains(j))
+				firstFailed = j;
+		for (int j = 0; j < batch.size(); j++) {
+			Item<T> item = items.get(batch.get(j));
+			//an ordered insert stops at the first failure; the ones after were never sent
+			if (ordered && firstFailed >= 0 && j > firstFailed)
+				continue;
+			item.executed = true;
+			item.wr = wr;
+			if (failed.contains(j)) {
+				item.error = error;
+				continue;
+			}
+			item.n = 1;
+			item.key = ds.postSaveGetKey(toRun.get(batch.get(j)).entity, dbObjs.get(j), dbColl, involved.get(j));
+		}
+		return error == null;
+	}
+
+	/**
+	 * @return the positions of the documents a failed batch insert did not store (empty if that can't be told): those
+	 *         whose _id is not in the collection, or is stored with other content, and repeats of an _id earlier in
+	 *         the batch. A document identical to one already stored can't be told from an inserted one.
+	 */
+	private Set<Integer> notInserted(DBCollection dbColl, List<DBObject> dbObjs) {
+		List<Object> ids = new ArrayList<Object>(dbObjs.size());
+		for (DBObject dbObj : dbObjs)
+			ids.add(dbObj.get(Mapper.ID_KEY));
+
+		Map<Object, byte[]> stored = new HashMap<Object, byte[]>();
+		DefaultDBEncoder encoder = new DefaultDBEncoder();
+		try {
+			DBCursor cursor = dbColl.find(new BasicDBObject(Mapper.ID_KEY, new BasicDBObject("$in", ids)));
+			try {
+				while (cursor.hasNext()) {
+					DBObject dbObj = cursor.next();
+					stored.put(dbObj.get(Mapper.ID_KEY), encoder.encode(dbObj));
+				}
+			} finally {
+				cursor.close();
+			}
+		} catch (RuntimeException e) {
+			log.warning("Could not tell which entities of the failed bulk insert(" + dbColl.getName() + ") were stored", e);
+			return Collections.emptySet();
+		}
+
+		Set<Integer> failed = new TreeSet<Integer>();
+		Set<Object> seen = new HashSet<Object>();
+		for (int j = 0; j < ids.size(); j++) {
+			Object id = ids.get(j);
+			byte[] doc = id == null ? null : stored.get(id);
+			if (doc == null || !seen.add(id) || !Arrays.equals(doc, encoder.encode(dbObjs.get(j))))
+				failed.add(j);
+		}
+		return failed;
+	}
+
+	private void runDeletes(List<Write<T>> toRun, List<Item<T>> items, List<Integer> batch, WriteConcern wc) {
+		Write<T> first = toRun.get(batch.get(0));
+		List<Object> ids = new ArrayList<Object>(batch.size());
+		for (Integer i : batch)
+			ids.add(ds.getMapper().getId(toRun.get(i).entity));
+
+		Query<T> q = ds.find(first.dbColl.getName(), (Class<T>) first.entity.getClass()).disableValidation().filter(Mapper.ID_KEY + " in", ids);
+		WriteResult wr = ds.delete(q, wc);
+		int n = wr.getN();
+		for (Integer i : batch) {
+			Item<T> item = items.get(i);
+			item.executed = true;
+			item.wr = wr;
+			item.n = n;
+			item.key = ds.getKey(toRun.get(i).entity);
+		}
+	}
+
+	private void runSingle(Write<T> w, Item<T> item, WriteConcern wc) {
+		item.executed = true;
+		switch (w.op) {
+		case SAVE:
+			//does the @Version check, throwing a ConcurrentModificationException on conflict; never buffered (write-behind), so the result is real.
+			ds.checkNotPartial(w.entity);
+			item.key = ds.saveNow(w.dbColl, w.entity, wc);
+			item.n = 1;
+			break;
+		case UPDATE:
+		case UPDATE_FIRST:
+		case UPSERT:
+			UpdateResults<T> res = ds.update(w.query, w.ops, w.op == Operation.UPSERT, w.op == Operation.UPDATE, wc);
+			item.wr = res.getWriteResult();
+			item.n = res.getUpdatedCount() + res.getInsertedCount();
+			break;
+		case DELETE_BY_QUERY:
+			item.wr = ds.delete(w.query, wc);
+			item.n = item.wr.getN();
+			break;
+		default:
+			throw new IllegalStateException("Unexpected single write: " + w.op);
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package com.google.code.morphia;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.code.morphia.BulkWrite.Operation;
+import com.mongodb.WriteResult;
+
+/**
+ * The per-item results of a {@link BulkWrite}; items are in the order they were added to the bulk write.
+ */
+public class BulkWriteResult<T> {
+	private final List<Item<T>> items;
+
+	public BulkWriteResult(List<Item<T>> items) {
+		this.items = items;
+	}
+
+	/** The result of a single write in the batch */
+	public static class Item<T> {
+		private final int index;
+		private final Operation op;
+		Key<T> key;
+		WriteResult wr;
+		int n = 0;
+		boolean executed = false;
+		Throwable error;
+
+		public Item(int index, Operation op) {
+			this.index = index;
+			this.op = op;
+		}
+
+		/** @return the position of this write in the bulk write */
+		public int getIndex() { return index; }
+		public Operation getOperation() { return op; }
+		/** @return the key of the entity written, or null for query based writes */
+		public Key<T> getKey() { return key; }
+		/** @return the WriteResult of the round trip that carried this write; shared by all items of a batch */
+		public WriteResult getWriteResult() { return wr; }
+		/** @return the number of documents affected by this write; for batched deletes this is the count of the whole batch */
+		public int getN() { return n; }
+		/** @return false if the write was never sent (an earlier write of an ordered bulk write failed) */
+		public boolean isExecuted() { return executed; }
+		public boolean isSuccess() { return executed && error == null; }
+		/** @return the error for this write (a {@link java.util.ConcurrentModificationException} for @Version conflicts) */
+		public Throwable getError() { return error; }
+
+		@Override
+		public String toString() {
+			return "Item(" + index + ":" + op + (key == null ? "" : "," + key) + (error == null ? "" : ",error=" + error) + ")";
+		}
+	}
+
+	public List<Item<T>> getItems() {
+		return Collections.unmodifiableList(items);
+	}
+
+	/** @return the items which failed */
+	public List<Item<T>> getErrors() {
+		List<Item<T>> errors = new ArrayList<Item<T>>();
+		for (Item<T> item : items)
+			if (item.error != null)
+				errors.add(item);
+		return errors;
+	}
+
+	public boolean hasErrors() {
+		for (Item<T> item : items)
+			if (item.error != null)
+				return true;
+		return false;
+	}
+
+	/** @return the keys of all successfully inserted/saved entities */
+	public List<Key<T>> getSavedKeys() {
+		List<Key<T>> keys = new ArrayList<Key<T>>();
+		for (Item<T> item : items)
+			if (item.isSuccess() && item.key != null && (item.op == Operation.INSERT || item.op == Operation.SAVE))
+				keys.add(item.key);
+		return keys;
+	}
+
+	public int getInsertedCount() { return count(Operation.INSERT); }
+	public int getSavedCount() { return count(Operation.SAVE); }
+	public int getDeletedCount() { return count(Operation.DELETE) + count(Operation.DELETE_BY_QUERY); }
+	public int getUpdatedCount() { return count(Operation.UPDATE) + count(Operation.UPDATE_FIRST) + count(Operation.UPSERT); }
+
+	private int count(Operation op) {
+		int count = 0;
+		//batched deletes share one WriteResult (and n); only count each batch once.
+		Map<WriteResult, Boolean> seen = new IdentityHashMap<WriteResult, Boolean>();
+		for (Item<T> item : items) {
+			if (item.op != op || !item.isSuccess())
+				continue;
+			if (item.wr != null && seen.put(item.wr, Boolean.TRUE) != null && op == Operation.DELETE)
+				continue;
+			count += item.n;
+		}
+		return count;
+	}
+
+	@Override
+	public String toString() {
+		return "BulkWriteResult(items=" + items.size() + ", errors=" + getErrors() + ")";
+	}
+}
@@ -0,0 +1,401 @@
+package com.google.code.morphia;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.code.morphia.logging.Logr;
+import com.google.code.morphia.logging.MorphiaLoggerFactory;
+import com.google.code.morphia.mapping.MappedField;
+import com.google.code.morphia.mapping.Mapper;
+import com.google.code.morphia.mapping.MappingException;
+import com.google.code.morphia.query.FilterOperator;
+import com.google.code.morphia.query.Query;
+import com.google.code.morphia.query.UpdateException;
+import com.google.code.morphia.query.UpdateOperations;
+
+/**
+ * <p>
+ * Accumulates increments of counter fields in memory, per entity (class + id) and field, and writes them as one
+ * {@code $inc} update per entity every {@code flushInterval} ms, or as soon as {@code threshold} increments are
+ * pending. Instead of an update per event, there is at most one update per entity per flush.
+ * </p>
+ * <p>
+ * Counters start as a single atomic value and spread over several (per-thread) cells once threads contend for them.
+ * Counters not incremented during a flush interval are dropped. Updates which fail are logged and retried on the next
+ * flush; pending increments are written on {@link #shutdown()} and JVM shutdown. This class is thread-safe.
+ * </p>
+ */
+public class CounterAccumulator {
+	private static final Logr log = MorphiaLoggerFactory.get(CounterAccumulator.class);
+
+	public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+	public static final long DEFAULT_THRESHOLD = 10000;
+
+	private static final int CELLS;
+	/** cells are spaced apart so they don't share a cache line */
+	private static final int PAD = 8;
+	static {
+		int n = 1;
+		while (n < Runtime.getRuntime().availableProcessors())
+			n <<= 1;
+		CELLS = n;
+	}
+
+	/** The entity (class + id) and field (stored name) being counted */
+	private static final class CounterKey {
+		final Class<?> clazz;
+		final Object id;
+		final String field;
+		/** the field is an int; the deltas are written as ints, so the stored type is kept */
+		final boolean intField;
+
+		CounterKey(Class<?> clazz, Object id, String field, boolean intField) {
+			this.clazz = clazz;
+			this.id = id;
+			this.field = field;
+			this.intField = intField;
+		}
+
+		@Override
+		public int hashCode() {
+			return (clazz.hashCode() * 31 + id.hashCode()) * 31 + field.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof CounterKey))
+				return false;
+			CounterKey other = (CounterKey) obj;
+			return clazz.equals(other.clazz) && id.equals(other.id) && field.equals(other.field);
+		}
+	}
+
+	/**
+	 * A counter which only spreads over cells when contended; the number of increments (events) is kept next to the
+	 * sum, in the same cell.
+	 */
+	private static final class Counter {
+		final AtomicLong base = new AtomicLong();
+		final AtomicLong baseEvents = new AtomicLong();
+		volatile AtomicLongArray cells;
+		/** set once removed from the map; late increments must then be moved to a new counter */
+		volatile boolean retired;
+
+		void add(long delta, long events) {
+			AtomicLongArray cs = cells;
+			if (cs == null) {
+				long v = base.get();
+				if (base.compareAndSet(v, v + delta)) {
+					baseEvents.addAndGet(events);
+					return;
+				}
+				synchronized (this) {
+					if (cells == null)
+						cells = new AtomicLongArray(CELLS * PAD);
+					cs = cells;
+				}
+			}
+			int i = (int) (Thread.currentThread().getId() & (CELLS - 1));
+			cs.addAndGet(i * PAD, delta);
+			cs.addAndGet(i * PAD + 1, events);
+		}
+
+		/** @return the sum and the number of increments, resetting them to zero */
+		long[] drain() {
+			long[] sum = { base.getAndSet(0), baseEvents.getAndSet(0) };
+			AtomicLongArray cs = cells;
+			if (cs != null)
+				for (int i = 0; i < CELLS; i++) {
+					sum[0] += cs.getAndSet(i * PAD, 0);
+					sum[1] += cs.getAndSet(i * PAD + 1, 0);
+				}
+			return sum;
+		}
+	}
+
+	/** The stored name (and type) of a counted field */
+	private static final class CounterField {
+		final String name;
+		final boolean intField;
+
+		CounterField(String name, boolean intField) {
+			this.name = name;
+			this.intField = intField;
+		}
+	}
+
+	private final Datastore ds;
+	private final long flushInterval;
+	private final long threshold;
+	private volatile boolean createIfMissing = false;
+
+	private final ConcurrentHashMap<CounterKey, Counter> counters = new ConcurrentHashMap<CounterKey, Counter>();
+	/** the validated fields, by class name and field */
+	private final ConcurrentHashMap<String, CounterField> fields = new ConcurrentHashMap<String, CounterField>();
+	private final AtomicLong pendingIncrements = new AtomicLong();
+	private final AtomicLong flushedUpdates = new AtomicLong();
+	private final AtomicLong flushedIncrements = new AtomicLong();
+
+	private final Object flushLock = new Object();
+	private final Object signal = new Object();
+	private final Thread flusher;
+	private final Thread shutdownHook;
+	private volatile boolean running = true;
+
+	public CounterAccumulator(Datastore ds) {
+		this(ds, DEFAULT_FLUSH_INTERVAL, DEFAULT_THRESHOLD);
+	}
+
+	public CounterAccumulator(Datastore ds, long flushInterval, long threshold) {
+		if (flushInterval <= 0 || threshold <= 0)
+			throw new IllegalArgumentException("flushInterval and threshold must be positive");
+		this.ds = ds;
+		this.flushInterval = flushInterval;
+		this.threshold = threshold;
+
+		flusher = new Thread("morphia-counter-accumulator") {
+			@Override
+			public void run() {
+				runFlusher();
+			}
+		};
+		flusher.setDaemon(true);
+		flusher.start();
+
+		shutdownHook = new Thread("morphia-counter-accumulator-shutdown") {
+			@Override
+			public void run() {
+				shutdown();
+			}
+		};
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+
+	/** Upsert entities which don't exist yet when flushing (false by default) */
+	public CounterAccumulator setCreateIfMissing(boolean createIfMissing) {
+		this.createIfMissing = createIfMissing;
+		return this;
+	}
+
+	/** Increments the field of the entity by one */
+	public <T> void inc(Key<T> key, String field) {
+		inc(key, field, 1);
+	}
+
+	/** Increments the field of the entity by the delta */
+	public <T> void inc(Key<T> key, String field, long delta) {
+		Class<?> clazz = key.getKindClass();
+		if (clazz == null && ds instanceof DatastoreImpl)
+			clazz = ((DatastoreImpl) ds).getMapper().getClassFromKind(key.getKind());
+		if (clazz == null)
+			throw new MappingException("Could not get the class for " + key);
+		inc(clazz, key.getId(), field, delta);
+	}
+
+	/** Increments the field of the entity (with the id) by one */
+	public <T, V> void inc(Class<T> clazz, V id, String field) {
+		inc(clazz, id, field, 1);
+	}
+
+	/** Increments the field of the entity (with the id) by the delta */
+	public <T, V> void inc(Class<T> clazz, V id, String field, long delta) {
+		if (clazz == null || id == null || field == null)
+			throw new IllegalArgumentException("clazz, id and field must not be null");
+		CounterField cf = validate(clazz, field);
+		//counted as pending first, so a flush never takes more than is pending
+		if (pendingIncrements.incrementAndGet() == threshold)
+			synchronized (signal) {
+				signal.notifyAll();
+			}
+		add(new CounterKey(clazz, id, cf.name, cf.intField), delta, 1);
+	}
+
+	/** @return the stored name and type of the field; a ValidationException is thrown if it is not mapped */
+	private CounterField validate(Class<?> clazz, String field) {
+		String name = clazz.getName() + "#" + field;
+		CounterField cf = fields.get(name);
+		if (cf != null)
+			return cf;
+		cf = new CounterField(field, false);
+		if (ds instanceof DatastoreImpl) {
+			StringBuffer sb = new StringBuffer(field);
+			MappedField mf = Mapper.validate(clazz, ((DatastoreImpl) ds).getMapper(), sb, FilterOperator.EQUAL, null, true, false);
+			Class<?> type = mf == null ? null : mf.getType();
+			cf = new CounterField(sb.toString(), int.class.equals(type) || Integer.class.equals(type));
+		}
+		fields.put(name, cf);
+		return cf;
+	}
+
+	private void add(CounterKey key, long delta, long events) {
+		Counter c = counters.get(key);
+		if (c == null) {
+			Counter newC = new Counter();
+			c = counters.putIfAbsent(key, newC);
+			if (c == null)
+				c = newC;
+		}
+		c.add(delta, events);
+
+		//removed by a flush meanwhile; move whatever it missed to a new counter
+		if (c.retired) {
+			long[] late = c.drain();
+			if (late[0] != 0 || late[1] != 0)
+				add(key, late[0], late[1]);
+		}
+	}
+
+	/** @return the number of (entity, field) counters held */
+	public int getCounterCount() {
+		return counters.size();
+	}
+
+	/** @return the number of increments since the last flush */
+	public long getPendingIncrements() {
+		return pendingIncrements.get();
+	}
+
+	/** @return the number of $inc updates written */
+	public long getFlushedUpdates() {
+		return flushedUpdates.get();
+	}
+
+	/** @return the number of increments written (folded into the updates) */
+	public long getFlushedIncrements() {
+		return flushedIncrements.get();
+	}
+
+	/**
+	 * Writes all pending increments; failed updates are kept (still pending, for the next flush) and an UpdateException
+	 * is thrown.
+	 */
+	public void flush() {
+		List<Throwable> errors = flush(true);
+		if (!errors.isEmpty())
+			throw new UpdateException("Counter flush failed for " + errors.size() + " update(s): " + errors, errors.get(0));
+	}
+
+	/** Stops the background thread and writes the pending increments. */
+	public void shutdown() {
+		synchronized (signal) {
+			if (!running)
+				return;
+			running = false;
+			signal.notifyAll();
+		}
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (Thread.currentThread() != shutdownHook)
+			try {
+				Runtime.getRuntime().removeShutdownHook(shutdownHook);
+			} catch (IllegalStateException e) {
+				//already shutting down
+			}
+		flush();
+	}
+
+	private void runFlusher() {
+		while (running) {
+			synchronized (signal) {
+				if (running && pendingIncrements.get() < threshold)
+					try {
+						signal.wait(flushInterval);
+					} catch (InterruptedException e) {
+						return;
+					}
+			}
+			if (!running)
+				return;
+			try {
+				for (Throwable t : flush(false))
+					log.error("Counter update failed; it will be retried", t);
+			} catch (RuntimeException e) {
+				log.error("Counter flush failed", e);
+			}
+		}
+	}
+
+	private List<Throwable> flush(boolean keepIdle) {
+		List<Throwable> errors = new ArrayList<Throwable>();
+		synchronized (flushLock) {
+			//group the fields per entity; one update each
+			Map<CounterKey, Map<CounterKey, long[]>> updates = new LinkedHashMap<CounterKey, Map<CounterKey, long[]>>();
+			for (Map.Entry<CounterKey, Counter> e : counters.entrySet()) {
+				CounterKey key = e.getKey();
+				Counter c = e.getValue();
+				long[] drained = c.drain();
+				if (drained[0] == 0 && drained[1] == 0) {
+					if (!keepIdle && counters.remove(key, c)) {
+						c.retired = true;
+						drained = c.drain();
+					}
+					if (drained[0] == 0 && drained[1] == 0)
+						continue;
+				}
+
+				CounterKey entity = new CounterKey(key.clazz, key.id, "", false);
+				Map<CounterKey, long[]> fields = updates.get(entity);
+				if (fields == null) {
+					fields = new LinkedHashMap<CounterKey, long[]>();
+					updates.put(entity, fields);
+				}
+				fields.put(key, drained);
+			}
+
+			long events = 0;
+			for (Map.Entry<CounterKey, Map<CounterKey, long[]>> e : updates.entrySet()) {
+				CounterKey entity = e.getKey();
+				long entityEvents = 0;
+				for (long[] drained : e.getValue().values())
+					entityEvents += drained[1];
+				try {
+					write(entity.clazz, entity.id, e.getValue());
+				} catch (RuntimeException ex) {
+					//kept, and still pending, for the next flush
+					errors.add(ex);
+					for (Map.Entry<CounterKey, long[]> f : e.getValue().entrySet())
+						add(f.getKey(), f.getValue()[0], f.getValue()[1]);
+					continue;
+				}
+				flushedUpdates.incrementAndGet();
+				flushedIncrements.addAndGet(entityEvents);
+				pendingIncrements.addAndGet(-entityEvents);
+				events += entityEvents;
+			}
+
+			if (log.isTraceEnabled())
+				log.trace("Flushed " + events + " increments as " + updates.size() + " updates");
+		}
+		return errors;
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private void write(Class clazz, Object id, Map<CounterKey, long[]> fields) {
+		UpdateOperations ops = ds.createUpdateOperations(clazz);
+		boolean any = false;
+		for (Map.Entry<CounterKey, long[]> f : fields.entrySet()) {
+			CounterKey key = f.getKey();
+			long delta = f.getValue()[0];
+			if (delta == 0)
+				continue;
+			if (key.intField && delta == (int) delta)
+				ops.inc(key.field, (int) delta);
+			else
+				ops.inc(key.field, delta);
+			any = true;
+		}
+		//the increments cancelled out
+		if (!any)
+			return;
+		Query q = ds.createQuery(clazz).filter(Mapper.ID_KEY, id);
+		ds.update(q, ops, createIfMissing);
+	}
+}
@@ -82,7 +82,12 @@ public interface Datastore {
 	<T> long getCount(Class<T> clazz);
 
 	/** Gets the count of items returned by this query; same as {@code query.countAll()}*/
-	<T> long getCount(Query<T> query); 
+	<T> long getCount(Query<T> query);
+	/**
+	 * Gets the (approximate) number of entities, from the collection stats (for @Bucketed classes, the sum of the
+	 * bucket counts); cached for a few seconds
+	 */
+	<T> long estimatedCount(Class<T> clazz); 
 	
 	/** Saves the entities (Objects) and updates the @Id field */
 	<T> Iterable<Key<T>> save(Iterable<T> entities);
@@ -173,6 +178,31 @@ public interface Datastore {
 	 */
 	<T> MapreduceResults<T> mapReduce(MapreduceType type, Query q, Class<T> outputType, MapReduceCommand baseCommand);
 	
+	/** The builder for a batch of mixed writes (executed in order, stopping at the first failure) */
+	<T> BulkWrite<T> createBulkWrite(Class<T> kind);
+	/** The builder for a batch of mixed writes; unordered writes are grouped per collection and continue after a failure */
+	<T> BulkWrite<T> createBulkWrite(Class<T> kind, boolean ordered);
+
+	/**
+	 * Loads the entity, applies the mutation and saves it. When the save fails with a @Version conflict
+	 * ({@link java.util.ConcurrentModificationException}), the entity is reloaded and the mutation applied again,
+	 * as the policy allows; the last conflict is thrown once the attempts are used up.
+	 * @return the saved entity, or null if there is no entity for the key
+	 */
+	<T> T updateVersioned(Key<T> key, Mutation<T> mutation, RetryPolicy policy);
+	/** Like {@link #updateVersioned(Key, Mutation, RetryPolicy)}, with the default {@link RetryPolicy} */
+	<T> T updateVersioned(Key<T> key, Mutation<T> mutation);
+
+	/** Starts a unit of work: queries share an identity map, and saves/deletes are queued until flushed */
+	Session createSession();
+
+	/**
+	 * Scans the results of the query with (up to) the given number of cursors and threads, each over a range of _ids;
+	 * the handler is called from all of them. See {@link ParallelScan} for checkpoints.
+	 * @return the number of entities handled
+	 */
+	<T> long parallelScan(Query<T> query, int partitions, EntityHandler<T> handler);
+
 	/** The builder for all update operations */
 	<T> UpdateOperations<T> createUpdateOperations(Class<T> kind);
 	
@@ -1,5 +1,6 @@
 package com.google.code.morphia;
 
+import java.io.File;
 import java.lang.annotation.Annotation;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -10,7 +11,12 @@ import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
+import org.bson.types.ObjectId;
+
+import com.google.code.morphia.annotations.Bucketed;
 import com.google.code.morphia.annotations.CappedAt;
 import com.google.code.morphia.annotations.Entity;
 import com.google.code.morphia.annotations.Index;
@@ -23,6 +29,7 @@ import com.google.code.morphia.annotations.Serialized;
 import com.google.code.morphia.annotations.Version;
 import com.google.code.morphia.logging.Logr;
 import com.google.code.morphia.logging.MorphiaLoggerFactory;
+import com.google.code.morphia.mapping.BucketMapper;
 import com.google.code.morphia.mapping.MappedClass;
 import com.google.code.morphia.mapping.MappedField;
 import com.google.code.morphia.mapping.Mapper;
@@ -30,11 +37,14 @@ import com.google.code.morphia.mapping.MappingException;
 import com.google.code.morphia.mapping.cache.EntityCache;
 import com.google.code.morphia.mapping.lazy.DatastoreHolder;
 import com.google.code.morphia.mapping.lazy.proxy.ProxyHelper;
+import com.google.code.morphia.query.ProjectionPlan;
 import com.google.code.morphia.query.Query;
 import com.google.code.morphia.query.QueryException;
 import com.google.code.morphia.query.QueryImpl;
+import com.google.code.morphia.query.QueryLimits;
 import com.google.code.morphia.query.UpdateException;
 import com.google.code.morphia.query.UpdateOperations;
+import com.google.code.morphia.query.UpdateOperator;
 import com.google.code.morphia.query.UpdateOpsImpl;
 import com.google.code.morphia.query.UpdateResults;
 import com.google.code.morphia.utils.Assert;
@@ -71,6 +81,26 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 	protected DB db;
 	protected WriteConcern defConcern = WriteConcern.SAFE;
 	protected DBDecoderFactory decoderFactory = null;
+	protected volatile WriteBehindBuffer writeBehind = null;
+	protected volatile WriteJournal journal = null;
+	protected volatile IndexAdvisor indexAdvisor = null;
+	protected volatile QueryLimits queryLimits = null;
+	/** shape key to the shape, explained */
+	protected final Map<String, IndexAdvisor.QueryShape> explainedShapes = new ConcurrentHashMap<String, IndexAdvisor.QueryShape>();
+	/** "entity class name/dto class name" to the plan */
+	protected final Map<String, ProjectionPlan<?>> projectionPlans = new ConcurrentHashMap<String, ProjectionPlan<?>>();
+	/** collection name to {count, expires at} */
+	protected final Map<String, long[]> estimatedCounts = new ConcurrentHashMap<String, long[]>();
+	protected volatile long estimatedCountTtl = 10 * 1000;
+	
+	protected final ConcurrentHashMap<String, WriteThrottle> writeThrottles = new ConcurrentHashMap<String, WriteThrottle>();
+	protected final ConcurrentHashMap<Class<?>, VersionConflictStats> versionStats = new ConcurrentHashMap<Class<?>, VersionConflictStats>();
+	/** striped locks for updateVersioned; the length must be a power of two */
+	protected final ReentrantLock[] versionLocks = new ReentrantLock[64];
+	{
+		for (int i = 0; i < versionLocks.length; i++)
+			versionLocks[i] = new ReentrantLock();
+	}
 	
 	public DatastoreImpl(Mapper mapr, Mongo mongo, String dbName) {
 		this.mapr = mapr;
@@ -130,7 +160,9 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 	
 	public <T> WriteResult delete(String kind, T id) {
 		DBCollection dbColl = getCollection(kind);
+		long start = throttle(dbColl, 1);
 		WriteResult wr = dbColl.remove(BasicDBObjectBuilder.start().add(Mapper.ID_KEY, id).get());
+		throttled(dbColl, start);
 		throwOnError(null, wr);
 		return wr;
 	}
@@ -140,6 +172,8 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 	}
 	
 	public <T, V> WriteResult delete(Class<T> clazz, V id, WriteConcern wc) {
+		if (writeBehind != null)
+			writeBehind.discard(getCollection(clazz), id);
 		return delete(createQuery(clazz).filter(Mapper.ID_KEY, id), wc);
 	}
 
@@ -185,7 +219,15 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 		
 		if (q.getSortObject() != null || q.getOffset() != 0 || q.getLimit() > 0)
 			throw new QueryException("Delete does not allow sort/offset/limit query options.");
+		if (isBucketed(q.getEntityClass()) && !q.getQueryObject().keySet().isEmpty())
+			throw new QueryException("Samples of @Bucketed " + q.getEntityClass().getName() + " can't be deleted by query.");
+		
+		if (writeBehind != null)
+			writeBehind.flushFor(dbColl);
+		if (journal != null && journal.isJournaled(q.getEntityClass()))
+			journal.drain();
 		
+		long start = throttle(dbColl, 1);
 		if (q.getQueryObject() != null)
 			if (wc == null)
 				wr = dbColl.remove(q.getQueryObject());
@@ -196,6 +238,7 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 				wr = dbColl.remove(new BasicDBObject());
 			else
 				wr = dbColl.remove(new BasicDBObject(), wc);
+		throttled(dbColl, start);
 		
 		throwOnError(wc, wr);
 		
@@ -283,6 +326,12 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 		if (mc.getEmbeddedAnnotation() != null && (parentMCs == null || parentMCs.isEmpty()))
 			return;
 
+		//the samples are in the buckets; only the buckets can be indexed
+		if (mc.getAnnotation(Bucketed.class) != null && parentMCs.isEmpty()) {
+			ensureIndex(mc.getClazz(), null, new BasicDBObject(BucketMapper.BY_KEY, 1).append(BucketMapper.START_KEY, 1), false, false, background, false);
+			return;
+		}
+
 		//Ensure indexes from class annotation
 		ArrayList<Annotation> idxs = mc.getAnnotations(Indexes.class);
 		if (idxs != null)
@@ -578,15 +627,56 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 
 	public <T> long getCount(T entity) {
 		entity = ProxyHelper.unwrap(entity);
+		if (isBucketed(entity.getClass()))
+			return getCount(entity.getClass());
 		return getCollection(entity).count();
 	}
 	
 
 	public <T> long getCount(Class<T> clazz) {
+		if (isBucketed(clazz))
+			return countSamples(getCollection(clazz));
 		return getCollection(clazz).count();
 	}
 	
+	/** @return the sum of the sample counts stored in the buckets, added up on the server */
+	protected long countSamples(DBCollection dbColl) {
+		DBObject group = new BasicDBObject("$group", new BasicDBObject(Mapper.ID_KEY, null)
+				.append(BucketMapper.COUNT_KEY, new BasicDBObject("$sum", "$" + BucketMapper.COUNT_KEY)));
+		for (DBObject res : dbColl.aggregate(group).results()) {
+			Object n = res.get(BucketMapper.COUNT_KEY);
+			if (n instanceof Number)
+				return ((Number) n).longValue();
+		}
+		return 0;
+	}
+	
 
+	public <T> long estimatedCount(Class<T> clazz) {
+		DBCollection dbColl = getCollection(clazz);
+		long now = System.currentTimeMillis();
+		long[] cached = estimatedCounts.get(dbColl.getName());
+		if (cached != null && cached[1] > now)
+			return cached[0];
+		
+		long count;
+		if (isBucketed(clazz))
+			//the stats count the buckets; the samples are counted in them
+			count = countSamples(dbColl);
+		else {
+			Object n = dbColl.getStats().get("count");
+			count = n instanceof Number ? ((Number) n).longValue() : dbColl.count();
+		}
+		estimatedCounts.put(dbColl.getName(), new long[] {count, now + estimatedCountTtl});
+		return count;
+	}
+	
+	/** How long (ms) {@link #estimatedCount(Class)} reuses a count; 10s by default */
+	public void setEstimatedCountTtl(long ttl) {
+		this.estimatedCountTtl = ttl;
+		estimatedCounts.clear();
+	}
+	
 	public long getCount(String kind) {
 		return getCollection(kind).count();
 	}
@@ -640,13 +730,22 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 			MappedClass mc = mapr.getMappedClass(ent);
 			if (mc.getAnnotation(NotSaved.class) != null)
 				throw new MappingException("Entity type: " + mc.getClazz().getName() + " is marked as NotSaved which means you should not try to save it!");
+			if (mc.getAnnotation(Bucketed.class) != null || (journal != null && journal.isJournaled(ent))) {
+				//each sample is pushed into its bucket, or each entity journaled
+				ArrayList<Key<T>> savedKeys = new ArrayList<Key<T>>();
+				for (T sample : entities)
+					savedKeys.add(insert(dbColl, sample, wc));
+				return savedKeys;
+			}
 			ents.add(entityToDBObj(ent, involvedObjects));
 		}
 		
 		WriteResult wr = null;
 		
 		DBObject[] dbObjs = new DBObject[ents.size()];
+		long start = throttle(dbColl, dbObjs.length);
 		dbColl.insert(ents.toArray(dbObjs), wc);
+		throttled(dbColl, start);
 		
 		throwOnError(wc, wr);
 		
@@ -689,13 +788,21 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 	}
 
 	protected <T> Key<T> insert(DBCollection dbColl, T entity, WriteConcern wc) {
+		BucketMapper bm = BucketMapper.of(mapr.getMappedClass(entity));
+		if (bm != null)
+			return saveSample(dbColl, entity, wc, bm);
+		if (journal != null && journal.isJournaled(entity))
+			return journal.add(dbColl, entity, true);
+		
 		LinkedHashMap<Object, DBObject> involvedObjects = new LinkedHashMap<Object, DBObject>();
 		DBObject dbObj = entityToDBObj(entity, involvedObjects);
 		WriteResult wr;
+		long start = throttle(dbColl, 1);
 		if (wc == null)
 			wr = dbColl.insert(dbObj);
 		else
 			wr = dbColl.insert(dbObj, wc);
+		throttled(dbColl, start);
 
 		throwOnError(wc, wr);
 
@@ -747,10 +854,28 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 	}
 	
 	protected <T> Key<T> save(DBCollection dbColl, T entity, WriteConcern wc) {
+		checkNotPartial(entity);
+		if (writeBehind != null && writeBehind.isBuffered(entity))
+			return writeBehind.add(dbColl, entity, wc, false);
+		return saveNow(dbColl, entity, wc);
+	}
+	
+	/** Saves the entity, bypassing any write-behind buffer */
+	protected <T> Key<T> saveNow(DBCollection dbColl, T entity, WriteConcern wc) {
 		MappedClass mc = mapr.getMappedClass(entity);
 		if (mc.getAnnotation(NotSaved.class) != null)
 			throw new MappingException("Entity type: " + mc.getClazz().getName() + " is marked as NotSaved which means you should not try to save it!");
 
+		BucketMapper bm = BucketMapper.of(mc);
+		if (bm != null)
+			return saveSample(dbColl, entity, wc, bm);
+		if (journal != null && journal.isJournaled(entity))
+			return journal.add(dbColl, entity, false);
+
+		//only write what changed since it was loaded
+		if (isTrackingChanges(entity))
+			return saveChanges(dbColl, entity, wc, mc);
+
 		WriteResult wr = null;
 		
 		//involvedObjects is used not only as a cache but also as a list of what needs to be called for life-cycle methods at the end.
@@ -760,16 +885,117 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 		//try to do an update if there is a @Version field
 		wr = tryVersionedUpdate(dbColl, entity, dbObj, wc, db, mc);
 		
-		if(wr == null)
+		if(wr == null) {
+			long start = throttle(dbColl, 1);
 			if (wc == null)
 				wr = dbColl.save(dbObj);
 			else
 				wr = dbColl.save(dbObj, wc);
+			throttled(dbColl, start);
+		}
 
 		throwOnError(wc, wr);
 		return postSaveGetKey(entity, dbObj, dbColl, involvedObjects);
 	}
 	
+	/** Pushes the sample into its bucket (creating the bucket if needed); samples are never replaced */
+	protected <T> Key<T> saveSample(DBCollection dbColl, T entity, WriteConcern wc, BucketMapper bm) {
+		LinkedHashMap<Object, DBObject> involvedObjects = new LinkedHashMap<Object, DBObject>();
+		DBObject dbObj = entityToDBObj(entity, involvedObjects);
+		if (dbObj.get(Mapper.ID_KEY) == null)
+			dbObj.put(Mapper.ID_KEY, new ObjectId());
+		
+		long start = throttle(dbColl, 1);
+		WriteResult wr;
+		if (wc == null)
+			wr = dbColl.update(bm.bucketFor(dbObj), bm.pushSample(dbObj), true, false);
+		else
+			wr = dbColl.update(bm.bucketFor(dbObj), bm.pushSample(dbObj), true, false, wc);
+		throttled(dbColl, start);
+		
+		throwOnError(wc, wr);
+		return postSaveGetKey(entity, dbObj, dbColl, involvedObjects);
+	}
+	
+	/** Saving an entity loaded with only part of some arrays (sliced or projected) would truncate them */
+	protected void checkNotPartial(Object entity) {
+		String[] partial = mapr.getChangeTracker().getPartialFields(entity);
+		if (partial != null)
+			throw new MappingException("The " + entity.getClass().getName() + " entity was loaded with only part of " + Arrays.toString(partial)
+					+ "; it can't be saved whole (update it instead)");
+	}
+	
+	protected boolean isBucketed(Class<?> clazz) {
+		return clazz != null && clazz.isAnnotationPresent(Bucketed.class);
+	}
+	
+	protected boolean isTrackingChanges(Object entity) {
+		return mapr.getOptions().trackChanges && mapr.getChangeTracker().isTracked(entity);
+	}
+	
+	/** 
+	 * Saves a tracked entity by sending only the fields which changed since it was loaded (or last saved); 
+	 * nothing is sent if none changed. The @Version field is checked and incremented like a normal save.
+	 */
+	protected <T> Key<T> saveChanges(DBCollection dbColl, T entity, WriteConcern wc, MappedClass mc) {
+		LinkedHashMap<Object, DBObject> involvedObjects = new LinkedHashMap<Object, DBObject>();
+		DBObject dbObj = entityToDBObj(entity, involvedObjects);
+		Object idValue = dbObj.get(Mapper.ID_KEY);
+		
+		DBObject u = mapr.getChangeTracker().getChanges(entity, dbObj);
+		if (u == null || idValue == null)
+			throw new MappingException("Entity of class " + entity.getClass().getName() + " is not tracked or is missing an id");
+		
+		if (u.keySet().isEmpty()) {
+			if (log.isTraceEnabled())
+				log.trace("Skipping save(" + dbColl.getName() + ") of unchanged entity with id: " + idValue);
+			//nothing was written; no @PostPersist
+			Key<T> key = new Key<T>(dbColl.getName(), idValue);
+			key.setKindClass((Class<? extends T>) entity.getClass());
+			return key;
+		}
+		
+		Query<T> q = find(dbColl.getName(), (Class<T>) entity.getClass()).disableValidation().filter(Mapper.ID_KEY, idValue);
+		
+		MappedField mfVersion = null;
+		Long oldVersion = null;
+		long newVersion = 0;
+		if (!mc.getFieldsAnnotatedWith(Version.class).isEmpty()) {
+			mfVersion = mc.getFieldsAnnotatedWith(Version.class).get(0);
+			String versionKeyName = mfVersion.getNameToStore();
+			oldVersion = (Long) mfVersion.getFieldValue(entity);
+			newVersion = VersionHelper.nextValue(oldVersion);
+			if (oldVersion != null && oldVersion > 0)
+				q.filter(versionKeyName, oldVersion);
+			
+			dbObj.put(versionKeyName, newVersion);
+			DBObject set = (DBObject) u.get(UpdateOperator.SET.val());
+			if (set == null) {
+				set = new BasicDBObject();
+				u.put(UpdateOperator.SET.val(), set);
+			}
+			set.put(versionKeyName, newVersion);
+		}
+		
+		UpdateResults<T> res = update(q, u, false, false, wc);
+		if (res.getUpdatedCount() != 1) {
+			if (mfVersion != null)
+				throw versionConflict(entity, idValue, oldVersion);
+			
+			//the document is gone; write it all back like a normal save would.
+			long start = throttle(dbColl, 1);
+			WriteResult wr = (wc == null) ? dbColl.save(dbObj) : dbColl.save(dbObj, wc);
+			throttled(dbColl, start);
+			throwOnError(wc, wr);
+		}
+		
+		if (mfVersion != null)
+			mfVersion.setFieldValue(entity, newVersion);
+		mapr.getChangeTracker().snapshot(entity, dbObj);
+		
+		return postSaveGetKey(entity, dbObj, dbColl, involvedObjects);
+	}
+	
 	protected <T> WriteResult tryVersionedUpdate(DBCollection dbColl, T entity, DBObject dbObj, WriteConcern wc, DB db, MappedClass mc) {
 		WriteResult wr = null;
 		if (mc.getFieldsAnnotatedWith(Version.class).isEmpty())
@@ -793,19 +1019,131 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 			wr = res.getWriteResult();
 			
 			if (res.getUpdatedCount() != 1)
-				throw new ConcurrentModificationException("Entity of class " + entity.getClass().getName()
-						+ " (id='" + idValue + "',version='" + oldVersion + "') was concurrently updated.");
-		} else
+				throw versionConflict(entity, idValue, oldVersion);
+		} else {
+			long start = throttle(dbColl, 1);
 			if (wc == null)
 				wr = dbColl.save(dbObj);
 			else
 				wr = dbColl.save(dbObj, wc);
+			throttled(dbColl, start);
+		}
 
 		//update the version.
 		mfVersion.setFieldValue(entity, newVersion);
 		return wr;
 	}
 	
+	public void setWriteThrottle(Class<?> clazz, WriteThrottle throttle) {
+		setWriteThrottle(getCollection(clazz).getName(), throttle);
+	}
+	
+	public void setWriteThrottle(String kind, WriteThrottle throttle) {
+		if (throttle == null)
+			writeThrottles.remove(kind);
+		else
+			writeThrottles.put(kind, throttle);
+	}
+	
+	public WriteThrottle getWriteThrottle(String kind) {
+		return writeThrottles.get(kind);
+	}
+	
+	/** Waits for the collection's write throttle (if there is one); returns the start time for {@link #throttled} */
+	protected long throttle(DBCollection dbColl, int writes) {
+		if (writeThrottles.isEmpty())
+			return 0;
+		WriteThrottle t = writeThrottles.get(dbColl.getName());
+		if (t != null)
+			t.acquire(writes);
+		return System.nanoTime();
+	}
+	
+	/** Records the latency of the write (started at start) with the collection's write throttle */
+	protected void throttled(DBCollection dbColl, long start) {
+		if (start == 0)
+			return;
+		WriteThrottle t = writeThrottles.get(dbColl.getName());
+		if (t != null)
+			t.record(System.nanoTime() - start);
+	}
+	
+	/** Counts the conflict (for the entity class) and returns the exception to throw */
+	protected ConcurrentModificationException versionConflict(Object entity, Object idValue, Long oldVersion) {
+		getVersionConflictStats(entity.getClass()).conflicts.incrementAndGet();
+		return new ConcurrentModificationException("Entity of class " + entity.getClass().getName()
+				+ " (id='" + idValue + "',version='" + oldVersion + "') was concurrently updated.");
+	}
+	
+	public VersionConflictStats getVersionConflictStats(Class<?> clazz) {
+		VersionConflictStats stats = versionStats.get(clazz);
+		if (stats == null) {
+			VersionConflictStats newStats = new VersionConflictStats();
+			stats = versionStats.putIfAbsent(clazz, newStats);
+			if (stats == null)
+				stats = newStats;
+		}
+		return stats;
+	}
+	
+	public <T> long parallelScan(Query<T> query, int partitions, EntityHandler<T> handler) {
+		return createParallelScan(query, partitions).run(handler);
+	}
+	
+	public <T> ParallelScan<T> createParallelScan(Query<T> query, int partitions) {
+		return new ParallelScan<T>(this, query, partitions);
+	}
+	
+	public <T> T updateVersioned(Key<T> key, Mutation<T> mutation) {
+		return updateVersioned(key, mutation, new RetryPolicy());
+	}
+	
+	public <T> T updateVersioned(Key<T> key, Mutation<T> mutation, RetryPolicy policy) {
+		Class<T> clazz = (Class<T>) key.getKindClass();
+		if (clazz == null)
+			clazz = (Class<T>) mapr.getClassFromKind(mapr.updateKind(key));
+		VersionConflictStats stats = getVersionConflictStats(clazz);
+		
+		ReentrantLock lock = null;
+		if (policy.isLockLocally()) {
+			lock = versionLocks[(clazz.hashCode() * 31 + key.getId().hashCode()) & (versionLocks.length - 1)];
+			lock.lock();
+		}
+		try {
+			for (int attempt = 1; ; attempt++) {
+				T ent = get(clazz, key.getId());
+				if (ent == null)
+					return null;
+				T changed = mutation.apply(ent);
+				if (changed == null)
+					return ent;
+				
+				try {
+					save(changed);
+					stats.updates.incrementAndGet();
+					return changed;
+				} catch (ConcurrentModificationException e) {
+					if (attempt >= policy.getMaxAttempts()) {
+						stats.exhausted.incrementAndGet();
+						throw e;
+					}
+					stats.retries.incrementAndGet();
+					if (log.isDebugEnabled())
+						log.debug("Retrying versioned update of " + key + " (attempt " + attempt + " conflicted)");
+					try {
+						Thread.sleep(policy.getBackoff(attempt));
+					} catch (InterruptedException ie) {
+						Thread.currentThread().interrupt();
+						throw e;
+					}
+				}
+			}
+		} finally {
+			if (lock != null)
+				lock.unlock();
+		}
+	}
+	
 	protected void throwOnError(WriteConcern wc, WriteResult wr) {
 		if ( wc == null && wr.getLastConcern() == null) {
 			CommandResult cr = wr.getLastError();
@@ -830,6 +1168,111 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 		return save(dbColl, entity, wc);
 	}
 
+	public <T> BulkWrite<T> createBulkWrite(Class<T> kind) {
+		return createBulkWrite(kind, true);
+	}
+
+	public <T> BulkWrite<T> createBulkWrite(Class<T> kind, boolean ordered) {
+		return new BulkWriteImpl<T>(this, kind, ordered);
+	}
+
+	public Session createSession() {
+		return new SessionImpl(this);
+	}
+
+	public WriteBehindBuffer enableWriteBehind(long flushInterval, int batchSize, int capacity, Class<?>... classes) {
+		if (writeBehind != null)
+			writeBehind.shutdown();
+		writeBehind = new WriteBehindBuffer(this, flushInterval, batchSize, capacity, classes);
+		return writeBehind;
+	}
+
+	public <T> EventSink<T> createEventSink(Class<T> clazz) {
+		return createEventSink(clazz, EventSink.DEFAULT_BATCH_SIZE, EventSink.DEFAULT_MAX_LATENCY, EventSink.DEFAULT_CAPACITY);
+	}
+
+	public <T> EventSink<T> createEventSink(Class<T> clazz, int batchSize, long maxLatency, int capacity) {
+		return new EventSink<T>(this, clazz, batchSize, maxLatency, capacity);
+	}
+
+	public PipelinedWriter createPipelinedWriter(int checkpointOps, long checkpointMillis) {
+		return new PipelinedWriter(this, checkpointOps, checkpointMillis);
+	}
+
+	public WriteBehindBuffer getWriteBehind() {
+		return writeBehind;
+	}
+
+	public void disableWriteBehind() {
+		WriteBehindBuffer buffer = writeBehind;
+		writeBehind = null;
+		if (buffer != null)
+			buffer.shutdown();
+	}
+	
+	public WriteJournal enableJournal(File file, int maxSize, WriteJournal.Sync sync, Class<?>... classes) {
+		if (journal != null)
+			journal.close();
+		journal = new WriteJournal(this, file, maxSize, sync, classes);
+		return journal;
+	}
+	
+	public WriteJournal getJournal() {
+		return journal;
+	}
+	
+	public void disableJournal() {
+		WriteJournal j = journal;
+		journal = null;
+		if (j != null)
+			j.close();
+	}
+
+	public IndexAdvisor enableIndexAdvisor(boolean explain) {
+		indexAdvisor = new IndexAdvisor(this, explain);
+		return indexAdvisor;
+	}
+	
+	public IndexAdvisor getIndexAdvisor() {
+		return indexAdvisor;
+	}
+	
+	public void disableIndexAdvisor() {
+		indexAdvisor = null;
+	}
+	
+	public void setQueryLimits(QueryLimits limits) {
+		this.queryLimits = limits;
+	}
+	
+	public QueryLimits getQueryLimits() {
+		return queryLimits;
+	}
+	
+	/** @return the plan to map the entities into the DTOs; built once per pair */
+	@SuppressWarnings("unchecked")
+	public <D> ProjectionPlan<D> getProjectionPlan(Class<?> entityClass, Class<D> dto) {
+		String key = entityClass.getName() + "/" + dto.getName();
+		ProjectionPlan<D> plan = (ProjectionPlan<D>) projectionPlans.get(key);
+		if (plan == null) {
+			plan = new ProjectionPlan<D>(mapr, entityClass, dto);
+			projectionPlans.put(key, plan);
+		}
+		return plan;
+	}
+	
+	/** @return the shape of the query, with the status from the plan of the server; explained once per shape */
+	public IndexAdvisor.QueryShape getExplainedShape(Class<?> clazz, DBCollection dbColl, DBObject query, DBObject sort) {
+		IndexAdvisor.QueryShape shape = IndexAdvisor.shapeOf(clazz, dbColl, query, sort);
+		IndexAdvisor.QueryShape explained = explainedShapes.get(shape.key());
+		if (explained != null)
+			return explained;
+		IndexAdvisor.explain(shape, dbColl, query, sort);
+		if (shape.getStatus() != null)
+			explainedShapes.put(shape.key(), shape);
+		return shape;
+	}
+
 	public <T> UpdateOperations<T> createUpdateOperations(Class<T> clazz) {
 		return new UpdateOpsImpl<T>(clazz, getMapper());
 	}
@@ -911,6 +1354,20 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 	}
 
 	public <T> Key<T> merge(T entity, WriteConcern wc) {
+		checkNotPartial(ProxyHelper.unwrap(entity));
+		if (writeBehind != null && writeBehind.isBuffered(entity))
+			return writeBehind.add(getCollection(entity), entity, wc, true);
+		return mergeNow(entity, wc);
+	}
+	
+	/** Merges the entity, bypassing any write-behind buffer */
+	protected <T> Key<T> mergeNow(T entity, WriteConcern wc) {
+		//a tracked entity only needs its changes $set; just like a save of it
+		if (isTrackingChanges(ProxyHelper.unwrap(entity))) {
+			entity = ProxyHelper.unwrap(entity);
+			return saveChanges(getCollection(entity), entity, wc, mapr.getMappedClass(entity));
+		}
+		
 		LinkedHashMap<Object, DBObject> involvedObjects = new LinkedHashMap<Object, DBObject>();
 		DBObject dbObj = mapr.toDBObject(entity, involvedObjects);
 		Key<T> key = getKey(entity);
@@ -961,7 +1418,7 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 	}
 
 	@SuppressWarnings("rawtypes")
-	private <T> UpdateResults<T> update(Query<T> query, UpdateOperations ops, boolean createIfMissing, boolean multi, WriteConcern wc) {
+	protected <T> UpdateResults<T> update(Query<T> query, UpdateOperations ops, boolean createIfMissing, boolean multi, WriteConcern wc) {
 		DBObject u = ((UpdateOpsImpl) ops).getOps();
 		if (((UpdateOpsImpl) ops).isIsolated()) {
 			Query<T> q = query.clone();
@@ -986,6 +1443,8 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 		
 		if ( qi.getSortObject() != null && qi.getSortObject().keySet() != null && !qi.getSortObject().keySet().isEmpty())
 			throw new QueryException("sorting is not allowed for updates.");
+		if (isBucketed(qi.getEntityClass()))
+			throw new QueryException("Samples of @Bucketed " + qi.getEntityClass().getName() + " can't be updated.");
 		if ( qi.getOffset() > 0)
 			throw new QueryException("a query offset is not allowed for updates.");
 		if ( qi.getLimit() > 0)
@@ -994,15 +1453,24 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 		DBObject q = qi.getQueryObject();
 		if (q == null)
 			q = new BasicDBObject();
+		if (indexAdvisor != null)
+			indexAdvisor.record(qi.getEntityClass(), dbColl, q, null);
+
+		if (writeBehind != null)
+			writeBehind.flushFor(dbColl);
+		if (journal != null && journal.isJournaled(qi.getEntityClass()))
+			journal.drain();
 
 		if (log.isTraceEnabled())
 			log.trace("Executing update(" + dbColl.getName() + ") for query: " + q + ", ops: " + u + ", multi: " + multi + ", upsert: " + createIfMissing);
 
 		WriteResult wr;
+		long start = throttle(dbColl, 1);
 		if (wc == null)
 			wr = dbColl.update(q, u, createIfMissing, multi);
 		else
 			wr = dbColl.update(q, u, createIfMissing, multi, wc);
+		throttled(dbColl, start);
 
 		throwOnError(wc, wr);
 		
@@ -1018,6 +1486,11 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 		QueryImpl<T> qi = ((QueryImpl<T>) query);
 		EntityCache cache = createCache();
 		
+		if (writeBehind != null)
+			writeBehind.flushFor(dbColl);
+		if (journal != null && journal.isJournaled(qi.getEntityClass()))
+			journal.drain();
+		
 		if (log.isTraceEnabled())
 			log.trace("Executing findAndModify(" + dbColl.getName() + ") with delete ...");
 
@@ -1047,6 +1520,11 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 		if(dbColl == null)
 			dbColl = getCollection(qi.getEntityClass());
 
+		if (writeBehind != null)
+			writeBehind.flushFor(dbColl);
+		if (journal != null && journal.isJournaled(qi.getEntityClass()))
+			journal.drain();
+
 		if (log.isTraceEnabled())
 			log.info("Executing findAndModify(" + dbColl.getName() + ") with update ");
 		DBObject res =null;
@@ -0,0 +1,9 @@
+package com.google.code.morphia;
+
+/**
+ * Handles the entities of a scan, like {@link Datastore#parallelScan(com.google.code.morphia.query.Query, int, EntityHandler)};
+ * it may be called from several threads at once.
+ */
+public interface EntityHandler<T> {
+	void handle(T entity);
+}
@@ -0,0 +1,220 @@
+package com.google.code.morphia;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.code.morphia.logging.Logr;
+import com.google.code.morphia.logging.MorphiaLoggerFactory;
+import com.google.code.morphia.mapping.lazy.proxy.ProxyHelper;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+import com.mongodb.WriteResult;
+
+/**
+ * <p>
+ * Appends events (entities which are only ever inserted, like audit or activity records; typically in a
+ * {@link com.google.code.morphia.annotations.CappedAt capped} collection) with batched inserts. Any number of threads
+ * can {@link #offer(Object)} events; they are mapped in the calling thread (mapping errors are thrown there) and the
+ * documents go to a lock-free queue; a background thread inserts them in batches of up to
+ * {@code batchSize}, as soon as a batch is full or after {@code maxLatency} ms.
+ * </p>
+ * <p>
+ * Events are mapped without lifecycle (@PrePersist, ...) calls, and @Version fields are not checked; changes made to
+ * an event after it is offered are not written. The ids are generated by the driver and not set on the events. When {@code capacity} events are waiting, new events are
+ * dropped (and counted). Failed inserts are logged and counted; they are not retried.
+ * </p>
+ */
+public class EventSink<T> {
+	private static final Logr log = MorphiaLoggerFactory.get(EventSink.class);
+
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+	public static final long DEFAULT_MAX_LATENCY = 100;
+	public static final int DEFAULT_CAPACITY = 100000;
+
+	private final DatastoreImpl ds;
+	private final DBCollection dbColl;
+	private final int batchSize;
+	private final long maxLatency;
+	private final int capacity;
+	private volatile WriteConcern wc;
+
+	private final ConcurrentLinkedQueue<DBObject> queue = new ConcurrentLinkedQueue<DBObject>();
+	private final AtomicInteger depth = new AtomicInteger();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+
+	private final Object signal = new Object();
+	private final Object writeLock = new Object();
+	private final Thread flusher;
+	private final Thread shutdownHook;
+	private volatile boolean running = true;
+
+	public EventSink(DatastoreImpl ds, Class<T> clazz, int batchSize, long maxLatency, int capacity) {
+		if (batchSize < 1 || maxLatency < 1 || capacity < batchSize)
+			throw new IllegalArgumentException("batchSize and maxLatency must be positive, and capacity at least the batchSize");
+		this.ds = ds;
+		this.dbColl = ds.getCollection(clazz);
+		this.batchSize = batchSize;
+		this.maxLatency = maxLatency;
+		this.capacity = capacity;
+		this.wc = ds.getWriteConcern(clazz);
+
+		flusher = new Thread("morphia-event-sink-" + dbColl.getName()) {
+			@Override
+			public void run() {
+				runFlusher();
+			}
+		};
+		flusher.setDaemon(true);
+		flusher.start();
+
+		shutdownHook = new Thread("morphia-event-sink-shutdown-" + dbColl.getName()) {
+			@Override
+			public void run() {
+				shutdown();
+			}
+		};
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+
+	/** The write concern for the inserts (the entity's by default) */
+	public EventSink<T> setWriteConcern(WriteConcern wc) {
+		this.wc = wc;
+		return this;
+	}
+
+	/**
+	 * Maps and queues the event; returns false (and counts it as dropped) if the queue is full or the sink is shut down.
+	 * A MappingException is thrown (and nothing queued) if the event can't be mapped.
+	 */
+	public boolean offer(T event) {
+		if (!running || depth.incrementAndGet() > capacity) {
+			if (running)
+				depth.decrementAndGet();
+			dropped.incrementAndGet();
+			return false;
+		}
+		DBObject dbObj;
+		try {
+			dbObj = ds.getMapper().toDBObject(ProxyHelper.unwrap(event), null, false);
+		} catch (RuntimeException e) {
+			depth.decrementAndGet();
+			throw e;
+		}
+		queue.offer(dbObj);
+		if (depth.get() == batchSize)
+			synchronized (signal) {
+				signal.notifyAll();
+			}
+		return true;
+	}
+
+	/** @return the number of events waiting to be inserted */
+	public int getQueueDepth() {
+		return Math.max(0, depth.get());
+	}
+
+	/** @return the number of events dropped because the queue was full */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/** @return the number of events inserted */
+	public long getWritten() {
+		return written.get();
+	}
+
+	/** @return the number of events in batches whose insert failed */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/** @return the number of inserts (batches) sent */
+	public long getBatches() {
+		return batches.get();
+	}
+
+	/** Inserts all the queued events (in the calling thread) */
+	public void flush() {
+		while (writeBatch() > 0)
+			;
+	}
+
+	/** Stops accepting events, and inserts the queued ones */
+	public void shutdown() {
+		synchronized (signal) {
+			if (!running)
+				return;
+			running = false;
+			signal.notifyAll();
+		}
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (Thread.currentThread() != shutdownHook)
+			try {
+				Runtime.getRuntime().removeShutdownHook(shutdownHook);
+			} catch (IllegalStateException e) {
+				//already shutting down
+			}
+		flush();
+	}
+
+	private void runFlusher() {
+		while (running) {
+			synchronized (signal) {
+				if (running && depth.get() < batchSize)
+					try {
+						signal.wait(maxLatency);
+					} catch (InterruptedException e) {
+						return;
+					}
+			}
+			try {
+				flush();
+			} catch (RuntimeException e) {
+				log.error("Event sink flush failed", e);
+			}
+		}
+	}
+
+	/** Inserts up to batchSize queued events; returns the number taken from the queue */
+	private int writeBatch() {
+		synchronized (writeLock) {
+			List<DBObject> dbObjs = new ArrayList<DBObject>(Math.min(batchSize, Math.max(1, depth.get())));
+			DBObject dbObj;
+			while (dbObjs.size() < batchSize && (dbObj = queue.poll()) != null) {
+				depth.decrementAndGet();
+				dbObjs.add(dbObj);
+			}
+			if (dbObjs.isEmpty())
+				return 0;
+
+			WriteConcern concern = wc;
+			try {
+				long start = ds.throttle(dbColl, dbObjs.size());
+				WriteResult wr;
+				if (concern == null)
+					wr = dbColl.insert(dbObjs);
+				else
+					wr = dbColl.insert(dbObjs, concern.continueOnErrorForInsert(true));
+				ds.throttled(dbColl, start);
+				ds.throwOnError(concern, wr);
+				written.addAndGet(dbObjs.size());
+			} catch (RuntimeException e) {
+				failed.addAndGet(dbObjs.size());
+				log.error("Inserting " + dbObjs.size() + " events into " + dbColl.getName() + " failed", e);
+			}
+			batches.incrementAndGet();
+			return dbObjs.size();
+		}
+	}
+}
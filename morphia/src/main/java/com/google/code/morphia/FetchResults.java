@@ -0,0 +1,49 @@
+package com.google.code.morphia;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The results of an {@link AsyncDatastore#fetch(com.google.code.morphia.query.Query)}, iterated on the calling thread.
+ * They hold a permit of the collection's limit until read to the end or closed; close them (in a finally block) when
+ * not reading them to the end.
+ */
+public class FetchResults<T> implements Iterable<T>, Iterator<T>, Closeable {
+	private final Iterator<T> it;
+	private final Runnable onClose;
+	private final AtomicBoolean closed = new AtomicBoolean(false);
+
+	/** @param onClose closes the cursor and releases the permit; run once */
+	FetchResults(Iterator<T> it, Runnable onClose) {
+		this.it = it;
+		this.onClose = onClose;
+	}
+
+	public Iterator<T> iterator() {
+		return this;
+	}
+
+	public boolean hasNext() {
+		if (closed.get())
+			return false;
+		boolean hasNext = it.hasNext();
+		if (!hasNext)
+			close();
+		return hasNext;
+	}
+
+	public T next() {
+		return it.next();
+	}
+
+	public void remove() {
+		it.remove();
+	}
+
+	/** Closes the cursor and releases the permit */
+	public void close() {
+		if (closed.compareAndSet(false, true))
+			onClose.run();
+	}
+}
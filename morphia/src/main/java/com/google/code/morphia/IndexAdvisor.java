@@ -0,0 +1,431 @@
+package com.google.code.morphia;
+
+import java.lang.annotation.Annotation;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import com.google.code.morphia.annotations.Index;
+import com.google.code.morphia.annotations.Indexed;
+import com.google.code.morphia.annotations.Indexes;
+import com.google.code.morphia.annotations.Reference;
+import com.google.code.morphia.annotations.Serialized;
+import com.google.code.morphia.logging.Logr;
+import com.google.code.morphia.logging.MorphiaLoggerFactory;
+import com.google.code.morphia.mapping.MappedClass;
+import com.google.code.morphia.mapping.MappedField;
+import com.google.code.morphia.mapping.Mapper;
+import com.google.code.morphia.query.QueryImpl;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+/**
+ * <p>
+ * Records the shapes of the queries run (the fields filtered by equality or by range, and the sort), and checks them
+ * against the indexes declared ({@link Indexes}/{@link Indexed}) on the mapped classes. The {@link #getReport()
+ * report} lists the shapes no index serves (with a suggested compound index: equality fields, then the sort, then the
+ * range fields), the shapes sorted in memory, and the declared indexes none of the shapes used.
+ * </p>
+ * <p>
+ * Fields in an $or/$nor are counted as range fields. With explain enabled, the first query of each shape is
+ * explained and the plan chosen by the server decides (so indexes created by other means are counted too).
+ * </p>
+ */
+public class IndexAdvisor {
+	private static final Logr log = MorphiaLoggerFactory.get(IndexAdvisor.class);
+
+	public enum Status {
+		/** served by an index (or nothing to index) */
+		INDEXED,
+		/** filtered with an index, but sorted in memory */
+		SORT_IN_MEMORY,
+		/** a collection scan */
+		UNINDEXED
+	}
+
+	/** A normalized query: the collection, the fields by kind of condition, and the sort */
+	public static class QueryShape {
+		private final Class<?> clazz;
+		private final String collection;
+		private final Set<String> equalities;
+		private final Set<String> ranges;
+		private final DBObject sort;
+		private final AtomicLong count = new AtomicLong();
+		private volatile Status status;
+		private volatile BasicDBObject usedIndex;
+		private volatile boolean explained = false;
+
+		QueryShape(Class<?> clazz, String collection, Set<String> equalities, Set<String> ranges, DBObject sort) {
+			this.clazz = clazz;
+			this.collection = collection;
+			this.equalities = equalities;
+			this.ranges = ranges;
+			this.sort = sort;
+		}
+
+		public Class<?> getEntityClass() {
+			return clazz;
+		}
+
+		public String getCollection() {
+			return collection;
+		}
+
+		/** @return the fields filtered by equality ($in, $all and $elemMatch included) */
+		public Set<String> getEqualities() {
+			return equalities;
+		}
+
+		/** @return the other fields filtered */
+		public Set<String> getRanges() {
+			return ranges;
+		}
+
+		/** @return the sort, or an empty object */
+		public DBObject getSort() {
+			return sort;
+		}
+
+		/** @return the number of times the shape was run */
+		public long getCount() {
+			return count.get();
+		}
+
+		public Status getStatus() {
+			return status;
+		}
+
+		/** @return the declared index serving the shape, or null */
+		public DBObject getUsedIndex() {
+			return usedIndex;
+		}
+
+		/** @return true if the status comes from the server (explain) */
+		public boolean isExplained() {
+			return explained;
+		}
+
+		/** @return the compound index to serve the shape: the equality fields, the sort, then the range fields */
+		public DBObject getSuggestedIndex() {
+			BasicDBObject idx = new BasicDBObject();
+			for (String f : equalities)
+				idx.put(f, 1);
+			for (String f : sort.keySet())
+				if (!idx.containsField(f))
+					idx.put(f, sort.get(f));
+			for (String f : ranges)
+				if (!idx.containsField(f))
+					idx.put(f, 1);
+			return idx;
+		}
+
+		String key() {
+			return collection + " " + clazz.getName() + " eq:" + equalities + " range:" + ranges + " sort:" + sort;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder(collection).append(" {");
+			for (String f : equalities)
+				sb.append(sb.charAt(sb.length() - 1) == '{' ? "" : ", ").append(f).append(": eq");
+			for (String f : ranges)
+				sb.append(sb.charAt(sb.length() - 1) == '{' ? "" : ", ").append(f).append(": range");
+			sb.append("}");
+			if (!sort.keySet().isEmpty())
+				sb.append(" sort ").append(sort);
+			return sb.toString();
+		}
+	}
+
+	private final DatastoreImpl ds;
+	private final boolean explain;
+	private final ConcurrentMap<String, QueryShape> shapes = new ConcurrentHashMap<String, QueryShape>();
+	private final Map<Class<?>, List<BasicDBObject>> declared = new ConcurrentHashMap<Class<?>, List<BasicDBObject>>();
+
+	/** @param explain confirm the status of each new shape with the plan of the server */
+	public IndexAdvisor(DatastoreImpl ds, boolean explain) {
+		this.ds = ds;
+		this.explain = explain;
+	}
+
+	/** @return the (normalized) shape of the query, without a status */
+	public static QueryShape shapeOf(Class<?> clazz, DBCollection dbColl, DBObject query, DBObject sort) {
+		Set<String> eqs = new TreeSet<String>();
+		Set<String> ranges = new TreeSet<String>();
+		if (query != null)
+			addFields(query, eqs, ranges, false);
+		ranges.removeAll(eqs);
+		BasicDBObject s = new BasicDBObject();
+		if (sort != null)
+			for (String f : sort.keySet())
+				s.put(f, ((Number) sort.get(f)).intValue() < 0 ? -1 : 1);
+		return new QueryShape(clazz, dbColl.getName(), eqs, ranges, s);
+	}
+
+	/** Records a query (called by the queries and updates of the datastore) */
+	public void record(Class<?> clazz, DBCollection dbColl, DBObject query, DBObject sort) {
+		if (clazz == null || dbColl == null)
+			return;
+		QueryShape shape = shapeOf(clazz, dbColl, query, sort);
+		String key = shape.key();
+		QueryShape existing = shapes.get(key);
+		if (existing == null) {
+			analyze(shape);
+			if (explain)
+				explain(shape, dbColl, query, sort);
+			existing = shapes.putIfAbsent(key, shape);
+			if (existing == null) {
+				if (shape.status != Status.INDEXED && log.isDebugEnabled())
+					log.debug(shape.status + " query shape: " + shape);
+				existing = shape;
+			}
+		}
+		existing.count.incrementAndGet();
+	}
+
+	/** @return the shapes recorded */
+	public List<QueryShape> getShapes() {
+		List<QueryShape> res = new ArrayList<QueryShape>(shapes.values());
+		Collections.sort(res, new Comparator<QueryShape>() {
+			public int compare(QueryShape o1, QueryShape o2) {
+				int c = o1.status.compareTo(o2.status);
+				if (c != 0)
+					return -c;
+				long n1 = o1.getCount(), n2 = o2.getCount();
+				return n1 > n2 ? -1 : (n1 == n2 ? o1.key().compareTo(o2.key()) : 1);
+			}
+		});
+		return res;
+	}
+
+	/** @return the shapes which are a collection scan, most run first */
+	public List<QueryShape> getUnindexedShapes() {
+		List<QueryShape> res = new ArrayList<QueryShape>();
+		for (QueryShape shape : getShapes())
+			if (shape.status == Status.UNINDEXED)
+				res.add(shape);
+		return res;
+	}
+
+	/** @return the declared indexes (by collection) of the classes queried, which none of the shapes used */
+	public Map<String, List<DBObject>> getUnusedIndexes() {
+		Map<String, List<DBObject>> res = new LinkedHashMap<String, List<DBObject>>();
+		for (QueryShape shape : getShapes()) {
+			List<DBObject> unused = res.get(shape.collection);
+			if (unused == null) {
+				unused = new ArrayList<DBObject>();
+				res.put(shape.collection, unused);
+			}
+			for (BasicDBObject idx : getDeclaredIndexes(shape.clazz))
+				if (!isId(idx) && !unused.contains(idx))
+					unused.add(idx);
+		}
+		for (QueryShape shape : shapes.values())
+			if (shape.usedIndex != null)
+				res.get(shape.collection).remove(shape.usedIndex);
+		for (String coll : new ArrayList<String>(res.keySet()))
+			if (res.get(coll).isEmpty())
+				res.remove(coll);
+		return res;
+	}
+
+	/** @return the report of the shapes not served by an index (with the suggested ones) and the unused indexes */
+	public String getReport() {
+		StringBuilder sb = new StringBuilder("Index advisor report: ").append(shapes.size()).append(" query shape(s)\n");
+		for (QueryShape shape : getShapes()) {
+			if (shape.status == Status.INDEXED)
+				continue;
+			sb.append("  ").append(shape.status).append(" ").append(shape).append(" (run ").append(shape.getCount()).append("x");
+			if (shape.explained)
+				sb.append(", explained");
+			sb.append("); suggested index ").append(shape.getSuggestedIndex()).append("\n");
+		}
+		Map<String, List<DBObject>> unused = getUnusedIndexes();
+		for (Map.Entry<String, List<DBObject>> e : unused.entrySet())
+			for (DBObject idx : e.getValue())
+				sb.append("  UNUSED ").append(e.getKey()).append(" ").append(idx).append("\n");
+		return sb.toString();
+	}
+
+	/** Forgets the shapes recorded */
+	public void reset() {
+		shapes.clear();
+		declared.clear();
+	}
+
+	/** @return the {@link #declaredIndexes(Mapper, Class) declared indexes} of the class, cached */
+	public List<BasicDBObject> getDeclaredIndexes(Class<?> clazz) {
+		List<BasicDBObject> idxs = declared.get(clazz);
+		if (idxs == null) {
+			idxs = declaredIndexes(ds.getMapper(), clazz);
+			declared.put(clazz, idxs);
+		}
+		return idxs;
+	}
+
+	/** @return the keys of the indexes declared on the class (and its embedded classes), and the _id index */
+	public static List<BasicDBObject> declaredIndexes(Mapper mapr, Class<?> clazz) {
+		List<BasicDBObject> idxs = new ArrayList<BasicDBObject>();
+		idxs.add(new BasicDBObject(Mapper.ID_KEY, 1));
+		addDeclaredIndexes(mapr, mapr.getMappedClass(clazz), idxs, new ArrayList<MappedClass>(), "");
+		return idxs;
+	}
+
+	/** walks the class like {@link DatastoreImpl#ensureIndexes(MappedClass, boolean)} */
+	private static void addDeclaredIndexes(Mapper mapr, MappedClass mc, List<BasicDBObject> idxs, List<MappedClass> parents, String prefix) {
+		if (mc == null || parents.contains(mc))
+			return;
+		if (parents.isEmpty()) {
+			ArrayList<Annotation> anns = mc.getAnnotations(Indexes.class);
+			if (anns != null)
+				for (Annotation ann : anns)
+					for (Index index : ((Indexes) ann).value())
+						idxs.add(QueryImpl.parseFieldsString(index.value(), mc.getClazz(), mapr, !index.disableValidation()));
+		}
+		for (MappedField mf : mc.getPersistenceFields()) {
+			if (mf.hasAnnotation(Indexed.class))
+				idxs.add(new BasicDBObject(prefix + mf.getNameToStore(), mf.getAnnotation(Indexed.class).value().toIndexValue()));
+			if (!mf.isTypeMongoCompatible() && !mf.hasAnnotation(Reference.class) && !mf.hasAnnotation(Serialized.class)) {
+				List<MappedClass> newParents = new ArrayList<MappedClass>(parents);
+				newParents.add(mc);
+				addDeclaredIndexes(mapr, mapr.getMappedClass(mf.isSingleValue() ? mf.getType() : mf.getSubClass()), idxs, newParents, prefix + mf.getNameToStore() + ".");
+			}
+		}
+	}
+
+	/** sets the status (and the index used) from the declared indexes */
+	private void analyze(QueryShape shape) {
+		boolean filtered = !shape.equalities.isEmpty() || !shape.ranges.isEmpty();
+		boolean sorted = !shape.sort.keySet().isEmpty();
+		if (!filtered && !sorted) {
+			shape.status = Status.INDEXED;
+			return;
+		}
+		BasicDBObject filterIdx = null;
+		for (BasicDBObject idx : getDeclaredIndexes(shape.clazz)) {
+			List<String> keys = new ArrayList<String>(idx.keySet());
+			boolean filters = filtered && (shape.equalities.contains(keys.get(0)) || shape.ranges.contains(keys.get(0)));
+			boolean sorts = !sorted || servesSort(shape, idx, keys);
+			if (filters && sorts || !filtered && sorts) {
+				shape.status = Status.INDEXED;
+				shape.usedIndex = idx;
+				return;
+			}
+			if (filters && filterIdx == null)
+				filterIdx = idx;
+		}
+		shape.status = filterIdx != null ? Status.SORT_IN_MEMORY : Status.UNINDEXED;
+		shape.usedIndex = filterIdx;
+	}
+
+	/** the sort follows the index keys, after any equality keys, all in the same or the reverse direction */
+	private static boolean servesSort(QueryShape shape, BasicDBObject idx, List<String> keys) {
+		int start = 0;
+		while (start < keys.size() && shape.equalities.contains(keys.get(start)))
+			start++;
+		return servesSort(shape.sort, idx, keys, start) || (start > 0 && servesSort(shape.sort, idx, keys, 0));
+	}
+
+	private static boolean servesSort(DBObject sort, BasicDBObject idx, List<String> keys, int start) {
+		int i = start, dir = 0;
+		for (String f : sort.keySet()) {
+			if (i >= keys.size() || !keys.get(i).equals(f) || !(idx.get(f) instanceof Number))
+				return false;
+			int d = ((Number) sort.get(f)).intValue() * (((Number) idx.get(f)).intValue() < 0 ? -1 : 1);
+			if (dir != 0 && d != dir)
+				return false;
+			dir = d;
+			i++;
+		}
+		return true;
+	}
+
+	/** Sets the status of the shape from the plan the server chooses for the query (if it filters or sorts) */
+	public static void explain(QueryShape shape, DBCollection dbColl, DBObject query, DBObject sort) {
+		if (shape.equalities.isEmpty() && shape.ranges.isEmpty() && shape.sort.keySet().isEmpty()) {
+			shape.status = Status.INDEXED;
+			return;
+		}
+		try {
+			DBCursor cursor = dbColl.find(query == null ? new BasicDBObject() : query, new BasicDBObject(Mapper.ID_KEY, 1));
+			if (sort != null)
+				cursor.sort(sort);
+			DBObject plan = cursor.explain();
+			boolean scan, memSort;
+			DBObject planner = (DBObject) plan.get("queryPlanner");
+			if (planner != null) {
+				DBObject winning = (DBObject) planner.get("winningPlan");
+				scan = hasStage(winning, "COLLSCAN");
+				memSort = hasStage(winning, "SORT");
+			} else {
+				Object cursorType = plan.get("cursor");
+				scan = cursorType == null || cursorType.toString().startsWith("BasicCursor");
+				memSort = Boolean.TRUE.equals(plan.get("scanAndOrder"));
+			}
+			shape.status = scan ? Status.UNINDEXED : (memSort ? Status.SORT_IN_MEMORY : Status.INDEXED);
+			shape.explained = true;
+		} catch (MongoException e) {
+			log.warning("Could not explain the query on " + shape.collection + ": " + e.getMessage());
+		}
+	}
+
+	private static boolean hasStage(DBObject plan, String stage) {
+		if (plan == null)
+			return false;
+		if (stage.equals(plan.get("stage")))
+			return true;
+		if (hasStage((DBObject) plan.get("inputStage"), stage))
+			return true;
+		Object inputs = plan.get("inputStages");
+		if (inputs instanceof List)
+			for (Object o : (List<?>) inputs)
+				if (hasStage((DBObject) o, stage))
+					return true;
+		return false;
+	}
+
+	/** sorts the fields of the query by the kind of their conditions */
+	private static void addFields(DBObject query, Set<String> eqs, Set<String> ranges, boolean inOr) {
+		for (String key : query.keySet()) {
+			Object val = query.get(key);
+			if ("$and".equals(key) || "$or".equals(key) || "$nor".equals(key)) {
+				if (val instanceof List)
+					for (Object o : (List<?>) val)
+						if (o instanceof DBObject)
+							addFields((DBObject) o, eqs, ranges, inOr || !"$and".equals(key));
+				continue;
+			}
+			if (key.startsWith("$"))
+				continue;
+			boolean eq = !(val instanceof Pattern);
+			if (val instanceof DBObject && isOperators((DBObject) val))
+				for (String op : ((DBObject) val).keySet())
+					if (!"$in".equals(op) && !"$all".equals(op) && !"$elemMatch".equals(op) && !"$eq".equals(op))
+						eq = false;
+			(eq && !inOr ? eqs : ranges).add(key);
+		}
+	}
+
+	private static boolean isOperators(DBObject val) {
+		for (String k : val.keySet())
+			if (!k.startsWith("$"))
+				return false;
+		return !val.keySet().isEmpty();
+	}
+
+	private static boolean isId(DBObject idx) {
+		return idx.keySet().size() == 1 && idx.containsField(Mapper.ID_KEY);
+	}
+}
@@ -0,0 +1,10 @@
+package com.google.code.morphia;
+
+/**
+ * A change to an entity, applied by {@link Datastore#updateVersioned(Key, Mutation, RetryPolicy)} to a freshly loaded
+ * copy; it may be applied more than once (once per attempt), so it should only depend on the entity passed in.
+ */
+public interface Mutation<T> {
+	/** @return the entity to save (usually the same instance, changed), or null to save nothing */
+	T apply(T entity);
+}
@@ -0,0 +1,330 @@
+package com.google.code.morphia;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.types.ObjectId;
+
+import com.google.code.morphia.logging.Logr;
+import com.google.code.morphia.logging.MorphiaLoggerFactory;
+import com.google.code.morphia.mapping.Mapper;
+import com.google.code.morphia.query.MorphiaIterator;
+import com.google.code.morphia.query.Query;
+import com.google.code.morphia.query.QueryException;
+import com.google.code.morphia.query.QueryImpl;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+/**
+ * <p>
+ * Scans the results of a query with several cursors at once: the query is split into partitions by _id range
+ * (ObjectId time slices, numeric ranges, or the split points of the _id index), and each partition is read (and
+ * its entities mapped and handled) in its own thread, in _id order.
+ * </p>
+ * <p>
+ * The progress of each partition (the last _id handled) is kept; {@link #getCheckpoint()} can be saved at any time
+ * and a scan created from it skips what was done. A failed (or interrupted) scan can be resumed the same way. The
+ * handler is called from several threads at once.
+ * </p>
+ */
+public class ParallelScan<T> {
+	private static final Logr log = MorphiaLoggerFactory.get(ParallelScan.class);
+
+	/** A range of _ids [min, max) (either end may be open), and the last _id handled */
+	public static class Partition {
+		private final Object min;
+		private final Object max;
+		private volatile Object last;
+		private volatile boolean done;
+		private final AtomicLong count = new AtomicLong();
+
+		Partition(Object min, Object max, Object last, boolean done) {
+			this.min = min;
+			this.max = max;
+			this.last = last;
+			this.done = done;
+		}
+
+		public Object getMin() {
+			return min;
+		}
+
+		public Object getMax() {
+			return max;
+		}
+
+		/** @return the last _id handled, or null */
+		public Object getLast() {
+			return last;
+		}
+
+		public boolean isDone() {
+			return done;
+		}
+
+		/** @return the number of entities handled (in this run) */
+		public long getCount() {
+			return count.get();
+		}
+
+		DBObject toDBObject() {
+			BasicDBObject p = new BasicDBObject();
+			p.put("min", min);
+			p.put("max", max);
+			p.put("last", last);
+			p.put("done", done);
+			return p;
+		}
+	}
+
+	private final QueryImpl<T> query;
+	private final List<Partition> partitions;
+	private volatile boolean failed = false;
+
+	/** Splits the query into (up to) the number of partitions */
+	public ParallelScan(Datastore ds, Query<T> query, int partitions) {
+		if (partitions < 1)
+			throw new IllegalArgumentException("partitions must be positive");
+		this.query = check((DatastoreImpl) ds, query);
+		this.partitions = split(partitions);
+	}
+
+	/** Resumes the scan from a checkpoint ({@link #getCheckpoint()}) of the same query */
+	public ParallelScan(Datastore ds, Query<T> query, DBObject checkpoint) {
+		this.query = check((DatastoreImpl) ds, query);
+		this.partitions = new ArrayList<Partition>();
+		for (Object o : (List<?>) checkpoint.get("partitions")) {
+			DBObject p = (DBObject) o;
+			partitions.add(new Partition(p.get("min"), p.get("max"), p.get("last"), Boolean.TRUE.equals(p.get("done"))));
+		}
+	}
+
+	private static <T> QueryImpl<T> check(DatastoreImpl ds, Query<T> query) {
+		QueryImpl<T> q = (QueryImpl<T>) query.clone();
+		if (q.getDatastore() != ds)
+			throw new IllegalArgumentException("The query is not from this datastore");
+		if (q.getSortObject() != null || q.getOffset() > 0 || q.getLimit() > 0)
+			throw new QueryException("A parallel scan can't have a sort, offset or limit");
+		return q;
+	}
+
+	public List<Partition> getPartitions() {
+		return partitions;
+	}
+
+	/** @return the progress of the partitions, to resume with {@link #ParallelScan(Datastore, Query, DBObject)} */
+	public DBObject getCheckpoint() {
+		BasicDBList list = new BasicDBList();
+		for (Partition p : partitions)
+			list.add(p.toDBObject());
+		return new BasicDBObject("partitions", list);
+	}
+
+	/** @return true if all the partitions are done */
+	public boolean isDone() {
+		for (Partition p : partitions)
+			if (!p.done)
+				return false;
+		return true;
+	}
+
+	/**
+	 * Runs the (unfinished) partitions, each in its own thread, and waits for them. When the handler throws, the
+	 * other partitions stop and a QueryException is thrown; the checkpoint keeps the progress.
+	 *
+	 * @return the number of entities handled
+	 */
+	public long run(final EntityHandler<T> handler) {
+		failed = false;
+		final String collName = query.getCollection().getName();
+		ExecutorService executor = Executors.newFixedThreadPool(partitions.size(), new ThreadFactory() {
+			private final AtomicInteger n = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "morphia-scan-" + collName + "-" + n.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		try {
+			for (final Partition p : partitions)
+				if (!p.done)
+					futures.add(executor.submit(new Runnable() {
+						public void run() {
+							scan(p, handler);
+						}
+					}));
+
+			Throwable error = null;
+			for (Future<?> f : futures)
+				try {
+					f.get();
+				} catch (ExecutionException e) {
+					if (error == null)
+						error = e.getCause();
+				} catch (InterruptedException e) {
+					failed = true;
+					Thread.currentThread().interrupt();
+					throw new QueryException("Interrupted during the parallel scan of " + collName, e);
+				}
+			if (error instanceof QueryException)
+				throw (QueryException) error;
+			if (error != null)
+				throw new QueryException("Parallel scan of " + collName + " failed", error);
+		} finally {
+			executor.shutdownNow();
+		}
+
+		long count = 0;
+		for (Partition p : partitions)
+			count += p.count.get();
+		return count;
+	}
+
+	private void scan(Partition p, EntityHandler<T> handler) {
+		QueryImpl<T> q = (QueryImpl<T>) query.clone().disableValidation().order(Mapper.ID_KEY);
+		if (p.last != null)
+			q.filter(Mapper.ID_KEY + " >", p.last);
+		else if (p.min != null)
+			q.filter(Mapper.ID_KEY + " >=", p.min);
+		if (p.max != null)
+			q.filter(Mapper.ID_KEY + " <", p.max);
+
+		MorphiaIterator<T, T> it = (MorphiaIterator<T, T>) q.fetch().iterator();
+		try {
+			while (!failed && it.hasNext()) {
+				T entity = it.next();
+				handler.handle(entity);
+				//as stored, to filter on when resumed
+				p.last = it.getCurrentDocument().get(Mapper.ID_KEY);
+				p.count.incrementAndGet();
+			}
+			if (!failed)
+				p.done = true;
+		} catch (RuntimeException e) {
+			failed = true;
+			throw e;
+		} finally {
+			it.close();
+		}
+	}
+
+	/** Splits the _id range of the query */
+	private List<Partition> split(int n) {
+		List<Partition> res = new ArrayList<Partition>();
+		DBObject queryObj = query.getQueryObject();
+		Object min = n > 1 && !queryObj.containsField(Mapper.ID_KEY) ? boundaryId(queryObj, 1) : null;
+		Object max = min == null ? null : boundaryId(queryObj, -1);
+		if (min == null || max == null || min.equals(max)) {
+			res.add(new Partition(null, null, null, false));
+			return res;
+		}
+
+		List<Object> bounds = new ArrayList<Object>();
+		if (min instanceof ObjectId && max instanceof ObjectId) {
+			long start = ((ObjectId) min).getTime(), end = ((ObjectId) max).getTime();
+			for (int i = 1; i < n; i++)
+				bounds.add(new ObjectId(new Date(start + (end - start) * i / n), 0, 0));
+		} else if (isIntegral(min) && isIntegral(max)) {
+			long start = ((Number) min).longValue(), end = ((Number) max).longValue();
+			for (int i = 1; i < n; i++)
+				bounds.add(start + (end - start) * i / n);
+		} else {
+			bounds = splitPoints(n);
+			if (bounds == null)
+				bounds = stepPoints(queryObj, n);
+		}
+
+		Object lo = null;
+		for (Object b : bounds) {
+			if (lo != null && lo.equals(b))
+				continue;
+			res.add(new Partition(lo, b, null, false));
+			lo = b;
+		}
+		res.add(new Partition(lo, null, null, false));
+		if (log.isDebugEnabled())
+			log.debug("Split the scan of " + query.getCollection().getName() + " into " + res.size() + " partition(s) at " + bounds);
+		return res;
+	}
+
+	/** @return n - 1 of the split points of the _id index (for chunks of 1/n of the data), or null if there are none */
+	private List<Object> splitPoints(int n) {
+		DBCollection dbColl = query.getCollection();
+		try {
+			Object size = dbColl.getStats().get("size");
+			if (!(size instanceof Number) || ((Number) size).longValue() < n)
+				return null;
+			BasicDBObject cmd = new BasicDBObject("splitVector", dbColl.getFullName());
+			cmd.put("keyPattern", new BasicDBObject(Mapper.ID_KEY, 1));
+			cmd.put("maxChunkSizeBytes", ((Number) size).longValue() / n);
+			CommandResult res = dbColl.getDB().command(cmd);
+			if (!res.ok() || !(res.get("splitKeys") instanceof List))
+				return null;
+			List<?> keys = (List<?>) res.get("splitKeys");
+			if (keys.isEmpty())
+				return null;
+			List<Object> bounds = new ArrayList<Object>();
+			for (int i = 1; i < n; i++)
+				bounds.add(((DBObject) keys.get((int) ((long) i * keys.size() / n))).get(Mapper.ID_KEY));
+			return bounds;
+		} catch (MongoException e) {
+			log.debug("Could not get the split points of " + dbColl.getName() + "; stepping through the _ids instead: " + e);
+			return null;
+		}
+	}
+
+	/** @return the _ids 1/n of the results apart, each found by skipping from the one before */
+	private List<Object> stepPoints(DBObject queryObj, int n) {
+		List<Object> bounds = new ArrayList<Object>();
+		long step = Math.min(Integer.MAX_VALUE, query.countAll() / n);
+		if (step < 1)
+			return bounds;
+		DBCollection dbColl = query.getCollection();
+		Object prev = null;
+		for (int i = 1; i < n; i++) {
+			BasicDBObject q = new BasicDBObject(queryObj.toMap());
+			if (prev != null)
+				q.put(Mapper.ID_KEY, new BasicDBObject("$gt", prev));
+			DBCursor c = dbColl.find(q, new BasicDBObject(Mapper.ID_KEY, 1))
+					.sort(new BasicDBObject(Mapper.ID_KEY, 1)).skip((int) step - 1).limit(1);
+			try {
+				if (!c.hasNext())
+					break;
+				prev = c.next().get(Mapper.ID_KEY);
+				bounds.add(prev);
+			} finally {
+				c.close();
+			}
+		}
+		return bounds;
+	}
+
+	private Object boundaryId(DBObject queryObj, int dir) {
+		DBCursor c = query.getCollection().find(queryObj, new BasicDBObject(Mapper.ID_KEY, 1))
+				.sort(new BasicDBObject(Mapper.ID_KEY, dir)).limit(1);
+		try {
+			return c.hasNext() ? c.next().get(Mapper.ID_KEY) : null;
+		} finally {
+			c.close();
+		}
+	}
+
+	private static boolean isIntegral(Object o) {
+		return o instanceof Long || o instanceof Integer;
+	}
+}
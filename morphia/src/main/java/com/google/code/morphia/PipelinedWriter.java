@@ -0,0 +1,228 @@
+package com.google.code.morphia;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.code.morphia.annotations.Version;
+import com.google.code.morphia.logging.Logr;
+import com.google.code.morphia.logging.MorphiaLoggerFactory;
+import com.google.code.morphia.mapping.MappedClass;
+import com.google.code.morphia.mapping.Mapper;
+import com.google.code.morphia.mapping.lazy.proxy.ProxyHelper;
+import com.google.code.morphia.query.UpdateException;
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.WriteConcern;
+
+/**
+ * <p>
+ * Sends saves and inserts without waiting for an acknowledgement ({@link WriteConcern#NORMAL}), and checks them with
+ * a {@code getLastError} checkpoint every {@code checkpointOps} writes or {@code checkpointMillis} ms (checked on each
+ * write), and on {@link #checkpoint()} and {@link #close()}. The writes between two checkpoints form a {@link Window};
+ * when a checkpoint finds an error, the window's documents are looked up to find which writes are missing, and an
+ * {@link UpdateException} is thrown for the window.
+ * </p>
+ * <p>
+ * {@code getLastError} only reports the last write of the window, so an earlier failure (say, a duplicate key) can go
+ * unnoticed; {@link #setVerifyEveryWindow(boolean)} looks up the documents of every window to catch those too.
+ * Versioned (and change-tracked) entities need an acknowledged write for their checks, so the window is checkpointed
+ * before they are saved normally.
+ * </p>
+ * <p>
+ * The writes (and checkpoints) must go over the same connection, so the writer is pinned to the thread which creates
+ * it (see {@link DB#requestStart()}) until it is closed; it is not thread-safe.
+ * </p>
+ */
+public class PipelinedWriter {
+	private static final Logr log = MorphiaLoggerFactory.get(PipelinedWriter.class);
+
+	public static final int DEFAULT_CHECKPOINT_OPS = 1000;
+	public static final long DEFAULT_CHECKPOINT_MILLIS = 1000;
+
+	/** The writes between two checkpoints */
+	public static class Window {
+		private final long firstOp;
+		private final List<Key<?>> keys = new ArrayList<Key<?>>();
+		private final List<DBCollection> colls = new ArrayList<DBCollection>();
+		private String error;
+		private List<Key<?>> missing = Collections.emptyList();
+
+		Window(long firstOp) {
+			this.firstOp = firstOp;
+		}
+
+		/** @return the (0-based) number of the first write in the window, counting all writes of the writer */
+		public long getFirstOp() { return firstOp; }
+		/** @return the keys of the writes in the window, in order */
+		public List<Key<?>> getKeys() { return keys; }
+		/** @return the error reported for the window, if any */
+		public String getError() { return error; }
+		/** @return the keys (of the window) for which no document was found */
+		public List<Key<?>> getMissing() { return missing; }
+		public boolean isFailed() { return error != null || !missing.isEmpty(); }
+
+		@Override
+		public String toString() {
+			return "Window(ops " + firstOp + "-" + (firstOp + keys.size() - 1) + ", error=" + error + ", missing=" + missing + ")";
+		}
+	}
+
+	private final DatastoreImpl ds;
+	private final DB db;
+	private final int checkpointOps;
+	private final long checkpointMillis;
+	private boolean verifyEveryWindow = false;
+
+	private final List<Window> failed = new ArrayList<Window>();
+	private Window window;
+	private long windowStart;
+	private long ops = 0;
+	private boolean closed = false;
+
+	public PipelinedWriter(DatastoreImpl ds, int checkpointOps, long checkpointMillis) {
+		if (checkpointOps < 1 || checkpointMillis < 1)
+			throw new IllegalArgumentException("checkpointOps and checkpointMillis must be positive");
+		this.ds = ds;
+		this.db = ds.getDB();
+		this.checkpointOps = checkpointOps;
+		this.checkpointMillis = checkpointMillis;
+		db.requestStart();
+		newWindow();
+	}
+
+	/** Looks up the documents of every window (not only the failed ones) to find writes which were lost */
+	public PipelinedWriter setVerifyEveryWindow(boolean verifyEveryWindow) {
+		this.verifyEveryWindow = verifyEveryWindow;
+		return this;
+	}
+
+	/** Sends the save; it is checked at the next checkpoint */
+	public <T> Key<T> save(T entity) {
+		entity = ProxyHelper.unwrap(entity);
+		DBCollection dbColl = ds.getCollection(entity);
+		if (needsAck(entity)) {
+			checkpoint();
+			return ds.save(entity);
+		}
+		return written(dbColl, ds.saveNow(dbColl, entity, WriteConcern.NORMAL));
+	}
+
+	/** Sends the insert; it is checked at the next checkpoint */
+	public <T> Key<T> insert(T entity) {
+		entity = ProxyHelper.unwrap(entity);
+		DBCollection dbColl = ds.getCollection(entity);
+		return written(dbColl, ds.insert(dbColl, entity, WriteConcern.NORMAL));
+	}
+
+	/** @return the windows which failed so far */
+	public List<Window> getFailedWindows() {
+		return failed;
+	}
+
+	/** @return the number of writes sent */
+	public long getOpCount() {
+		return ops;
+	}
+
+	/**
+	 * Checks the writes sent since the last checkpoint.
+	 * @throws UpdateException if the window failed (see {@link #getFailedWindows()})
+	 */
+	public Window checkpoint() {
+		Window w = window;
+		newWindow();
+		if (w.keys.isEmpty())
+			return w;
+
+		CommandResult gle = db.getLastError();
+		if (gle != null && gle.getErrorMessage() != null && gle.getErrorMessage().length() > 0)
+			w.error = gle.getErrorMessage();
+		if (w.error != null || verifyEveryWindow)
+			w.missing = findMissing(w);
+
+		if (log.isTraceEnabled())
+			log.trace("Checkpoint: " + w);
+
+		if (w.isFailed()) {
+			failed.add(w);
+			throw new UpdateException("Pipelined writes failed: " + w);
+		}
+		return w;
+	}
+
+	/** Checkpoints the last window and releases the connection */
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			checkpoint();
+		} finally {
+			db.requestDone();
+		}
+	}
+
+	private <T> Key<T> written(DBCollection dbColl, Key<T> key) {
+		window.keys.add(key);
+		window.colls.add(dbColl);
+		ops++;
+		if (window.keys.size() >= checkpointOps || System.currentTimeMillis() - windowStart >= checkpointMillis)
+			checkpoint();
+		return key;
+	}
+
+	private void newWindow() {
+		window = new Window(ops);
+		windowStart = System.currentTimeMillis();
+	}
+
+	private boolean needsAck(Object entity) {
+		MappedClass mc = ds.getMapper().getMappedClass(entity);
+		return !mc.getFieldsAnnotatedWith(Version.class).isEmpty() || ds.isTrackingChanges(entity);
+	}
+
+	/** @return the keys (of the window) for which there is no document */
+	private List<Key<?>> findMissing(Window w) {
+		Map<DBCollection, List<Key<?>>> byColl = new LinkedHashMap<DBCollection, List<Key<?>>>();
+		for (int i = 0; i < w.keys.size(); i++) {
+			Key<?> k = w.keys.get(i);
+			DBCollection dbColl = w.colls.get(i);
+			List<Key<?>> list = byColl.get(dbColl);
+			if (list == null) {
+				list = new ArrayList<Key<?>>();
+				byColl.put(dbColl, list);
+			}
+			list.add(k);
+		}
+
+		List<Key<?>> missing = new ArrayList<Key<?>>();
+		for (Map.Entry<DBCollection, List<Key<?>>> e : byColl.entrySet()) {
+			List<Object> ids = new ArrayList<Object>();
+			for (Key<?> k : e.getValue())
+				ids.add(ds.getMapper().toMongoObject(null, null, k.getId()));
+
+			Set<Object> found = new HashSet<Object>();
+			DBCursor cursor = e.getKey().find(new BasicDBObject(Mapper.ID_KEY, new BasicDBObject("$in", ids)),
+					new BasicDBObject(Mapper.ID_KEY, 1));
+			try {
+				while (cursor.hasNext())
+					found.add(cursor.next().get(Mapper.ID_KEY));
+			} finally {
+				cursor.close();
+			}
+
+			for (int i = 0; i < ids.size(); i++)
+				if (!found.contains(ids.get(i)))
+					missing.add(e.getValue().get(i));
+		}
+		return missing;
+	}
+}
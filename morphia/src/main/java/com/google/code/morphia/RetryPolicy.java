@@ -0,0 +1,75 @@
+package com.google.code.morphia;
+
+import java.util.Random;
+
+/**
+ * <p>
+ * How {@link Datastore#updateVersioned(Key, Mutation, RetryPolicy)} retries on @Version conflicts: up to
+ * {@code maxAttempts} tries, waiting an exponentially growing (capped), randomly jittered delay between them.
+ * </p>
+ * <p>
+ * With {@link #setLockLocally(boolean)}, writers in this process to the same entity are serialized (through striped
+ * locks) so they don't conflict with each other; only writers in other processes can then cause conflicts.
+ * </p>
+ */
+public class RetryPolicy {
+	private static final Random random = new Random();
+
+	private int maxAttempts = 5;
+	private long initialBackoff = 10;
+	private long maxBackoff = 1000;
+	private double multiplier = 2.0;
+	private double jitter = 0.5;
+	private boolean lockLocally = false;
+
+	/** The number of tries, including the first (5 by default) */
+	public RetryPolicy setMaxAttempts(int maxAttempts) {
+		if (maxAttempts < 1)
+			throw new IllegalArgumentException("maxAttempts must be at least 1");
+		this.maxAttempts = maxAttempts;
+		return this;
+	}
+
+	/** The delay (ms) before the first retry (10 by default); later delays are multiplied by the multiplier */
+	public RetryPolicy setBackoff(long initialBackoff, double multiplier, long maxBackoff) {
+		if (initialBackoff < 0 || multiplier < 1 || maxBackoff < initialBackoff)
+			throw new IllegalArgumentException("expected 0 <= initialBackoff <= maxBackoff and multiplier >= 1");
+		this.initialBackoff = initialBackoff;
+		this.multiplier = multiplier;
+		this.maxBackoff = maxBackoff;
+		return this;
+	}
+
+	/** The fraction (0-1) of each delay which is random (0.5 by default) */
+	public RetryPolicy setJitter(double jitter) {
+		if (jitter < 0 || jitter > 1)
+			throw new IllegalArgumentException("jitter must be between 0 and 1");
+		this.jitter = jitter;
+		return this;
+	}
+
+	/** Serialize the writers (in this process) to the same entity (false by default) */
+	public RetryPolicy setLockLocally(boolean lockLocally) {
+		this.lockLocally = lockLocally;
+		return this;
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	public boolean isLockLocally() {
+		return lockLocally;
+	}
+
+	/** @return the delay (ms) before the retry following the given (1-based) failed attempt */
+	public long getBackoff(int attempt) {
+		double delay = initialBackoff * Math.pow(multiplier, attempt - 1);
+		delay = Math.min(delay, maxBackoff);
+		double rand;
+		synchronized (random) {
+			rand = random.nextDouble();
+		}
+		return (long) (delay * (1 - jitter) + delay * jitter * rand);
+	}
+}
@@ -0,0 +1,46 @@
+package com.google.code.morphia;
+
+import com.google.code.morphia.query.Query;
+
+/**
+ * <p>
+ * A unit of work on a {@link Datastore}. All queries created from the session share one identity map, so an entity
+ * (per collection/id) is loaded and mapped once, and every query returns the same instance for it.
+ * </p>
+ * <p>
+ * Saves and deletes are queued and only sent on {@link #flush()}, grouped per collection into as few round trips as
+ * possible; entities referenced (with {@code @Reference}) by other queued entities are written first. Only new
+ * (un-versioned) entities and deletes are batched: each save of an existing entity is still its own round trip, as
+ * the driver has no batch update.
+ * </p>
+ * <p>
+ * A session is meant to be used by a single thread (for a single request, for example) and is not thread-safe.
+ * </p>
+ */
+public interface Session {
+	/** Returns a new query, bound to this session's identity map */
+	<T> Query<T> createQuery(Class<T> clazz);
+
+	/** Finds the entity (by id), checking the identity map before querying; null if deleted in this session */
+	<T, V> T get(Class<T> clazz, V id);
+
+	/** Queues the entity to be saved on the next flush */
+	<T> void save(T entity);
+
+	/** Queues the entity to be deleted (by @Id) on the next flush */
+	<T> void delete(T entity);
+
+	/** @return the number of queued saves and deletes */
+	int getPendingCount();
+
+	/**
+	 * Writes all the queued saves and deletes. Writes that fail do not stop the others; an
+	 * {@link com.google.code.morphia.query.UpdateException} listing them is thrown once all were tried.
+	 */
+	void flush();
+
+	/** Drops the identity map and all queued (unflushed) writes */
+	void clear();
+
+	Datastore getDatastore();
+}
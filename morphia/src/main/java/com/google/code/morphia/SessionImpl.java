@@ -0,0 +1,228 @@
+package com.google.code.morphia;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.code.morphia.annotations.Reference;
+import com.google.code.morphia.logging.Logr;
+import com.google.code.morphia.logging.MorphiaLoggerFactory;
+import com.google.code.morphia.mapping.MappedClass;
+import com.google.code.morphia.mapping.MappedField;
+import com.google.code.morphia.mapping.Mapper;
+import com.google.code.morphia.mapping.MappingException;
+import com.google.code.morphia.mapping.cache.EntityCache;
+import com.google.code.morphia.mapping.lazy.proxy.ProxyHelper;
+import com.google.code.morphia.query.Query;
+import com.google.code.morphia.query.QueryImpl;
+import com.google.code.morphia.query.UpdateException;
+import com.mongodb.WriteConcern;
+
+/**
+ * Default {@link Session}; see {@link Datastore#createSession()}
+ */
+@SuppressWarnings("unchecked")
+public class SessionImpl implements Session {
+	private static final Logr log = MorphiaLoggerFactory.get(SessionImpl.class);
+
+	private final DatastoreImpl ds;
+	private EntityCache cache;
+
+	//queued writes, in order; the maps are (identity) sets for quick lookups
+	private final List<Object> saves = new ArrayList<Object>();
+	private final List<Object> deletes = new ArrayList<Object>();
+	private final Map<Object, Boolean> savesSet = new IdentityHashMap<Object, Boolean>();
+	private final Map<Object, Boolean> deletesSet = new IdentityHashMap<Object, Boolean>();
+	private final Set<Key<?>> deletedKeys = new HashSet<Key<?>>();
+
+	public SessionImpl(DatastoreImpl ds) {
+		this.ds = ds;
+		this.cache = ds.getMapper().createEntityCache();
+	}
+
+	public <T> Query<T> createQuery(Class<T> clazz) {
+		return ((QueryImpl<T>) ds.createQuery(clazz)).setEntityCache(cache);
+	}
+
+	public <T, V> T get(Class<T> clazz, V id) {
+		Key<T> key = new Key<T>(clazz, id);
+		if (deletedKeys.contains(key))
+			return null;
+		T ent = cache.getEntity(key);
+		if (ent != null)
+			return ent;
+		return createQuery(clazz).filter(Mapper.ID_KEY, id).get();
+	}
+
+	public <T> void save(T entity) {
+		entity = ProxyHelper.unwrap(entity);
+		if (deletesSet.remove(entity) != null) {
+			removeIdentity(deletes, entity);
+			deletedKeys.remove(identityKey(entity));
+		}
+		if (savesSet.put(entity, Boolean.TRUE) == null)
+			saves.add(entity);
+	}
+
+	public <T> void delete(T entity) {
+		entity = ProxyHelper.unwrap(entity);
+		if (savesSet.remove(entity) != null)
+			removeIdentity(saves, entity);
+
+		//never saved, so nothing to delete.
+		if (ds.getMapper().getId(entity) == null)
+			return;
+
+		if (deletesSet.put(entity, Boolean.TRUE) == null)
+			deletes.add(entity);
+		deletedKeys.add(identityKey(entity));
+	}
+
+	public int getPendingCount() {
+		return saves.size() + deletes.size();
+	}
+
+	public void flush() {
+		List<BulkWriteResult.Item<Object>> errors = new ArrayList<BulkWriteResult.Item<Object>>();
+
+		for (List<Object> level : orderByReferences(saves)) {
+			Map<WriteConcern, BulkWrite<Object>> bulks = new LinkedHashMap<WriteConcern, BulkWrite<Object>>();
+			for (Object ent : level)
+				bulkFor(bulks, ent).save(ent);
+			for (Map.Entry<WriteConcern, BulkWrite<Object>> e : bulks.entrySet())
+				errors.addAll(e.getValue().execute(e.getKey()).getErrors());
+
+			//saved entities (and their new ids) are part of the identity map now.
+			for (Object ent : level)
+				if (ds.getMapper().getId(ent) != null)
+					cache.putEntity(identityKey(ent), ent);
+		}
+
+		Map<WriteConcern, BulkWrite<Object>> bulks = new LinkedHashMap<WriteConcern, BulkWrite<Object>>();
+		for (Object ent : deletes)
+			bulkFor(bulks, ent).delete(ent);
+		for (Map.Entry<WriteConcern, BulkWrite<Object>> e : bulks.entrySet())
+			errors.addAll(e.getValue().execute(e.getKey()).getErrors());
+
+		if (log.isDebugEnabled())
+			log.debug("Flushed session: " + saves.size() + " saves, " + deletes.size() + " deletes, " + errors.size() + " errors");
+
+		saves.clear();
+		savesSet.clear();
+		deletes.clear();
+		deletesSet.clear();
+
+		if (!errors.isEmpty())
+			throw new UpdateException("Session flush failed for " + errors.size() + " write(s): " + errors, errors.get(0).getError());
+	}
+
+	public void clear() {
+		cache = ds.getMapper().createEntityCache();
+		saves.clear();
+		savesSet.clear();
+		deletes.clear();
+		deletesSet.clear();
+		deletedKeys.clear();
+	}
+
+	public Datastore getDatastore() {
+		return ds;
+	}
+
+	private BulkWrite<Object> bulkFor(Map<WriteConcern, BulkWrite<Object>> bulks, Object ent) {
+		WriteConcern wc = ds.getWriteConcern(ent);
+		BulkWrite<Object> bulk = bulks.get(wc);
+		if (bulk == null) {
+			bulk = ds.createBulkWrite(Object.class, false);
+			bulks.put(wc, bulk);
+		}
+		return bulk;
+	}
+
+	/** The key used by the mapper for the identity map (class + id) */
+	private Key<Object> identityKey(Object ent) {
+		Object id = ds.getMapper().getId(ent);
+		if (id == null)
+			throw new MappingException("Could not get id for " + ent.getClass().getName());
+		return new Key<Object>((Class<Object>) ent.getClass(), id);
+	}
+
+	private static void removeIdentity(List<Object> list, Object ent) {
+		for (int i = 0; i < list.size(); i++)
+			if (list.get(i) == ent) {
+				list.remove(i);
+				return;
+			}
+	}
+
+	/**
+	 * Splits the entities into levels; entities in a level only reference (queued) entities in earlier levels, so
+	 * writing the levels in order means referenced entities have their ids before they are needed. Reference cycles
+	 * are broken arbitrarily.
+	 */
+	private List<List<Object>> orderByReferences(List<Object> entities) {
+		Map<Object, Integer> levels = new IdentityHashMap<Object, Integer>();
+		Map<Object, Boolean> visiting = new IdentityHashMap<Object, Boolean>();
+		int max = 0;
+		for (Object ent : entities)
+			max = Math.max(max, levelOf(ent, levels, visiting));
+
+		List<List<Object>> ordered = new ArrayList<List<Object>>(max + 1);
+		for (int i = 0; i <= max; i++)
+			ordered.add(new ArrayList<Object>());
+		for (Object ent : entities)
+			ordered.get(levels.get(ent)).add(ent);
+		return ordered;
+	}
+
+	private int levelOf(Object ent, Map<Object, Integer> levels, Map<Object, Boolean> visiting) {
+		Integer level = levels.get(ent);
+		if (level != null)
+			return level;
+		if (visiting.containsKey(ent))
+			return 0;
+
+		visiting.put(ent, Boolean.TRUE);
+		int l = 0;
+		for (Object ref : queuedReferences(ent))
+			l = Math.max(l, levelOf(ref, levels, visiting) + 1);
+		visiting.remove(ent);
+
+		levels.put(ent, l);
+		return l;
+	}
+
+	/** @return the entities referenced (@Reference) by the entity which are also queued to be saved */
+	private List<Object> queuedReferences(Object ent) {
+		MappedClass mc = ds.getMapper().getMappedClass(ent);
+		List<Object> refs = new ArrayList<Object>();
+		for (MappedField mf : mc.getPersistenceFields()) {
+			if (!mf.hasAnnotation(Reference.class))
+				continue;
+			Object val = mf.getFieldValue(ent);
+			if (val == null)
+				continue;
+
+			Iterable<?> vals;
+			if (val instanceof Iterable)
+				vals = (Iterable<?>) val;
+			else if (val instanceof Map)
+				vals = ((Map<?, ?>) val).values();
+			else if (val.getClass().isArray() && !val.getClass().getComponentType().isPrimitive())
+				vals = Arrays.asList((Object[]) val);
+			else
+				vals = Collections.singletonList(val);
+
+			for (Object ref : vals)
+				if (ref != null && savesSet.containsKey(ProxyHelper.unwrap(ref)))
+					refs.add(ProxyHelper.unwrap(ref));
+		}
+		return refs;
+	}
+}
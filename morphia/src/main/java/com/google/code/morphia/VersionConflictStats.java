@@ -0,0 +1,40 @@
+package com.google.code.morphia;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts @Version conflicts (and the retries of {@link Datastore#updateVersioned(Key, Mutation, RetryPolicy)}) for an
+ * entity class; see {@link AdvancedDatastore#getVersionConflictStats(Class)}.
+ */
+public class VersionConflictStats {
+	final AtomicLong conflicts = new AtomicLong();
+	final AtomicLong retries = new AtomicLong();
+	final AtomicLong exhausted = new AtomicLong();
+	final AtomicLong updates = new AtomicLong();
+
+	/** @return the number of versioned saves which failed with a conflict */
+	public long getConflicts() {
+		return conflicts.get();
+	}
+
+	/** @return the number of retries done by updateVersioned */
+	public long getRetries() {
+		return retries.get();
+	}
+
+	/** @return the number of updateVersioned calls which gave up (after all attempts conflicted) */
+	public long getExhausted() {
+		return exhausted.get();
+	}
+
+	/** @return the number of updateVersioned calls which succeeded */
+	public long getUpdates() {
+		return updates.get();
+	}
+
+	@Override
+	public String toString() {
+		return "VersionConflictStats(conflicts=" + conflicts + ", retries=" + retries + ", exhausted=" + exhausted
+				+ ", updates=" + updates + ")";
+	}
+}
@@ -0,0 +1,431 @@
+package com.google.code.morphia;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.bson.types.ObjectId;
+
+import com.google.code.morphia.annotations.NotSaved;
+import com.google.code.morphia.annotations.Version;
+import com.google.code.morphia.logging.Logr;
+import com.google.code.morphia.logging.MorphiaLoggerFactory;
+import com.google.code.morphia.mapping.BucketMapper;
+import com.google.code.morphia.mapping.MappedClass;
+import com.google.code.morphia.mapping.Mapper;
+import com.google.code.morphia.mapping.MappingException;
+import com.google.code.morphia.mapping.lazy.proxy.ProxyHelper;
+import com.google.code.morphia.query.UpdateException;
+import com.google.code.morphia.query.UpdateOperator;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+import com.mongodb.WriteResult;
+
+/**
+ * <p>
+ * Buffers saves (and merges) of entities, keyed by collection and id, so that repeated saves of the same entity
+ * replace each other and only the latest state is written. The entity is mapped (and its lifecycle methods run) when
+ * it is buffered; only that document is written later, so the entity can be changed meanwhile. A background thread
+ * writes the buffered documents every {@code flushInterval} ms, or as soon as {@code batchSize} of them are waiting;
+ * when {@code capacity} are waiting, saving threads block until the flusher catches up.
+ * </p>
+ * <p>
+ * New entities (without an id; an ObjectId is given to them when buffered) are sent as one batch insert per
+ * collection; entities with an id are saved (upserted) one by one. Versioned (@Version), tracked, bucketed and
+ * journaled entities are always written directly. Deletes drop the buffered state of the entity, and updates/deletes
+ * by query (and findAndModify) flush the collection first; normal queries may not see buffered writes until they are
+ * flushed.
+ * </p>
+ * <p>
+ * Enabled with {@link AdvancedDatastore#enableWriteBehind(long, int, int, Class...)}. Writes which fail in the
+ * background are logged and retried on the next flushes, up to {@link #MAX_ATTEMPTS} times; then they are dropped
+ * (and counted, see {@link #getDroppedCount()}). This class is thread-safe.
+ * </p>
+ */
+public class WriteBehindBuffer {
+	private static final Logr log = MorphiaLoggerFactory.get(WriteBehindBuffer.class);
+
+	public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+	public static final int DEFAULT_BATCH_SIZE = 500;
+	public static final int DEFAULT_CAPACITY = 10000;
+	/** The number of times a buffered write is tried before it is dropped */
+	public static final int MAX_ATTEMPTS = 5;
+
+	/** The latest state (mapped when buffered) for a key */
+	private static class Pending {
+		final Key<?> key;
+		final DBCollection dbColl;
+		final DBObject dbObj;
+		final WriteConcern wc;
+		final boolean merge;
+		/** not stored yet; sent in the batch insert */
+		final boolean insert;
+		/** the number of failed writes of this state */
+		final int attempts;
+
+		Pending(Key<?> key, DBCollection dbColl, DBObject dbObj, WriteConcern wc, boolean merge, boolean insert) {
+			this(key, dbColl, dbObj, wc, merge, insert, 0);
+		}
+
+		Pending(Key<?> key, DBCollection dbColl, DBObject dbObj, WriteConcern wc, boolean merge, boolean insert, int attempts) {
+			this.key = key;
+			this.dbColl = dbColl;
+			this.dbObj = dbObj;
+			this.wc = wc;
+			this.merge = merge;
+			this.insert = insert;
+			this.attempts = attempts;
+		}
+	}
+
+	private final DatastoreImpl ds;
+	private final long flushInterval;
+	private final int batchSize;
+	private final int capacity;
+	private final Set<Class<?>> classes = new HashSet<Class<?>>();
+
+	private final Map<Key<?>, Pending> pending = new LinkedHashMap<Key<?>, Pending>();
+	/** held while writing, so two flushes never write (different states of) the same key out of order */
+	private final ReentrantLock writeLock = new ReentrantLock();
+
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	private final Thread flusher;
+	private final Thread shutdownHook;
+	private volatile boolean running = true;
+
+	/**
+	 * @param classes the entity classes to buffer; all (unversioned) entities if none are given
+	 */
+	public WriteBehindBuffer(DatastoreImpl ds, long flushInterval, int batchSize, int capacity, Class<?>... classes) {
+		if (flushInterval <= 0 || batchSize <= 0 || capacity < batchSize)
+			throw new IllegalArgumentException("flushInterval and batchSize must be positive, and capacity at least the batchSize");
+		this.ds = ds;
+		this.flushInterval = flushInterval;
+		this.batchSize = batchSize;
+		this.capacity = capacity;
+		for (Class<?> c : classes)
+			this.classes.add(c);
+
+		flusher = new Thread("morphia-write-behind") {
+			@Override
+			public void run() {
+				runFlusher();
+			}
+		};
+		flusher.setDaemon(true);
+		flusher.start();
+
+		shutdownHook = new Thread("morphia-write-behind-shutdown") {
+			@Override
+			public void run() {
+				shutdown();
+			}
+		};
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+
+	/** @return true if saves of the entity are buffered */
+	public boolean isBuffered(Object entity) {
+		if (!running || entity == null)
+			return false;
+		entity = ProxyHelper.unwrap(entity);
+		if (!classes.isEmpty() && !classes.contains(entity.getClass()))
+			return false;
+		MappedClass mc = ds.getMapper().getMappedClass(entity);
+		if (mc.getEntityAnnotation() == null || !mc.getFieldsAnnotatedWith(Version.class).isEmpty() || BucketMapper.of(mc) != null)
+			return false;
+		if (ds.isTrackingChanges(entity) || (ds.journal != null && ds.journal.isJournaled(entity)))
+			return false;
+		return ds.getMapper().getId(entity) != null || ObjectId.class.equals(mc.getMappedIdField().getType());
+	}
+
+	/**
+	 * Maps the entity (giving it an ObjectId if it has no id) and buffers the document, replacing any buffered state for
+	 * it; blocks while the buffer is full.
+	 */
+	@SuppressWarnings("unchecked")
+	<T> Key<T> add(DBCollection dbColl, T entity, WriteConcern wc, boolean merge) {
+		entity = ProxyHelper.unwrap(entity);
+		MappedClass mc = ds.getMapper().getMappedClass(entity);
+		if (mc.getAnnotation(NotSaved.class) != null)
+			throw new MappingException("Entity type: " + mc.getClazz().getName() + " is marked as NotSaved which means you should not try to save it!");
+
+		Object id = ds.getMapper().getId(entity);
+		boolean isNew = id == null;
+		if (isNew && merge)
+			throw new MappingException("Could not get id for " + entity.getClass().getName());
+		if (isNew) {
+			id = new ObjectId();
+			mc.getMappedIdField().setFieldValue(entity, id);
+		}
+		Map<Object, DBObject> involvedObjects = new LinkedHashMap<Object, DBObject>();
+		DBObject dbObj = ds.entityToDBObj(entity, involvedObjects);
+		Key<T> key = new Key<T>(dbColl.getName(), id);
+
+		boolean buffered = false;
+		synchronized (pending) {
+			while (running && pending.size() >= capacity && !pending.containsKey(key)) {
+				pending.notifyAll();
+				try {
+					pending.wait(flushInterval);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new UpdateException("Interrupted while waiting for the write-behind buffer", e);
+				}
+			}
+
+			if (running) {
+				buffered = true;
+				Pending old = pending.get(key);
+				//not stored yet: still an insert, whatever came after. Otherwise a full save covers any merge; only merges of merges stay a merge
+				boolean insert = isNew || (old != null && old.insert);
+				pending.put(key, new Pending(key, dbColl, dbObj, wc, !insert && merge && (old == null || old.merge), insert));
+				if (old != null)
+					coalesced.incrementAndGet();
+				if (pending.size() >= batchSize)
+					pending.notifyAll();
+			}
+		}
+
+		//shut down while waiting; write it directly
+		if (!buffered) {
+			write(new Pending(key, dbColl, dbObj, wc, merge && !isNew, false));
+			written.incrementAndGet();
+		}
+
+		return ds.postSaveGetKey(entity, dbObj, dbColl, involvedObjects);
+	}
+
+	/**
+	 * Drops the buffered state of the entity (with the given id), if any; waits for a flush which is writing it, so that
+	 * write can not bring back the entity after it is deleted.
+	 */
+	void discard(DBCollection dbColl, Object id) {
+		if (id == null)
+			return;
+		writeLock.lock();
+		try {
+			synchronized (pending) {
+				pending.remove(new Key<Object>(dbColl.getName(), id));
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/** Flushes the collection ahead of a write by query; a no-op while flushing (from this thread). */
+	void flushFor(DBCollection dbColl) {
+		if (!writeLock.isHeldByCurrentThread())
+			flush(dbColl.getName());
+	}
+
+	/**
+	 * Writes all the buffered entities; failed writes are kept for the next flush (up to {@link #MAX_ATTEMPTS} times) and
+	 * an UpdateException is thrown.
+	 */
+	public void flush() {
+		flush(null);
+	}
+
+	/** Writes all the buffered entities of the collection (or all of them, if null) */
+	public void flush(String collName) {
+		List<Throwable> errors = new ArrayList<Throwable>();
+		while (writeBatch(collName, errors) > 0)
+			;
+		if (!errors.isEmpty())
+			throw new UpdateException("Write-behind flush failed for " + errors.size() + " write(s): " + errors, errors.get(0));
+	}
+
+	/** @return the number of entities waiting to be written */
+	public int getPendingCount() {
+		synchronized (pending) {
+			return pending.size();
+		}
+	}
+
+	/** @return the number of entities written */
+	public long getWrittenCount() {
+		return written.get();
+	}
+
+	/** @return the number of saves which were replaced by a later save before being written */
+	public long getCoalescedCount() {
+		return coalesced.get();
+	}
+
+	/** @return the number of writes which were dropped after failing {@link #MAX_ATTEMPTS} times */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/** Stops buffering, waits for the background thread, and writes what is still buffered. */
+	public void shutdown() {
+		synchronized (pending) {
+			if (!running)
+				return;
+			running = false;
+			pending.notifyAll();
+		}
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (Thread.currentThread() != shutdownHook)
+			try {
+				Runtime.getRuntime().removeShutdownHook(shutdownHook);
+			} catch (IllegalStateException e) {
+				//already shutting down
+			}
+		flush();
+	}
+
+	private void runFlusher() {
+		while (running) {
+			synchronized (pending) {
+				if (running && pending.size() < batchSize)
+					try {
+						pending.wait(flushInterval);
+					} catch (InterruptedException e) {
+						return;
+					}
+			}
+
+			List<Throwable> errors = new ArrayList<Throwable>();
+			try {
+				while (writeBatch(null, errors) >= batchSize && running)
+					;
+			} catch (RuntimeException e) {
+				log.error("Write-behind flush failed", e);
+			}
+			for (Throwable t : errors)
+				log.error("Write-behind write failed", t);
+		}
+	}
+
+	/** Writes (up to batchSize) buffered entities; returns the number of entities taken from the buffer. */
+	private int writeBatch(String collName, List<Throwable> errors) {
+		writeLock.lock();
+		try {
+			List<Pending> batch = new ArrayList<Pending>();
+			synchronized (pending) {
+				Iterator<Pending> it = pending.values().iterator();
+				while (it.hasNext() && batch.size() < batchSize) {
+					Pending p = it.next();
+					if (collName != null && !collName.equals(p.dbColl.getName()))
+						continue;
+					batch.add(p);
+					it.remove();
+				}
+				//make room for blocked savers
+				pending.notifyAll();
+			}
+
+			List<Pending> failed = new ArrayList<Pending>();
+			//the new ones in one insert per collection (and write concern), the others one by one
+			Map<String, List<Pending>> inserts = new LinkedHashMap<String, List<Pending>>();
+			for (Pending p : batch) {
+				if (p.insert) {
+					String group = p.dbColl.getName() + "/" + p.wc;
+					List<Pending> l = inserts.get(group);
+					if (l == null)
+						inserts.put(group, l = new ArrayList<Pending>());
+					l.add(p);
+					continue;
+				}
+				try {
+					write(p);
+					written.incrementAndGet();
+				} catch (RuntimeException ex) {
+					errors.add(ex);
+					failed.add(p);
+				}
+			}
+			for (List<Pending> l : inserts.values())
+				insert(l, errors, failed);
+
+			//keep failed writes, unless a newer state was buffered meanwhile or they failed too often; as saves, as they may be stored already
+			if (!failed.isEmpty())
+				synchronized (pending) {
+					for (Pending p : failed) {
+						if (pending.containsKey(p.key))
+							continue;
+						if (p.attempts + 1 >= MAX_ATTEMPTS) {
+							dropped.incrementAndGet();
+							log.error("Write-behind gave up on " + p.key + " after " + MAX_ATTEMPTS + " failed attempts; it is not written");
+							continue;
+						}
+						pending.put(p.key, new Pending(p.key, p.dbColl, p.dbObj, p.wc, p.merge, false, p.attempts + 1));
+					}
+				}
+
+			if (log.isTraceEnabled())
+				log.trace("Write-behind wrote " + (batch.size() - failed.size()) + " of " + batch.size() + " entities");
+			return failed.size() == batch.size() ? 0 : batch.size();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/** Sends the documents in one insert; if it fails, saves them one by one (replacing the ones it stored) */
+	private void insert(List<Pending> batch, List<Throwable> errors, List<Pending> failed) {
+		Pending first = batch.get(0);
+		List<DBObject> dbObjs = new ArrayList<DBObject>(batch.size());
+		for (Pending p : batch)
+			dbObjs.add(p.dbObj);
+		long start = ds.throttle(first.dbColl, dbObjs.size());
+		try {
+			WriteResult wr = first.wc == null ? first.dbColl.insert(dbObjs) : first.dbColl.insert(dbObjs, first.wc.continueOnErrorForInsert(true));
+			ds.throwOnError(first.wc, wr);
+			written.addAndGet(batch.size());
+			return;
+		} catch (RuntimeException e) {
+			if (log.isDebugEnabled())
+				log.debug("Write-behind insert of " + batch.size() + " documents failed; saving them one by one", e);
+		} finally {
+			ds.throttled(first.dbColl, start);
+		}
+		for (Pending p : batch) {
+			try {
+				write(p);
+				written.incrementAndGet();
+			} catch (RuntimeException ex) {
+				errors.add(ex);
+				failed.add(p);
+			}
+		}
+	}
+
+	/** Saves (upserts) the document, or $sets its fields if a merge */
+	private void write(Pending p) {
+		WriteResult wr;
+		long start = ds.throttle(p.dbColl, 1);
+		try {
+			if (p.merge) {
+				BasicDBObject fields = new BasicDBObject(p.dbObj.toMap());
+				fields.removeField(Mapper.ID_KEY);
+				DBObject q = new BasicDBObject(Mapper.ID_KEY, p.key.getId());
+				DBObject u = new BasicDBObject(UpdateOperator.SET.val(), fields);
+				wr = p.wc == null ? p.dbColl.update(q, u) : p.dbColl.update(q, u, false, false, p.wc);
+			} else {
+				wr = p.wc == null ? p.dbColl.save(p.dbObj) : p.dbColl.save(p.dbObj, p.wc);
+			}
+		} finally {
+			ds.throttled(p.dbColl, start);
+		}
+		ds.throwOnError(p.wc, wr);
+		if (p.merge && wr.getCachedLastError() != null && wr.getN() == 0)
+			throw new UpdateException("Not updated (merge of " + p.key + "): " + wr.getCachedLastError());
+	}
+}
@@ -0,0 +1,599 @@
+package com.google.code.morphia;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.bson.types.ObjectId;
+
+import com.google.code.morphia.annotations.Version;
+import com.google.code.morphia.logging.Logr;
+import com.google.code.morphia.logging.MorphiaLoggerFactory;
+import com.google.code.morphia.mapping.MappedClass;
+import com.google.code.morphia.mapping.Mapper;
+import com.google.code.morphia.mapping.lazy.proxy.ProxyHelper;
+import com.google.code.morphia.query.Query;
+import com.google.code.morphia.query.QueryException;
+import com.google.code.morphia.query.QueryImpl;
+import com.google.code.morphia.query.UpdateException;
+import com.google.code.morphia.query.UpdateOperations;
+import com.google.code.morphia.query.UpdateOpsImpl;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.DefaultDBEncoder;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+import com.mongodb.WriteResult;
+
+/**
+ * <p>
+ * A local, append-only journal (a memory-mapped file) of writes. Saves and inserts of the journaled classes, and the
+ * updates/deletes sent with {@link #update(Query, UpdateOperations, boolean, boolean)} and {@link #delete(Query)}, are
+ * encoded and appended to the file, and return right away; a background thread replays them to the database, in order,
+ * batching consecutive inserts. While the database is unreachable (or the primary is stepping down) the writes are
+ * kept and retried; writes which fail otherwise (like a bad update) are logged, counted and skipped.
+ * </p>
+ * <p>
+ * Writes still in the journal survive a restart; they are replayed when the journal is opened again. How much can be
+ * lost in a crash of the machine depends on the {@link Sync} policy. When the file is full, writers wait for the
+ * replay to make room.
+ * </p>
+ * <p>
+ * Only the given classes (without a @Version) are journaled, and not the entities tracking changes; missing ObjectIds
+ * are generated on the client. The lifecycle methods (@PostPersist, ...) run when the write is journaled. The other
+ * writes of a journaled class (updates/deletes through the Datastore, findAndModify, bulk writes) have results, so they
+ * wait for the journal to be replayed first. Normal queries may not see journaled writes until then.
+ * Enabled with {@link AdvancedDatastore#enableJournal(File, int, Sync, Class...)}. This class is thread-safe.
+ * </p>
+ */
+public class WriteJournal {
+	private static final Logr log = MorphiaLoggerFactory.get(WriteJournal.class);
+
+	/** When the journal file is forced to disk */
+	public enum Sync {
+		/** left to the OS; survives a crash of the process, but not of the machine */
+		NEVER,
+		/** at most every syncInterval ms */
+		INTERVAL,
+		/** after every write; the record is forced before the header pointing to it */
+		ALWAYS
+	}
+
+	public static final int DEFAULT_SIZE = 64 * 1024 * 1024;
+	public static final long DEFAULT_SYNC_INTERVAL = 100;
+	public static final int DEFAULT_REPLAY_BATCH_SIZE = 500;
+
+	/** the header holds the write (head) and replay (tail) positions */
+	private static final int HEADER = 16;
+	private static final long MAX_BACKOFF = 5000;
+	/** not master, node is recovering, ... */
+	private static final int[] TRANSIENT_CODES = {10054, 10056, 10058, 10107, 13435, 13436};
+
+	private static final String OP = "op", NS = "ns", O = "o", Q = "q", UPSERT = "upsert", MULTI = "multi";
+	private static final String INSERT = "i", SAVE = "s", UPDATE = "u", REMOVE = "r";
+
+	/** A decoded write, and its size in the journal */
+	private static class Record {
+		final DBObject op;
+		final int size;
+
+		Record(DBObject op, int size) {
+			this.op = op;
+			this.size = size;
+		}
+	}
+
+	private final DatastoreImpl ds;
+	private final File file;
+	private final RandomAccessFile raf;
+	private final MappedByteBuffer buf;
+	private final int capacity;
+	private final Sync sync;
+	private final Set<Class<?>> classes = new HashSet<Class<?>>();
+	private volatile long syncInterval = DEFAULT_SYNC_INTERVAL;
+	private volatile int replayBatchSize = DEFAULT_REPLAY_BATCH_SIZE;
+	private volatile WriteConcern wc = WriteConcern.SAFE;
+
+	/** guards the buffer and the positions */
+	private final Object lock = new Object();
+	private int head;
+	private int tail;
+	private int pendingRecords;
+	private long lastSync = System.currentTimeMillis();
+	/** held while replaying, so the writes are applied once, in order */
+	private final ReentrantLock replayLock = new ReentrantLock();
+
+	private final AtomicLong appended = new AtomicLong();
+	private final AtomicLong replayed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+
+	private final Thread replayer;
+	private final Thread shutdownHook;
+	private volatile boolean running = true;
+
+	/**
+	 * Opens (or creates) the journal file, of at least maxSize bytes; the writes left in it are replayed.
+	 * @param classes the entity classes whose saves are journaled
+	 */
+	public WriteJournal(DatastoreImpl ds, File file, int maxSize, Sync sync, Class<?>... classes) {
+		if (maxSize <= HEADER || sync == null)
+			throw new IllegalArgumentException("maxSize must be more than " + HEADER + " bytes, and sync not null");
+		for (Class<?> c : classes) {
+			MappedClass mc = ds.getMapper().getMappedClass(c);
+			if (mc.getEntityAnnotation() == null || !mc.getFieldsAnnotatedWith(Version.class).isEmpty())
+				throw new IllegalArgumentException(c.getName() + " can't be journaled; it is not an @Entity, or has a @Version");
+			this.classes.add(c);
+		}
+		this.ds = ds;
+		this.file = file;
+		this.sync = sync;
+		try {
+			raf = new RandomAccessFile(file, "rw");
+			capacity = (int) Math.max(maxSize, Math.min(raf.length(), Integer.MAX_VALUE));
+			buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+		} catch (IOException e) {
+			throw new UpdateException("Could not open the write journal " + file, e);
+		}
+
+		head = (int) buf.getLong(0);
+		tail = (int) buf.getLong(8);
+		if (head < HEADER || head > capacity || tail < HEADER || tail > head) {
+			head = tail = HEADER;
+			writeHeader();
+		}
+		//count (and check) the writes left from the last run
+		int pos = tail;
+		while (pos < head) {
+			int len = buf.getInt(pos);
+			if (len <= 0 || pos + 4 + len > head) {
+				log.error("Write journal " + file + " is corrupt at " + pos + "; dropping the " + (head - pos) + " bytes after it");
+				head = pos;
+				writeHeader();
+				break;
+			}
+			pos += 4 + len;
+			pendingRecords++;
+		}
+		if (pendingRecords > 0)
+			log.info("Replaying " + pendingRecords + " write(s) left in the journal " + file);
+
+		replayer = new Thread("morphia-write-journal") {
+			@Override
+			public void run() {
+				runReplayer();
+			}
+		};
+		replayer.setDaemon(true);
+		replayer.start();
+
+		shutdownHook = new Thread("morphia-write-journal-shutdown") {
+			@Override
+			public void run() {
+				close();
+			}
+		};
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+
+	/** The write concern the writes are replayed with (SAFE by default); it should report errors */
+	public WriteJournal setWriteConcern(WriteConcern wc) {
+		this.wc = wc;
+		return this;
+	}
+
+	/** How often (ms) the file is forced to disk with {@link Sync#INTERVAL} */
+	public WriteJournal setSyncInterval(long syncInterval) {
+		this.syncInterval = syncInterval;
+		return this;
+	}
+
+	/** The maximum number of writes replayed (and inserts batched) at once */
+	public WriteJournal setReplayBatchSize(int replayBatchSize) {
+		if (replayBatchSize < 1)
+			throw new IllegalArgumentException("replayBatchSize must be positive");
+		this.replayBatchSize = replayBatchSize;
+		return this;
+	}
+
+	/** @return true if saves of the entity are journaled */
+	public boolean isJournaled(Object entity) {
+		if (!running || entity == null)
+			return false;
+		entity = ProxyHelper.unwrap(entity);
+		return classes.contains(entity.getClass()) && !ds.isTrackingChanges(entity);
+	}
+
+	/** @return true if saves of the class are journaled (so its other writes wait for the journal) */
+	public boolean isJournaled(Class<?> clazz) {
+		return running && classes.contains(clazz);
+	}
+
+	/** Journals a save (or insert) of the entity */
+	<T> Key<T> add(DBCollection dbColl, T entity, boolean insert) {
+		Map<Object, DBObject> involvedObjects = new LinkedHashMap<Object, DBObject>();
+		DBObject dbObj = ds.entityToDBObj(entity, involvedObjects);
+		if (dbObj.get(Mapper.ID_KEY) == null)
+			dbObj.put(Mapper.ID_KEY, new ObjectId());
+
+		BasicDBObject op = new BasicDBObject(OP, insert ? INSERT : SAVE);
+		op.put(NS, dbColl.getName());
+		op.put(O, dbObj);
+		append(op);
+		return ds.postSaveGetKey(entity, dbObj, dbColl, involvedObjects);
+	}
+
+	/**
+	 * Journals an update of the entities matching the query; it is replayed in order with the journaled saves. There is
+	 * no result (nor an error, if it fails when replayed); use {@link Datastore#update(Query, UpdateOperations)} for one.
+	 */
+	@SuppressWarnings("rawtypes")
+	public <T> void update(Query<T> query, UpdateOperations<T> ops, boolean upsert, boolean multi) {
+		QueryImpl<T> qi = (QueryImpl<T>) query;
+		if (qi.getSortObject() != null || qi.getOffset() > 0 || qi.getLimit() > 0)
+			throw new QueryException("sort/offset/limit are not allowed for updates.");
+		DBObject q = qi.getQueryObject() == null ? new BasicDBObject() : new BasicDBObject(qi.getQueryObject().toMap());
+		if (((UpdateOpsImpl) ops).isIsolated())
+			q.put("$atomic", true);
+		update(collection(qi).getName(), q, ((UpdateOpsImpl) ops).getOps(), upsert, multi);
+	}
+
+	/**
+	 * Journals a delete of the entities matching the query; it is replayed in order with the journaled saves. There is
+	 * no result (nor an error, if it fails when replayed); use {@link Datastore#delete(Query)} for one.
+	 */
+	public <T> void delete(Query<T> query) {
+		QueryImpl<T> qi = (QueryImpl<T>) query;
+		if (qi.getSortObject() != null || qi.getOffset() != 0 || qi.getLimit() > 0)
+			throw new QueryException("Delete does not allow sort/offset/limit query options.");
+		remove(collection(qi).getName(), qi.getQueryObject() == null ? new BasicDBObject() : qi.getQueryObject());
+	}
+
+	private DBCollection collection(QueryImpl<?> qi) {
+		return qi.getCollection() != null ? qi.getCollection() : ds.getCollection(qi.getEntityClass());
+	}
+
+	/** Journals an update of the collection; see {@link #update(Query, UpdateOperations, boolean, boolean)} */
+	public void update(String collName, DBObject query, DBObject update, boolean upsert, boolean multi) {
+		BasicDBObject op = new BasicDBObject(OP, UPDATE);
+		op.put(NS, collName);
+		op.put(Q, query);
+		op.put(O, update);
+		op.put(UPSERT, upsert);
+		op.put(MULTI, multi);
+		append(op);
+	}
+
+	/** Journals a remove from the collection; see {@link #delete(Query)} */
+	public void remove(String collName, DBObject query) {
+		BasicDBObject op = new BasicDBObject(OP, REMOVE);
+		op.put(NS, collName);
+		op.put(Q, query);
+		append(op);
+	}
+
+	/** @return the number of writes appended */
+	public long getAppended() {
+		return appended.get();
+	}
+
+	/** @return the number of writes replayed to the database */
+	public long getReplayed() {
+		return replayed.get();
+	}
+
+	/** @return the number of writes which failed (and were skipped) */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/** @return the number of replays retried because the database was unreachable */
+	public long getRetries() {
+		return retries.get();
+	}
+
+	/** @return the number of batches replayed */
+	public long getBatches() {
+		return batches.get();
+	}
+
+	/** @return the number of writes waiting to be replayed */
+	public int getPendingCount() {
+		synchronized (lock) {
+			return pendingRecords;
+		}
+	}
+
+	/** @return the number of bytes waiting to be replayed */
+	public int getPendingBytes() {
+		synchronized (lock) {
+			return head - tail;
+		}
+	}
+
+	/** @return the size of the journal file */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/** Replays all the journaled writes (in the calling thread); throws an UpdateException if the database is unreachable */
+	public void drain() {
+		replayLock.lock();
+		try {
+			while (replayBatch() > 0)
+				;
+		} finally {
+			replayLock.unlock();
+		}
+	}
+
+	/** Stops journaling; the writes which can't be replayed now are kept in the file for the next run */
+	public void close() {
+		synchronized (lock) {
+			if (!running)
+				return;
+			running = false;
+			lock.notifyAll();
+		}
+		try {
+			replayer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (Thread.currentThread() != shutdownHook)
+			try {
+				Runtime.getRuntime().removeShutdownHook(shutdownHook);
+			} catch (IllegalStateException e) {
+				//already shutting down
+			}
+		try {
+			drain();
+		} catch (RuntimeException e) {
+			log.warning("Closing the write journal " + file + " with " + getPendingCount() + " write(s) left: " + e);
+		}
+		synchronized (lock) {
+			forceHeader();
+		}
+		try {
+			raf.close();
+		} catch (IOException e) {
+			log.warning("Closing the write journal " + file + " failed: " + e);
+		}
+	}
+
+	private void append(DBObject op) {
+		byte[] bytes = new DefaultDBEncoder().encode(op);
+		int size = 4 + bytes.length;
+		if (size > capacity - HEADER)
+			throw new UpdateException("Write of " + bytes.length + " bytes is too large for the journal " + file);
+
+		synchronized (lock) {
+			while (running && head + size > capacity) {
+				lock.notifyAll();
+				try {
+					lock.wait(100);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new UpdateException("Interrupted while waiting for room in the write journal", e);
+				}
+			}
+			if (!running)
+				throw new UpdateException("The write journal " + file + " is closed");
+
+			buf.putInt(head, bytes.length);
+			ByteBuffer dup = buf.duplicate();
+			dup.position(head + 4);
+			dup.put(bytes);
+			head += size;
+			pendingRecords++;
+
+			long now = System.currentTimeMillis();
+			if (sync == Sync.ALWAYS || (sync == Sync.INTERVAL && now - lastSync >= syncInterval)) {
+				forceHeader();
+				lastSync = now;
+			} else
+				writeHeader();
+			lock.notifyAll();
+		}
+		appended.incrementAndGet();
+	}
+
+	private void writeHeader() {
+		buf.putLong(0, head);
+		buf.putLong(8, tail);
+	}
+
+	/** Forces the records to disk, and only then the header pointing to them */
+	private void forceHeader() {
+		buf.force();
+		writeHeader();
+		buf.force();
+	}
+
+	private void runReplayer() {
+		long backoff = 0;
+		while (running) {
+			synchronized (lock) {
+				if (running && head == tail)
+					try {
+						lock.wait(syncInterval);
+					} catch (InterruptedException e) {
+						return;
+					}
+				if (sync == Sync.INTERVAL && System.currentTimeMillis() - lastSync >= syncInterval) {
+					forceHeader();
+					lastSync = System.currentTimeMillis();
+				}
+			}
+			try {
+				drain();
+				backoff = 0;
+			} catch (RuntimeException e) {
+				retries.incrementAndGet();
+				backoff = Math.min(MAX_BACKOFF, Math.max(10, backoff * 2));
+				log.warning("Replaying the write journal failed (retrying in " + backoff + "ms): " + e);
+				try {
+					Thread.sleep(backoff);
+				} catch (InterruptedException ie) {
+					return;
+				}
+			}
+		}
+	}
+
+	/** Replays up to replayBatchSize writes; returns the number replayed */
+	private int replayBatch() {
+		List<Record> records = read();
+		int i = 0;
+		while (i < records.size()) {
+			Record r = records.get(i);
+			int j = i + 1;
+			if (INSERT.equals(r.op.get(OP)))
+				while (j < records.size() && INSERT.equals(records.get(j).op.get(OP)) && r.op.get(NS).equals(records.get(j).op.get(NS)))
+					j++;
+			List<Record> group = records.subList(i, j);
+			if (group.size() > 1)
+				insertAll(group);
+			else
+				apply(r);
+
+			int bytes = 0;
+			for (Record g : group)
+				bytes += g.size;
+			advance(bytes, group.size());
+			replayed.addAndGet(group.size());
+			i = j;
+		}
+		if (!records.isEmpty())
+			batches.incrementAndGet();
+		return records.size();
+	}
+
+	private List<Record> read() {
+		List<Record> records = new ArrayList<Record>();
+		synchronized (lock) {
+			ByteBuffer dup = buf.duplicate();
+			int pos = tail;
+			while (pos < head && records.size() < replayBatchSize) {
+				int len = buf.getInt(pos);
+				byte[] bytes = new byte[len];
+				dup.position(pos + 4);
+				dup.get(bytes);
+				records.add(new Record(new DefaultDBDecoder().decode(bytes, (DBCollection) null), 4 + len));
+				pos += 4 + len;
+			}
+		}
+		return records;
+	}
+
+	/** Drops the replayed writes; the rest are moved to the start of the file once the replay is half way through */
+	private void advance(int bytes, int count) {
+		synchronized (lock) {
+			tail += bytes;
+			pendingRecords -= count;
+			if (tail == head)
+				head = tail = HEADER;
+			else if (tail - HEADER > (capacity - HEADER) / 2) {
+				//the pending bytes fit before the old tail, so they don't overlap
+				ByteBuffer src = buf.duplicate();
+				src.position(tail);
+				src.limit(head);
+				ByteBuffer dst = buf.duplicate();
+				dst.position(HEADER);
+				dst.put(src);
+				head = HEADER + (head - tail);
+				tail = HEADER;
+			}
+			if (sync == Sync.ALWAYS)
+				forceHeader();
+			else
+				writeHeader();
+			lock.notifyAll();
+		}
+	}
+
+	private void insertAll(List<Record> group) {
+		DBCollection dbColl = ds.getDB().getCollection((String) group.get(0).op.get(NS));
+		List<DBObject> dbObjs = new ArrayList<DBObject>(group.size());
+		for (Record r : group)
+			dbObjs.add((DBObject) r.op.get(O));
+		try {
+			long start = ds.throttle(dbColl, dbObjs.size());
+			WriteResult wr = dbColl.insert(dbObjs, wc);
+			ds.throttled(dbColl, start);
+			ds.throwOnError(wc, wr);
+		} catch (MongoException e) {
+			if (isTransient(e))
+				throw e;
+			//find the bad one(s)
+			for (Record r : group)
+				apply(r);
+		}
+	}
+
+	private void apply(Record r) {
+		DBObject op = r.op;
+		DBCollection dbColl = ds.getDB().getCollection((String) op.get(NS));
+		String type = (String) op.get(OP);
+		try {
+			long start = ds.throttle(dbColl, 1);
+			WriteResult wr;
+			if (INSERT.equals(type))
+				wr = dbColl.insert((DBObject) op.get(O), wc);
+			else if (SAVE.equals(type))
+				wr = dbColl.save((DBObject) op.get(O), wc);
+			else if (UPDATE.equals(type))
+				wr = dbColl.update((DBObject) op.get(Q), (DBObject) op.get(O), Boolean.TRUE.equals(op.get(UPSERT)),
+						Boolean.TRUE.equals(op.get(MULTI)), wc);
+			else
+				wr = dbColl.remove((DBObject) op.get(Q), wc);
+			ds.throttled(dbColl, start);
+			ds.throwOnError(wc, wr);
+		} catch (MongoException.DuplicateKey e) {
+			//already inserted (by a batch which failed part way), or a real conflict
+			if (!INSERT.equals(type) || !isStored(dbColl, (DBObject) op.get(O)))
+				failed(op, e);
+		} catch (MongoException e) {
+			if (isTransient(e))
+				throw e;
+			failed(op, e);
+		}
+	}
+
+	/** @return true if the document is stored as it is (with the same _id and content) */
+	private static boolean isStored(DBCollection dbColl, DBObject dbObj) {
+		Object id = dbObj.get(Mapper.ID_KEY);
+		DBObject stored = id == null ? null : dbColl.findOne(new BasicDBObject(Mapper.ID_KEY, id));
+		DefaultDBEncoder encoder = new DefaultDBEncoder();
+		return stored != null && Arrays.equals(encoder.encode(stored), encoder.encode(dbObj));
+	}
+
+	private void failed(DBObject op, MongoException e) {
+		failed.incrementAndGet();
+		log.error("Skipping journaled write which failed: " + op, e);
+	}
+
+	private static boolean isTransient(MongoException e) {
+		if (e instanceof MongoException.Network)
+			return true;
+		for (int code : TRANSIENT_CODES)
+			if (e.getCode() == code)
+				return true;
+		return false;
+	}
+}
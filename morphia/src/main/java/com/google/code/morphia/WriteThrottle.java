@@ -0,0 +1,114 @@
+package com.google.code.morphia;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.code.morphia.query.UpdateException;
+
+/**
+ * <p>
+ * A token bucket limiting the writes to a collection to {@code rate} per second (with bursts of up to {@code burst});
+ * writers wait for their turn. See {@link AdvancedDatastore#setWriteThrottle(Class, WriteThrottle)}.
+ * </p>
+ * <p>
+ * With a target latency ({@link #setTargetLatency(long)}) the rate adapts: when the average write latency goes above
+ * the target the rate is cut (down to the minimum rate), and while it stays below it the rate creeps back up to the
+ * configured rate. This class is thread-safe.
+ * </p>
+ */
+public class WriteThrottle {
+	/** how often (ns) the adaptive rate is adjusted */
+	private static final long ADJUST_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+	private final double maxRate;
+	private final double burst;
+	private double rate;
+	private double minRate;
+	private double tokens;
+	private long last = System.nanoTime();
+
+	private long targetLatency = 0;
+	private double avgLatency = 0;
+	private long lastAdjust = System.nanoTime();
+
+	/** Allows ratePerSecond writes per second, with bursts of up to a second's worth */
+	public WriteThrottle(double ratePerSecond) {
+		this(ratePerSecond, ratePerSecond);
+	}
+
+	public WriteThrottle(double ratePerSecond, double burst) {
+		if (ratePerSecond <= 0 || burst < 1)
+			throw new IllegalArgumentException("ratePerSecond must be positive and burst at least 1");
+		this.maxRate = ratePerSecond;
+		this.rate = ratePerSecond;
+		this.minRate = Math.min(1, ratePerSecond);
+		this.burst = burst;
+		this.tokens = burst;
+	}
+
+	/** Adapts the rate to keep the average write latency below the target (ms); 0 turns it off */
+	public synchronized WriteThrottle setTargetLatency(long millis) {
+		this.targetLatency = TimeUnit.MILLISECONDS.toNanos(millis);
+		if (millis <= 0)
+			rate = maxRate;
+		return this;
+	}
+
+	/** The lowest rate the adaptive mode cuts down to (1/s by default) */
+	public synchronized WriteThrottle setMinRate(double minRate) {
+		if (minRate <= 0 || minRate > maxRate)
+			throw new IllegalArgumentException("minRate must be positive and at most the rate");
+		this.minRate = minRate;
+		return this;
+	}
+
+	/** @return the current rate (writes per second) */
+	public synchronized double getRate() {
+		return rate;
+	}
+
+	/** @return the (moving) average write latency, in ms */
+	public synchronized double getAverageLatency() {
+		return avgLatency / 1000000d;
+	}
+
+	/** Waits until the writes are allowed */
+	public void acquire(int writes) {
+		long wait;
+		synchronized (this) {
+			refill();
+			tokens -= writes;
+			wait = tokens < 0 ? (long) (-tokens / rate * 1000000000d) : 0;
+		}
+		if (wait > 0)
+			try {
+				TimeUnit.NANOSECONDS.sleep(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new UpdateException("Interrupted while waiting for the write throttle", e);
+			}
+	}
+
+	/** Records the latency (ns) of a write, adapting the rate if there is a target latency */
+	public synchronized void record(long latency) {
+		avgLatency = (avgLatency == 0) ? latency : avgLatency * 0.8 + latency * 0.2;
+		if (targetLatency <= 0)
+			return;
+
+		long now = System.nanoTime();
+		if (now - lastAdjust < ADJUST_INTERVAL)
+			return;
+		lastAdjust = now;
+
+		refill();
+		if (avgLatency > targetLatency)
+			rate = Math.max(minRate, rate * 0.7);
+		else
+			rate = Math.min(maxRate, rate + maxRate * 0.05);
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(burst, tokens + (now - last) / 1000000000d * rate);
+		last = now;
+	}
+}
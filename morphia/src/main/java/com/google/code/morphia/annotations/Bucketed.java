@@ -0,0 +1,34 @@
+package com.google.code.morphia.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * <p>
+ * Stores the entities (samples/measurements) of the class grouped in bucket documents, instead of one document each:
+ * {@code {by: <value of the by field>, start: <bucket start>, n: <count>, samples: [...]}}. A bucket holds up to
+ * {@code maxSize} samples with the same {@code by} value, and (if a {@code time} field is given) from the same
+ * {@code interval}. Saves append (with {@code $push} upserts) to the current bucket.
+ * </p>
+ * <p>
+ * Queries on the class are run against the buckets (conditions on the by and time fields narrow down the buckets)
+ * and the matching samples are unwound on the client. Only plain conditions ($gt, $in, $exists, ...) and sorting on
+ * the time field are supported; samples can't be updated or deleted individually.
+ * </p>
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+@Inherited
+public @interface Bucketed {
+	/** The (java) field to group by, like a sensor id */
+	String by();
+	/** The (java) field with the time of the sample (a Date or a number of ms); optional */
+	String time() default "";
+	/** The time span (ms) of a bucket; used with {@link #time()} */
+	long interval() default 60 * 60 * 1000;
+	/** The maximum number of samples in a bucket */
+	int maxSize() default 1000;
+}
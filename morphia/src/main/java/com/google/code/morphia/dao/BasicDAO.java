@@ -196,7 +196,7 @@ public class BasicDAO<T, K> implements DAO<T, K> {
 	 * @see com.google.code.morphia.DAO#exists(com.google.code.morphia.query.Query)
 	 */
 	public boolean exists(Query<T> q) {
-		return ds.getCount(q) > 0;
+		return q.exists();
 	}
 	
 	/* (non-Javadoc)
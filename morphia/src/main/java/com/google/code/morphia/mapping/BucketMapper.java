@@ -0,0 +1,227 @@
+package com.google.code.morphia.mapping;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.code.morphia.annotations.Bucketed;
+import com.google.code.morphia.query.FilterOperator;
+import com.google.code.morphia.query.QueryException;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Maps the samples of a {@link Bucketed} class to and from their bucket documents, and queries on the samples to
+ * queries on the buckets.
+ */
+public class BucketMapper {
+	public static final String BY_KEY = "by";
+	public static final String START_KEY = "start";
+	public static final String COUNT_KEY = "n";
+	public static final String SAMPLES_KEY = "samples";
+
+	/** operators which can't be pushed down as a samples.field condition; an element must match them */
+	private static final Set<String> ELEMENT_OPS = new HashSet<String>(Arrays.asList(FilterOperator.NOT_EQUAL.val(),
+			FilterOperator.NOT_IN.val(), FilterOperator.NOT.val(), FilterOperator.EXISTS.val(), FilterOperator.ELEMENT_MATCH.val()));
+	private static final ConcurrentHashMap<MappedClass, BucketMapper> cache = new ConcurrentHashMap<MappedClass, BucketMapper>();
+
+	private final MappedClass mc;
+	private final Bucketed bucketed;
+	private final String byName;
+	private final String timeName;
+	private final boolean timeIsDate;
+
+	public BucketMapper(MappedClass mc) {
+		this.mc = mc;
+		this.bucketed = (Bucketed) mc.getAnnotation(Bucketed.class);
+		if (bucketed == null)
+			throw new MappingException(mc.getClazz().getName() + " is not @Bucketed");
+
+		MappedField by = mc.getMappedFieldByJavaField(bucketed.by());
+		if (by == null)
+			throw new MappingException("@Bucketed field " + bucketed.by() + " is not a field of " + mc.getClazz().getName());
+		byName = by.getNameToStore();
+
+		if (bucketed.time().length() == 0) {
+			timeName = null;
+			timeIsDate = false;
+		} else {
+			MappedField time = mc.getMappedFieldByJavaField(bucketed.time());
+			if (time == null)
+				throw new MappingException("@Bucketed field " + bucketed.time() + " is not a field of " + mc.getClazz().getName());
+			timeIsDate = Date.class.isAssignableFrom(time.getType());
+			Class<?> type = time.getType();
+			if (!timeIsDate && type != long.class && type != Long.class && type != int.class && type != Integer.class)
+				throw new MappingException("@Bucketed time field " + bucketed.time() + " must be a Date or a long");
+			timeName = time.getNameToStore();
+		}
+		if (bucketed.interval() < 1 || bucketed.maxSize() < 1)
+			throw new MappingException("@Bucketed interval and maxSize must be positive on " + mc.getClazz().getName());
+	}
+
+	/** @return the (cached) BucketMapper for the class, or null if it is not @Bucketed */
+	public static BucketMapper of(MappedClass mc) {
+		if (mc == null || mc.getAnnotation(Bucketed.class) == null)
+			return null;
+		BucketMapper bm = cache.get(mc);
+		if (bm == null) {
+			bm = new BucketMapper(mc);
+			cache.put(mc, bm);
+		}
+		return bm;
+	}
+
+	public MappedClass getMappedClass() {
+		return mc;
+	}
+
+	/** @return the stored name of the time field, or null */
+	public String getTimeName() {
+		return timeName;
+	}
+
+	/** @return the query for the (not full) bucket the sample belongs in */
+	public DBObject bucketFor(DBObject sample) {
+		BasicDBObject q = new BasicDBObject(BY_KEY, sample.get(byName));
+		if (timeName != null)
+			q.put(START_KEY, startOf(sample.get(timeName)));
+		q.put(COUNT_KEY, new BasicDBObject(FilterOperator.LESS_THAN.val(), bucketed.maxSize()));
+		return q;
+	}
+
+	/** @return the update appending the sample to its bucket */
+	public DBObject pushSample(DBObject sample) {
+		BasicDBObject s = new BasicDBObject();
+		for (String key : sample.keySet())
+			if (!key.equals(byName))
+				s.put(key, sample.get(key));
+		BasicDBObject u = new BasicDBObject("$push", new BasicDBObject(SAMPLES_KEY, s));
+		u.put("$inc", new BasicDBObject(COUNT_KEY, 1));
+		return u;
+	}
+
+	/** @return the samples of the bucket, with the by field put back */
+	public List<DBObject> unwind(DBObject bucket) {
+		BasicDBList samples = (BasicDBList) bucket.get(SAMPLES_KEY);
+		List<DBObject> res = new ArrayList<DBObject>(samples == null ? 0 : samples.size());
+		if (samples != null)
+			for (Object o : samples) {
+				DBObject s = (DBObject) o;
+				s.put(byName, bucket.get(BY_KEY));
+				res.add(s);
+			}
+		return res;
+	}
+
+	/**
+	 * Narrows the query on the samples to a query on the buckets: the by and time conditions select the buckets by key,
+	 * and the conditions on the other fields (and the time) are pushed down as conditions on the samples array (with
+	 * $elemMatch when one sample must match several of them). The top-level operators ($or, ...) are not; all of the
+	 * query must still be checked on the (unwound) samples.
+	 */
+	public DBObject toBucketQuery(DBObject query) {
+		BasicDBObject q = new BasicDBObject();
+		if (query == null)
+			return q;
+		BasicDBObject sample = new BasicDBObject();
+		for (String key : query.keySet()) {
+			Object val = query.get(key);
+			if (key.equals(byName))
+				q.put(BY_KEY, val);
+			else if (!key.startsWith("$")) {
+				if (key.equals(timeName)) {
+					Object start = toStartCondition(val);
+					if (start != null)
+						q.put(START_KEY, start);
+				}
+				sample.put(key, val);
+			}
+		}
+
+		if (sample.size() == 1 && isElementCondition(sample.values().iterator().next())) {
+			String key = sample.keySet().iterator().next();
+			q.put(SAMPLES_KEY + "." + key, sample.get(key));
+		} else if (!sample.isEmpty())
+			q.put(SAMPLES_KEY, new BasicDBObject(FilterOperator.ELEMENT_MATCH.val(), sample));
+		return q;
+	}
+
+	/**
+	 * @return true if the condition, put on the samples.field path, is only met when one sample meets it; not so for
+	 *         negations, null (missing) values or several operators (which several samples could meet together)
+	 */
+	private static boolean isElementCondition(Object val) {
+		if (val == null)
+			return false;
+		if (!(val instanceof DBObject) || val instanceof List)
+			return true;
+		DBObject ops = (DBObject) val;
+		if (ops.keySet().size() != 1)
+			return false;
+		String op = ops.keySet().iterator().next();
+		return op.startsWith("$") && !ELEMENT_OPS.contains(op);
+	}
+
+	/** @return the sort on the buckets for the sort on the samples; only the time field can be sorted on */
+	public DBObject toBucketSort(DBObject sort) {
+		if (sort == null || sort.keySet().isEmpty())
+			return null;
+		if (timeName == null || sort.keySet().size() != 1 || !sort.containsField(timeName))
+			throw new QueryException("@Bucketed " + mc.getClazz().getName() + " can only be sorted by the time field; not " + sort);
+		return new BasicDBObject(START_KEY, sort.get(timeName));
+	}
+
+	private Object toStartCondition(Object val) {
+		if (!(val instanceof DBObject) || val instanceof List) {
+			return startOf(val);
+		}
+		DBObject ops = (DBObject) val;
+		BasicDBObject cond = new BasicDBObject();
+		for (String op : ops.keySet()) {
+			Object arg = ops.get(op);
+			if (FilterOperator.GREATER_THAN.val().equals(op) || FilterOperator.GREATER_THAN_OR_EQUAL.val().equals(op)) {
+				//the bucket starting before the bound can still hold later samples
+				Long ms = toMillis(arg);
+				if (ms != null)
+					cond.put(FilterOperator.GREATER_THAN.val(), toTime(ms - bucketed.interval()));
+			} else if (FilterOperator.LESS_THAN.val().equals(op) || FilterOperator.LESS_THAN_OR_EQUAL.val().equals(op)) {
+				if (toMillis(arg) != null)
+					cond.put(op, arg);
+			} else if (FilterOperator.IN.val().equals(op) && arg instanceof List) {
+				BasicDBList starts = new BasicDBList();
+				for (Object o : (List) arg)
+					starts.add(startOf(o));
+				cond.put(op, starts);
+			} else if (!op.startsWith("$")) {
+				//an embedded document value; not a time
+				return null;
+			}
+		}
+		return cond.isEmpty() ? null : cond;
+	}
+
+	private Object startOf(Object time) {
+		Long ms = toMillis(time);
+		if (ms == null)
+			return null;
+		long interval = bucketed.interval();
+		return toTime(ms - ((ms % interval) + interval) % interval);
+	}
+
+	private Object toTime(long ms) {
+		return timeIsDate ? new Date(ms) : (Object) ms;
+	}
+
+	private static Long toMillis(Object time) {
+		if (time instanceof Date)
+			return ((Date) time).getTime();
+		if (time instanceof Number)
+			return ((Number) time).longValue();
+		return null;
+	}
+}
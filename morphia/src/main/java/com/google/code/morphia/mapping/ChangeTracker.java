@@ -0,0 +1,211 @@
+package com.google.code.morphia.mapping;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.code.morphia.query.UpdateOperator;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBEncoder;
+
+/**
+ * <p>
+ * Keeps a compact snapshot (a 64-bit hash per top-level field, plus the length of arrays) of entities as they were
+ * loaded, so a later save can send only the fields which changed. Enabled with {@link MapperOptions#trackChanges}.
+ * </p>
+ * <p>
+ * Snapshots are keyed by instance identity and held weakly, so they go away with the entity. This class is thread-safe.
+ * </p>
+ * <p>
+ * It also remembers (whether tracking changes or not) which entities were loaded with only part of some arrays
+ * (sliced or $elemMatch projected), so they are not saved over the whole arrays.
+ * </p>
+ */
+public class ChangeTracker {
+	/** Instance (==) based weak key */
+	private static final class IdentityKey extends WeakReference<Object> {
+		private final int hash;
+
+		IdentityKey(Object referent, ReferenceQueue<Object> queue) {
+			super(referent, queue);
+			hash = System.identityHashCode(referent);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof IdentityKey))
+				return false;
+			Object referent = get();
+			return referent != null && referent == ((IdentityKey) obj).get();
+		}
+	}
+
+	/** The state of each top-level field when loaded (or last saved) */
+	private static final class Snapshot {
+		final Map<String, Long> hashes = new HashMap<String, Long>();
+		final Map<String, Integer> arraySizes = new HashMap<String, Integer>();
+	}
+
+	private final ConcurrentHashMap<IdentityKey, Snapshot> snapshots = new ConcurrentHashMap<IdentityKey, Snapshot>();
+	private final ConcurrentHashMap<IdentityKey, String[]> partials = new ConcurrentHashMap<IdentityKey, String[]>();
+	private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+
+	/** Records the state of the entity from the (loaded or saved) DBObject. */
+	public void snapshot(Object entity, DBObject dbObj) {
+		purge();
+		Snapshot snap = new Snapshot();
+		for (String key : dbObj.keySet()) {
+			if (Mapper.ID_KEY.equals(key))
+				continue;
+			Object val = dbObj.get(key);
+			snap.hashes.put(key, hash(val));
+			if (val instanceof List)
+				snap.arraySizes.put(key, ((List<?>) val).size());
+		}
+		snapshots.put(new IdentityKey(entity, queue), snap);
+	}
+
+	/** @return true if there is a snapshot for the entity (instance) */
+	public boolean isTracked(Object entity) {
+		return entity != null && snapshots.containsKey(new IdentityKey(entity, null));
+	}
+
+	/** Drops the snapshot (and the partial mark) for the entity; the next save will write the whole entity. */
+	public void forget(Object entity) {
+		snapshots.remove(new IdentityKey(entity, null));
+		partials.remove(new IdentityKey(entity, null));
+	}
+	
+	/** Marks the entity as loaded with only part of the (stored) fields; it can't be saved until {@link #forget(Object)} */
+	public void markPartial(Object entity, String... fields) {
+		purge();
+		partials.put(new IdentityKey(entity, queue), fields);
+	}
+	
+	/** @return the (stored) fields the entity was loaded with only part of, or null */
+	public String[] getPartialFields(Object entity) {
+		return entity == null ? null : partials.get(new IdentityKey(entity, null));
+	}
+
+	/**
+	 * <p>Compares the (newly mapped) DBObject to the snapshot of the entity.</p>
+	 * @return the update operations ({@code $set}, {@code $unset} and {@code $pushAll} for appended array elements)
+	 *  needed to bring the stored document up to date; empty if nothing changed, or null if the entity isn't tracked.
+	 */
+	public DBObject getChanges(Object entity, DBObject dbObj) {
+		Snapshot snap = snapshots.get(new IdentityKey(entity, null));
+		if (snap == null)
+			return null;
+
+		BasicDBObject set = new BasicDBObject();
+		BasicDBObject unset = new BasicDBObject();
+		BasicDBObject push = new BasicDBObject();
+
+		for (String key : dbObj.keySet()) {
+			if (Mapper.ID_KEY.equals(key))
+				continue;
+			Object val = dbObj.get(key);
+			Long old = snap.hashes.get(key);
+			if (old == null) {
+				set.put(key, val);
+				continue;
+			}
+
+			if (old.longValue() == hash(val))
+				continue;
+
+			//only appended to? then push the new elements instead of rewriting the whole array.
+			Integer oldSize = snap.arraySizes.get(key);
+			if (val instanceof List && oldSize != null) {
+				List<?> list = (List<?>) val;
+				if (list.size() > oldSize && old.longValue() == hash(list.subList(0, oldSize))) {
+					push.put(key, new ArrayList<Object>(list.subList(oldSize, list.size())));
+					continue;
+				}
+			}
+			set.put(key, val);
+		}
+
+		for (String key : snap.hashes.keySet())
+			if (!dbObj.containsField(key))
+				unset.put(key, 1);
+
+		BasicDBObject ops = new BasicDBObject();
+		if (!set.isEmpty())
+			ops.put(UpdateOperator.SET.val(), set);
+		if (!unset.isEmpty())
+			ops.put(UpdateOperator.UNSET.val(), unset);
+		if (!push.isEmpty())
+			ops.put(UpdateOperator.PUSH_ALL.val(), push);
+		return ops;
+	}
+
+	/** @return the number of entities currently tracked */
+	public int size() {
+		purge();
+		return snapshots.size();
+	}
+
+	private void purge() {
+		Object ref;
+		while ((ref = queue.poll()) != null) {
+			snapshots.remove(ref);
+			partials.remove(ref);
+		}
+	}
+
+	/** The encoder and digest of a thread, reused for all the fields it hashes */
+	private static final class Hasher {
+		final DefaultDBEncoder encoder = new DefaultDBEncoder();
+		final BasicDBObject holder = new BasicDBObject();
+		final MessageDigest md;
+
+		Hasher() {
+			try {
+				md = MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new MappingException("MD5 is not available", e);
+			}
+		}
+
+		long hash(Object val) {
+			holder.put("v", val);
+			byte[] digest;
+			try {
+				digest = md.digest(encoder.encode(holder));
+			} finally {
+				holder.clear();
+			}
+			long h = 0;
+			for (int i = 0; i < 8; i++)
+				h = (h << 8) | (digest[i] & 0xff);
+			return h;
+		}
+	}
+
+	private static final ThreadLocal<Hasher> hashers = new ThreadLocal<Hasher>() {
+		@Override
+		protected Hasher initialValue() {
+			return new Hasher();
+		}
+	};
+
+	/** Hashes the BSON encoding of the value (so a loaded BasicDBList and a mapped ArrayList hash the same). */
+	static long hash(Object val) {
+		return hashers.get().hash(val);
+	}
+}
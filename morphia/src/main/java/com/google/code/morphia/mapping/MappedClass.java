@@ -17,6 +17,7 @@ import java.util.List;
 import java.util.Map;
 
 import com.google.code.morphia.EntityInterceptor;
+import com.google.code.morphia.annotations.Bucketed;
 import com.google.code.morphia.annotations.Converters;
 import com.google.code.morphia.annotations.Embedded;
 import com.google.code.morphia.annotations.Entity;
@@ -74,7 +75,8 @@ public class MappedClass {
 			EntityListeners.class, 
 			Version.class, 
 			Converters.class, 
-			Indexes.class));
+			Indexes.class,
+			Bucketed.class));
 	/** Annotations interesting for life-cycle events */
 	private static Class<? extends Annotation>[] lifecycleAnnotations = new Class[] {
 			PrePersist.class, 
@@ -97,6 +97,9 @@ public class Mapper {
 	LazyProxyFactory proxyFactory = LazyFeatureDependencies.createDefaultProxyFactory();
 	DatastoreProvider datastoreProvider = new DefaultDatastoreProvider();
 	DefaultConverters converters = new DefaultConverters();;
+	
+	//snapshots of loaded entities, when opts.trackChanges is on
+	private final ChangeTracker changeTracker = new ChangeTracker();
 
 	public Mapper() {
 		converters.setMapper(this);
@@ -469,7 +472,8 @@ public class Mapper {
 		return toDBObject(entity, involvedObjects, true);
 	}
 	
-	DBObject toDBObject(Object entity, Map<Object, DBObject> involvedObjects, boolean lifecycle) {
+	/** Like {@link #toDBObject(Object, Map)}; without the lifecycle (PrePersist/PreSave) calls if lifecycle is false */
+	public DBObject toDBObject(Object entity, Map<Object, DBObject> involvedObjects, boolean lifecycle) {
 		
 		DBObject dbObject = new BasicDBObject();
 		MappedClass mc = getMappedClass(entity);
@@ -529,6 +533,9 @@ public class Mapper {
 		if (dbObject.containsField(ID_KEY) && getMappedClass(entity).getIdField() != null) {
 			Key key = new Key(entity.getClass(), dbObject.get(ID_KEY));
 			cache.putEntity(key, entity);
+			
+			if (opts.trackChanges && mc.getEmbeddedAnnotation() == null)
+				changeTracker.snapshot(entity, dbObject);
 		}
 		mc.callLifecycleMethods(PostLoad.class, entity, dbObject, this);
 		return entity;
@@ -584,6 +591,11 @@ public class Mapper {
 		return converters;
 	}
 	
+	/** The snapshots of loaded entities; only filled when {@link MapperOptions#trackChanges} is on. */
+	public ChangeTracker getChangeTracker() {
+		return changeTracker;
+	}
+	
 	public EntityCache createEntityCache() {
 		return new DefaultEntityCache();// TODO choose impl
 	}
@@ -16,6 +16,8 @@ public class MapperOptions {
 	public boolean storeEmpties = false;
 	/** <p>Controls if final fields are stored. </p>*/
 	public boolean ignoreFinals = false; //ignore final fields.
+	/** <p>Controls if loaded entities are snapshotted so saves/merges only write the changed fields (see {@link ChangeTracker}). </p>*/
+	public boolean trackChanges = false;
 	
 	public CustomMapper referenceMapper = new ReferenceMapper();
 	public CustomMapper embeddedMapper = new EmbeddedMapper();
@@ -0,0 +1,115 @@
+package com.google.code.morphia.query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBEncoder;
+
+/**
+ * <p>
+ * Tunes the batch size of a cursor while it is iterated ({@link Query#adaptiveBatchSize(int, long)}): from the
+ * (sampled) size of the documents and the time taken per item (between two calls to next, so the mapping, the
+ * consumer and the getMores), the batch size of the next getMores is set to read about the target bytes, and to be
+ * consumed in about the target time, per batch; whichever is smaller.
+ * </p>
+ * <p>
+ * The batch size only changes when it is off by more than a quarter, so the cursor is not reconfigured for noise.
+ * </p>
+ */
+public class BatchSizeTuner {
+	public static final int DEFAULT_TARGET_BYTES = 1024 * 1024;
+	public static final long DEFAULT_TARGET_MILLIS = 100;
+	public static final int MIN_BATCH_SIZE = 2;
+	public static final int MAX_BATCH_SIZE = 10000;
+	/** every how many documents one is measured (the first one always is) */
+	private static final int SAMPLE_EVERY = 16;
+	/** every how many items the batch size is reconsidered */
+	private static final int TUNE_EVERY = 16;
+	/** the weight of a new observation in the averages */
+	private static final double ALPHA = 0.2;
+	private static final int MAX_HISTORY = 64;
+
+	private final DBCursor cursor;
+	private final int targetBytes;
+	private final long targetNanos;
+	private final List<Integer> history = new ArrayList<Integer>();
+	private DefaultDBEncoder encoder;
+	private double avgBytes = 0;
+	private double avgNanos = 0;
+	private long items = 0;
+	private long lastItem = 0;
+	private int batchSize;
+	private int adjustments = 0;
+
+	/** @param initial the batch size the cursor starts with; 0 for the server default */
+	public BatchSizeTuner(DBCursor cursor, int targetBytes, long targetMillis, int initial) {
+		this.cursor = cursor;
+		this.targetBytes = targetBytes > 0 ? targetBytes : DEFAULT_TARGET_BYTES;
+		this.targetNanos = (targetMillis > 0 ? targetMillis : DEFAULT_TARGET_MILLIS) * 1000000L;
+		this.batchSize = initial;
+	}
+
+	/** Observes an item, once it is mapped */
+	void observe(DBObject dbObj) {
+		long now = System.nanoTime();
+		if (items % SAMPLE_EVERY == 0) {
+			if (encoder == null)
+				encoder = new DefaultDBEncoder();
+			int size = encoder.encode(dbObj).length;
+			avgBytes = avgBytes == 0 ? size : avgBytes + ALPHA * (size - avgBytes);
+		}
+		if (lastItem > 0) {
+			long nanos = now - lastItem;
+			avgNanos = avgNanos == 0 ? nanos : avgNanos + ALPHA * (nanos - avgNanos);
+		}
+		lastItem = now;
+		items++;
+		if (items % TUNE_EVERY == 0)
+			tune();
+	}
+
+	private void tune() {
+		double bySize = avgBytes > 0 ? targetBytes / avgBytes : MAX_BATCH_SIZE;
+		double byTime = avgNanos > 0 ? targetNanos / avgNanos : MAX_BATCH_SIZE;
+		int size = (int) Math.max(MIN_BATCH_SIZE, Math.min(MAX_BATCH_SIZE, Math.min(bySize, byTime)));
+		if (batchSize > 0 && Math.abs(size - batchSize) <= batchSize / 4)
+			return;
+		batchSize = size;
+		adjustments++;
+		if (history.size() < MAX_HISTORY)
+			history.add(size);
+		cursor.batchSize(size);
+	}
+
+	/** @return the batch size the cursor uses now; 0 for the server default */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/** @return the batch sizes chosen, in order (the first ones) */
+	public List<Integer> getBatchSizes() {
+		return Collections.unmodifiableList(history);
+	}
+
+	/** @return the number of times the batch size was changed */
+	public int getAdjustments() {
+		return adjustments;
+	}
+
+	/** @return the (moving) average size of the documents, in bytes */
+	public double getAverageDocumentBytes() {
+		return avgBytes;
+	}
+
+	/** @return the (moving) average time per item, in ms */
+	public double getAverageItemMillis() {
+		return avgNanos / 1000000d;
+	}
+
+	public long getItems() {
+		return items;
+	}
+}
@@ -0,0 +1,124 @@
+package com.google.code.morphia.query;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.google.code.morphia.mapping.BucketMapper;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * Iterates over the samples in the buckets of a {@link com.google.code.morphia.annotations.Bucketed} class; the
+ * buckets are unwound and the samples filtered, sorted (by time) and skipped/limited on the client.
+ */
+public class BucketIterator implements Iterator<DBObject>, Closeable {
+	private final DBCursor buckets;
+	private final BucketMapper bm;
+	private final DBObject query;
+	private final int sortDir;
+	private final int offset;
+	private final int limit;
+
+	private DBObject lookahead;
+	private List<DBObject> samples = Collections.emptyList();
+	private int pos = 0;
+	private DBObject next;
+	private int skipped = 0;
+	private int returned = 0;
+
+	/**
+	 * @param buckets the cursor over the buckets, sorted by start if the samples are sorted
+	 * @param query the query on the samples
+	 * @param sortDir 1 or -1 to sort the samples by time, 0 to leave them in bucket order
+	 */
+	public BucketIterator(DBCursor buckets, BucketMapper bm, DBObject query, int sortDir, int offset, int limit) {
+		this.buckets = buckets;
+		this.bm = bm;
+		this.query = query;
+		this.sortDir = sortDir;
+		this.offset = offset;
+		this.limit = limit;
+	}
+
+	public DBCursor getCursor() {
+		return buckets;
+	}
+
+	public boolean hasNext() {
+		while (next == null) {
+			if (limit > 0 && returned >= limit)
+				return false;
+			if (pos < samples.size()) {
+				DBObject sample = samples.get(pos++);
+				if (!DocumentMatcher.matches(query, sample))
+					continue;
+				if (skipped < offset)
+					skipped++;
+				else
+					next = sample;
+			} else if (!loadSamples())
+				return false;
+		}
+		return true;
+	}
+
+	public DBObject next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		DBObject res = next;
+		next = null;
+		returned++;
+		return res;
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException("samples of @Bucketed entities can't be removed");
+	}
+
+	public void close() {
+		buckets.close();
+	}
+
+	/** loads the next bucket; when sorting, all the buckets with the same start */
+	private boolean loadSamples() {
+		DBObject bucket = lookahead != null ? lookahead : (buckets.hasNext() ? buckets.next() : null);
+		lookahead = null;
+		if (bucket == null)
+			return false;
+
+		samples = bm.unwind(bucket);
+		pos = 0;
+		if (sortDir == 0)
+			return true;
+
+		Object start = bucket.get(BucketMapper.START_KEY);
+		while (buckets.hasNext()) {
+			DBObject b = buckets.next();
+			Object s = b.get(BucketMapper.START_KEY);
+			if (start == null ? s != null : !start.equals(s)) {
+				lookahead = b;
+				break;
+			}
+			samples.addAll(bm.unwind(b));
+		}
+		final String time = bm.getTimeName();
+		Collections.sort(samples, new Comparator<DBObject>() {
+			public int compare(DBObject o1, DBObject o2) {
+				long t1 = millis(o1.get(time)), t2 = millis(o2.get(time));
+				return sortDir * (t1 < t2 ? -1 : (t1 == t2 ? 0 : 1));
+			}
+		});
+		return true;
+	}
+
+	private static long millis(Object time) {
+		if (time instanceof Date)
+			return ((Date) time).getTime();
+		return time == null ? Long.MIN_VALUE : ((Number) time).longValue();
+	}
+}
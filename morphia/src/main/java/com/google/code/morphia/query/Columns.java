@@ -0,0 +1,277 @@
+package com.google.code.morphia.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.code.morphia.converters.DefaultConverters;
+import com.google.code.morphia.mapping.MappedField;
+import com.mongodb.DBObject;
+
+/**
+ * <p>
+ * Fields of the results of a query, read into primitive arrays ({@link Query#columns(String...)}), one per field: no
+ * entities are created. The type of a column comes from the (java) type of its field:
+ * </p>
+ * <ul>
+ * <li>int, short, byte, char and boolean (1/0): {@code int[]}</li>
+ * <li>long and Date (the millis): {@code long[]}</li>
+ * <li>double and float: {@code double[]}</li>
+ * <li>String and enums: dictionary encoded; {@code int[]} codes into the distinct values</li>
+ * </ul>
+ * <p>
+ * Missing (or null) values are 0 (or -1 for strings) and flagged; see {@link Column#isNull(int)}.
+ * </p>
+ */
+public class Columns {
+	public enum Type {
+		INT, LONG, DOUBLE, STRING
+	}
+
+	/** The values of one field; the arrays are exactly {@link #size()} long once loaded */
+	public static class Column {
+		private final String name;
+		private final String[] path;
+		private final Type type;
+		private final MappedField mf;
+		private final DefaultConverters converters;
+		private int size = 0;
+		private int[] ints;
+		private long[] longs;
+		private double[] doubles;
+		private List<String> dictionary;
+		private Map<String, Integer> codes;
+		private final BitSet nulls = new BitSet();
+
+		Column(String name, String stored, MappedField mf, DefaultConverters converters, int capacity) {
+			this.name = name;
+			this.path = stored.split("\\.");
+			this.mf = mf;
+			this.converters = converters;
+			this.type = typeOf(mf.getType());
+			if (type == null)
+				throw new QueryException("The field " + name + " (" + mf.getType().getName() + ") can't be read into a column");
+			if (type == Type.LONG)
+				longs = new long[capacity];
+			else if (type == Type.DOUBLE)
+				doubles = new double[capacity];
+			else
+				ints = new int[capacity];
+			if (type == Type.STRING) {
+				dictionary = new ArrayList<String>();
+				codes = new HashMap<String, Integer>();
+			}
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public Type getType() {
+			return type;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		/** @return true if the value of the row was missing or null */
+		public boolean isNull(int row) {
+			return nulls.get(row);
+		}
+
+		/** @return the values of an INT column, or the codes of a STRING one (into {@link #getDictionary()}) */
+		public int[] getInts() {
+			return ints;
+		}
+
+		public long[] getLongs() {
+			return longs;
+		}
+
+		public double[] getDoubles() {
+			return doubles;
+		}
+
+		/** @return the distinct values of a STRING column, by code */
+		public List<String> getDictionary() {
+			return dictionary == null ? null : Collections.unmodifiableList(dictionary);
+		}
+
+		/** @return the value of the row of a STRING column */
+		public String getString(int row) {
+			int code = ints[row];
+			return code < 0 ? null : dictionary.get(code);
+		}
+
+		void append(DBObject doc) {
+			Object val = doc;
+			for (String part : path) {
+				if (!(val instanceof DBObject)) {
+					val = null;
+					break;
+				}
+				val = ((DBObject) val).get(part);
+			}
+			if (val == null)
+				nulls.set(size);
+			grow();
+			switch (type) {
+			case INT:
+				ints[size] = val == null ? 0 : toInt(val);
+				break;
+			case LONG:
+				longs[size] = val == null ? 0 : toLong(val);
+				break;
+			case DOUBLE:
+				doubles[size] = val == null ? 0 : toNumber(val).doubleValue();
+				break;
+			case STRING:
+				ints[size] = val == null ? -1 : code(val.toString());
+				break;
+			}
+			size++;
+		}
+
+		/** values not stored as their java type (or not as numbers) go through the converter of the field */
+		private Object decode(Object val) {
+			return converters.decode(mf.getType(), val, mf);
+		}
+
+		private Number toNumber(Object val) {
+			if (val instanceof Number)
+				return (Number) val;
+			Object decoded = decode(val);
+			if (decoded instanceof Number)
+				return (Number) decoded;
+			throw new QueryException("The value " + val + " of " + name + " is not a number");
+		}
+
+		private int toInt(Object val) {
+			if (val instanceof Boolean)
+				return ((Boolean) val) ? 1 : 0;
+			if (val instanceof Number)
+				return ((Number) val).intValue();
+			Object decoded = decode(val);
+			if (decoded instanceof Boolean)
+				return ((Boolean) decoded) ? 1 : 0;
+			if (decoded instanceof Character)
+				return (Character) decoded;
+			return toNumber(decoded).intValue();
+		}
+
+		private long toLong(Object val) {
+			if (val instanceof Date)
+				return ((Date) val).getTime();
+			if (val instanceof Number)
+				return ((Number) val).longValue();
+			Object decoded = decode(val);
+			if (decoded instanceof Date)
+				return ((Date) decoded).getTime();
+			return toNumber(decoded).longValue();
+		}
+
+		private int code(String val) {
+			Integer code = codes.get(val);
+			if (code == null) {
+				code = dictionary.size();
+				dictionary.add(val);
+				codes.put(val, code);
+			}
+			return code;
+		}
+
+		private void grow() {
+			int capacity = type == Type.LONG ? longs.length : (type == Type.DOUBLE ? doubles.length : ints.length);
+			if (size < capacity)
+				return;
+			int newCapacity = Math.max(16, capacity * 2);
+			if (longs != null)
+				longs = Arrays.copyOf(longs, newCapacity);
+			if (doubles != null)
+				doubles = Arrays.copyOf(doubles, newCapacity);
+			if (ints != null)
+				ints = Arrays.copyOf(ints, newCapacity);
+		}
+
+		void trim() {
+			if (longs != null && longs.length != size)
+				longs = Arrays.copyOf(longs, size);
+			if (doubles != null && doubles.length != size)
+				doubles = Arrays.copyOf(doubles, size);
+			if (ints != null && ints.length != size)
+				ints = Arrays.copyOf(ints, size);
+			codes = null;
+		}
+
+		private static Type typeOf(Class<?> c) {
+			if (int.class.equals(c) || Integer.class.equals(c) || short.class.equals(c) || Short.class.equals(c) || byte.class.equals(c)
+					|| Byte.class.equals(c) || char.class.equals(c) || Character.class.equals(c) || boolean.class.equals(c) || Boolean.class.equals(c))
+				return Type.INT;
+			if (long.class.equals(c) || Long.class.equals(c) || Date.class.isAssignableFrom(c))
+				return Type.LONG;
+			if (double.class.equals(c) || Double.class.equals(c) || float.class.equals(c) || Float.class.equals(c))
+				return Type.DOUBLE;
+			if (String.class.equals(c) || c.isEnum())
+				return Type.STRING;
+			return null;
+		}
+	}
+
+	private final Map<String, Column> columns = new LinkedHashMap<String, Column>();
+	private int size = 0;
+
+	Columns() {
+	}
+
+	void add(String name, String stored, MappedField mf, DefaultConverters converters, int capacity) {
+		columns.put(name, new Column(name, stored, mf, converters, capacity));
+	}
+
+	void append(DBObject doc) {
+		for (Column c : columns.values())
+			c.append(doc);
+		size++;
+	}
+
+	void trim() {
+		for (Column c : columns.values())
+			c.trim();
+	}
+
+	/** @return the number of rows */
+	public int size() {
+		return size;
+	}
+
+	/** @return the columns, in the order asked for */
+	public List<Column> getColumns() {
+		return new ArrayList<Column>(columns.values());
+	}
+
+	/** @return the column of the field, named as asked for */
+	public Column getColumn(String name) {
+		Column c = columns.get(name);
+		if (c == null)
+			throw new IllegalArgumentException("No column " + name + " in " + columns.keySet());
+		return c;
+	}
+
+	public int[] getInts(String name) {
+		return getColumn(name).getInts();
+	}
+
+	public long[] getLongs(String name) {
+		return getColumn(name).getLongs();
+	}
+
+	public double[] getDoubles(String name) {
+		return getColumn(name).getDoubles();
+	}
+}
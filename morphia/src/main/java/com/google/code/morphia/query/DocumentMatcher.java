@@ -0,0 +1,138 @@
+package com.google.code.morphia.query;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import com.mongodb.DBObject;
+
+/**
+ * Checks (on the client) if a document matches a query object; supports the plain comparison operators ($gt, $gte,
+ * $lt, $lte, $ne, $in, $nin, $all, $exists, $size), regular expressions, and $and/$or/$nor. Other operators throw a
+ * {@link QueryException}.
+ */
+public class DocumentMatcher {
+	private DocumentMatcher() {
+	}
+
+	public static boolean matches(DBObject query, DBObject doc) {
+		if (query == null)
+			return true;
+		for (String key : query.keySet()) {
+			Object cond = query.get(key);
+			if ("$and".equals(key)) {
+				for (Object q : (Collection<?>) cond)
+					if (!matches((DBObject) q, doc))
+						return false;
+			} else if ("$or".equals(key) || "$nor".equals(key)) {
+				boolean any = false;
+				for (Object q : (Collection<?>) cond)
+					if (matches((DBObject) q, doc)) {
+						any = true;
+						break;
+					}
+				if (any != "$or".equals(key))
+					return false;
+			} else if (key.startsWith("$")) {
+				throw new QueryException("Operator " + key + " is not supported on the client");
+			} else if (!matchesField(cond, get(doc, key))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean matchesField(Object cond, Object value) {
+		if (!isOperators(cond))
+			return matchesValue(cond, value);
+
+		DBObject ops = (DBObject) cond;
+		for (String op : ops.keySet()) {
+			Object arg = ops.get(op);
+			boolean res;
+			if (FilterOperator.EQUAL.val().equals(op))
+				res = matchesValue(arg, value);
+			else if (FilterOperator.NOT_EQUAL.val().equals(op))
+				res = !matchesValue(arg, value);
+			else if (FilterOperator.GREATER_THAN.val().equals(op))
+				res = comparable(value, arg) && compare(value, arg) > 0;
+			else if (FilterOperator.GREATER_THAN_OR_EQUAL.val().equals(op))
+				res = comparable(value, arg) && compare(value, arg) >= 0;
+			else if (FilterOperator.LESS_THAN.val().equals(op))
+				res = comparable(value, arg) && compare(value, arg) < 0;
+			else if (FilterOperator.LESS_THAN_OR_EQUAL.val().equals(op))
+				res = comparable(value, arg) && compare(value, arg) <= 0;
+			else if (FilterOperator.IN.val().equals(op))
+				res = matchesAny((Collection<?>) arg, value);
+			else if (FilterOperator.NOT_IN.val().equals(op))
+				res = !matchesAny((Collection<?>) arg, value);
+			else if (FilterOperator.ALL.val().equals(op)) {
+				res = value instanceof Collection;
+				for (Object o : (Collection<?>) arg)
+					res = res && ((Collection<?>) value).contains(o);
+			} else if (FilterOperator.SIZE.val().equals(op))
+				res = value instanceof Collection && ((Collection<?>) value).size() == ((Number) arg).intValue();
+			else if (FilterOperator.EXISTS.val().equals(op))
+				res = (value != null) == Boolean.TRUE.equals(arg);
+			else
+				throw new QueryException("Operator " + op + " is not supported on the client");
+			if (!res)
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean isOperators(Object cond) {
+		if (!(cond instanceof DBObject) || cond instanceof List)
+			return false;
+		for (String key : ((DBObject) cond).keySet())
+			return key.startsWith("$");
+		return false;
+	}
+
+	private static boolean matchesAny(Collection<?> values, Object value) {
+		for (Object o : values)
+			if (matchesValue(o, value))
+				return true;
+		return false;
+	}
+
+	private static boolean matchesValue(Object cond, Object value) {
+		if (value instanceof Collection && !(cond instanceof Collection)) {
+			for (Object o : (Collection<?>) value)
+				if (matchesValue(cond, o))
+					return true;
+			return false;
+		}
+		if (cond instanceof Pattern)
+			return value instanceof String && ((Pattern) cond).matcher((String) value).find();
+		if (cond instanceof Number && value instanceof Number)
+			return ((Number) cond).doubleValue() == ((Number) value).doubleValue();
+		return cond == null ? value == null : cond.equals(value);
+	}
+
+	/** values of different types never match $gt, $lt, ... */
+	private static boolean comparable(Object value, Object arg) {
+		return (value instanceof Number && arg instanceof Number) || (value instanceof String && arg instanceof String)
+				|| (value instanceof Date && arg instanceof Date);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static int compare(Object value, Object arg) {
+		if (value instanceof Number)
+			return Double.compare(((Number) value).doubleValue(), ((Number) arg).doubleValue());
+		return ((Comparable<Object>) value).compareTo(arg);
+	}
+
+	/** @return the value at the (dotted) path */
+	static Object get(DBObject doc, String path) {
+		Object val = doc;
+		for (String part : path.split("\\.")) {
+			if (!(val instanceof DBObject))
+				return null;
+			val = ((DBObject) val).get(part);
+		}
+		return val;
+	}
+}
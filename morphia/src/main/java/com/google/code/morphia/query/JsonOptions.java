@@ -0,0 +1,51 @@
+package com.google.code.morphia.query;
+
+/**
+ * How {@link Query#writeJson} writes the results.
+ */
+public class JsonOptions {
+	private boolean javaNames = true;
+	private boolean isoDates = true;
+	private boolean className = false;
+	private int flushEvery = 100;
+
+	/** Writes the java names of the fields (the default), or the stored names */
+	public JsonOptions javaNames(boolean javaNames) {
+		this.javaNames = javaNames;
+		return this;
+	}
+
+	/** Writes dates as ISO-8601 (UTC) strings (the default), or as millis */
+	public JsonOptions isoDates(boolean isoDates) {
+		this.isoDates = isoDates;
+		return this;
+	}
+
+	/** Writes the className of the documents too; off by default */
+	public JsonOptions className(boolean className) {
+		this.className = className;
+		return this;
+	}
+
+	/** Flushes the output every so many documents (and at the end); 0 only at the end */
+	public JsonOptions flushEvery(int flushEvery) {
+		this.flushEvery = flushEvery;
+		return this;
+	}
+
+	public boolean isJavaNames() {
+		return javaNames;
+	}
+
+	public boolean isIsoDates() {
+		return isoDates;
+	}
+
+	public boolean isClassName() {
+		return className;
+	}
+
+	public int getFlushEvery() {
+		return flushEvery;
+	}
+}
@@ -0,0 +1,201 @@
+package com.google.code.morphia.query;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.bson.types.ObjectId;
+
+import com.google.code.morphia.mapping.MappedClass;
+import com.google.code.morphia.mapping.MappedField;
+import com.google.code.morphia.mapping.Mapper;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+/**
+ * Writes documents, as they come from the cursor, as JSON: the stored names are translated to the java names through
+ * the mapped classes (embedded ones too), and the values the converters stored are formatted (dates, ObjectIds);
+ * the rest is written like the driver does. Not thread-safe; one per {@link Query#writeJson}.
+ */
+class JsonResultWriter {
+	private final Mapper mapr;
+	private final Writer out;
+	private final JsonOptions options;
+	private final SimpleDateFormat iso;
+	/** the java names of the stored ones, per class */
+	private final Map<Class<?>, Map<String, MappedField>> fields = new HashMap<Class<?>, Map<String, MappedField>>();
+	private final Map<String, Class<?>> classes = new HashMap<String, Class<?>>();
+	private final StringBuilder buf = new StringBuilder();
+
+	JsonResultWriter(Mapper mapr, Writer out, JsonOptions options) {
+		this.mapr = mapr;
+		this.out = out;
+		this.options = options == null ? new JsonOptions() : options;
+		iso = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+		iso.setTimeZone(TimeZone.getTimeZone("UTC"));
+	}
+
+	/** Writes the documents as an array, flushing as set in the options; @return the number written */
+	long write(MorphiaIterator<?, DBObject> it) throws IOException {
+		long count = 0;
+		int flushEvery = options.getFlushEvery();
+		out.write('[');
+		while (it.hasNext()) {
+			if (count > 0)
+				out.write(',');
+			writeDocument(it.next(), it.clazz);
+			count++;
+			if (flushEvery > 0 && count % flushEvery == 0)
+				out.flush();
+		}
+		out.write(']');
+		out.flush();
+		return count;
+	}
+
+	private void writeDocument(DBObject dbObj, Class<?> type) throws IOException {
+		Map<String, MappedField> mfs = fieldsOf(classOf(dbObj, type));
+		out.write('{');
+		boolean first = true;
+		for (String key : dbObj.keySet()) {
+			if (Mapper.CLASS_NAME_FIELDNAME.equals(key) && !options.isClassName())
+				continue;
+			MappedField mf = mfs == null ? null : mfs.get(key);
+			if (!first)
+				out.write(',');
+			first = false;
+			writeString(options.isJavaNames() && mf != null ? mf.getJavaFieldName() : key);
+			out.write(':');
+			writeValue(dbObj.get(key), mf, false);
+		}
+		out.write('}');
+	}
+
+	/** @param element true for the elements (or map values) of a multiple valued field */
+	private void writeValue(Object val, MappedField mf, boolean element) throws IOException {
+		if (val == null) {
+			out.write("null");
+		} else if (val instanceof String) {
+			writeString((String) val);
+		} else if (val instanceof Number) {
+			double d = ((Number) val).doubleValue();
+			out.write(Double.isNaN(d) || Double.isInfinite(d) ? "null" : val.toString());
+		} else if (val instanceof Boolean) {
+			out.write(val.toString());
+		} else if (val instanceof Date) {
+			if (options.isIsoDates())
+				writeString(iso.format((Date) val));
+			else
+				out.write(Long.toString(((Date) val).getTime()));
+		} else if (val instanceof ObjectId) {
+			writeString(val.toString());
+		} else if (val instanceof List) {
+			out.write('[');
+			boolean first = true;
+			for (Object o : (List<?>) val) {
+				if (!first)
+					out.write(',');
+				first = false;
+				writeValue(o, mf, true);
+			}
+			out.write(']');
+		} else if (val instanceof DBObject && mf != null && mf.isMap() && !element) {
+			DBObject map = (DBObject) val;
+			out.write('{');
+			boolean first = true;
+			for (String key : map.keySet()) {
+				if (!first)
+					out.write(',');
+				first = false;
+				writeString(key);
+				out.write(':');
+				writeValue(map.get(key), mf, true);
+			}
+			out.write('}');
+		} else if (val instanceof DBObject && !((DBObject) val).containsField("$ref")) {
+			Class<?> type = null;
+			if (mf != null)
+				type = mf.isMultipleValues() ? mf.getSubClass() : mf.getType();
+			writeDocument((DBObject) val, type);
+		} else {
+			buf.setLength(0);
+			JSON.serialize(val, buf);
+			out.write(buf.toString());
+		}
+	}
+
+	private void writeString(String s) throws IOException {
+		out.write('"');
+		int start = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c >= 0x20 && c != '"' && c != '\\' && c != '\u2028' && c != '\u2029')
+				continue;
+			out.write(s, start, i - start);
+			start = i + 1;
+			switch (c) {
+			case '"':
+				out.write("\\\"");
+				break;
+			case '\\':
+				out.write("\\\\");
+				break;
+			case '\n':
+				out.write("\\n");
+				break;
+			case '\r':
+				out.write("\\r");
+				break;
+			case '\t':
+				out.write("\\t");
+				break;
+			default:
+				String hex = Integer.toHexString(c);
+				out.write("\\u");
+				for (int p = hex.length(); p < 4; p++)
+					out.write('0');
+				out.write(hex);
+			}
+		}
+		out.write(s, start, s.length() - start);
+		out.write('"');
+	}
+
+	/** @return the class of the document, from its className or the declared type */
+	private Class<?> classOf(DBObject dbObj, Class<?> type) {
+		Object className = dbObj.get(Mapper.CLASS_NAME_FIELDNAME);
+		if (className == null)
+			return type;
+		String name = className.toString();
+		if (classes.containsKey(name))
+			return classes.get(name);
+		Class<?> c = type;
+		try {
+			c = Class.forName(name, true, Thread.currentThread().getContextClassLoader());
+		} catch (ClassNotFoundException e) {
+			//the declared type will do
+		}
+		classes.put(name, c);
+		return c;
+	}
+
+	/** @return the mapped fields of the class by their stored (and load) names; null if it is not mapped */
+	private Map<String, MappedField> fieldsOf(Class<?> type) {
+		if (type == null || Object.class.equals(type) || DBObject.class.isAssignableFrom(type))
+			return null;
+		if (fields.containsKey(type))
+			return fields.get(type);
+		Map<String, MappedField> mfs = new HashMap<String, MappedField>();
+		MappedClass mc = mapr.getMappedClass(type);
+		for (MappedField mf : mc.getPersistenceFields())
+			for (String name : mf.getLoadNames())
+				mfs.put(name, mf);
+		fields.put(type, mfs);
+		return mfs;
+	}
+}
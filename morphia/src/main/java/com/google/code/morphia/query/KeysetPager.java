@@ -0,0 +1,55 @@
+package com.google.code.morphia.query;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over the results of a query a page at a time, with keyset (seek) pagination: each page starts after the
+ * sort values (and _id) of the last entity of the page before, so every page costs the same as the first. The
+ * continuation token ({@link #getToken()}) can be kept to resume later.
+ */
+public class KeysetPager<T> implements Iterable<Page<T>>, Iterator<Page<T>> {
+	private final Query<T> query;
+	private final int pageSize;
+	private Object after;
+	private boolean done = false;
+
+	public KeysetPager(Query<T> query, int pageSize) {
+		this(query, pageSize, null);
+	}
+
+	/** Resumes after the continuation token (or last entity, or sort values); see {@link Query#pageAfter(Object)} */
+	public KeysetPager(Query<T> query, int pageSize, Object after) {
+		if (pageSize < 1)
+			throw new IllegalArgumentException("pageSize must be positive");
+		this.query = query;
+		this.pageSize = pageSize;
+		this.after = after;
+	}
+
+	/** @return the continuation token of the last page returned; null before the first page and after the last */
+	public String getToken() {
+		return after instanceof String ? (String) after : null;
+	}
+
+	public Iterator<Page<T>> iterator() {
+		return this;
+	}
+
+	public boolean hasNext() {
+		return !done;
+	}
+
+	public Page<T> next() {
+		if (done)
+			throw new NoSuchElementException();
+		Page<T> page = query.clone().pageAfter(after).fetchPage(pageSize);
+		after = page.getNextToken();
+		done = !page.hasNext();
+		return page;
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+}
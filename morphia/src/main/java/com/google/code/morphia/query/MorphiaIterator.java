@@ -21,6 +21,11 @@ public class MorphiaIterator<T, V> implements Iterable<V>, Iterator<V>{
 	protected final EntityCache cache;
 	protected long  driverTime = 0;
 	protected long  mapperTime= 0;
+	QueryGuard guard = null;
+	BatchSizeTuner tuner = null;
+	/** the (stored) fields only partly loaded; the entities are marked */
+	String[] partialFields = null;
+	private DBObject current = null;
 
 	public MorphiaIterator(Iterator<DBObject> it, Mapper m, Class<T> clazz, String kind, EntityCache cache) {
 		this.wrapped = it;
@@ -36,16 +41,31 @@ public class MorphiaIterator<T, V> implements Iterable<V>, Iterator<V>{
 	
 	public boolean hasNext() {
 		if(wrapped == null) return false;
+		if (guard != null)
+			guard.check();
     	long start = System.currentTimeMillis();
-		boolean ret = wrapped.hasNext();
+		boolean ret;
+		try {
+			ret = wrapped.hasNext();
+		} catch (RuntimeException e) {
+			if (guard == null)
+				throw e;
+			throw guard.translate(e);
+		}
     	driverTime += System.currentTimeMillis() - start;
+		if (!ret && guard != null)
+			guard.finished();
 		return ret;
 	}
 	
 	public V next() {
 		if(!hasNext()) throw new NoSuchElementException();
     	DBObject dbObj = getNext();
-    	return processItem(dbObj);
+		current = dbObj;
+		V item = processItem(dbObj);
+		if (tuner != null)
+			tuner.observe(dbObj);
+		return item;
 	}
 	
 	protected V processItem(DBObject dbObj) {
@@ -57,13 +77,25 @@ public class MorphiaIterator<T, V> implements Iterable<V>, Iterator<V>{
 	
 	protected DBObject getNext() {
 		long start = System.currentTimeMillis();
-		DBObject dbObj = (DBObject) wrapped.next();
+		DBObject dbObj;
+		try {
+			dbObj = (DBObject) wrapped.next();
+		} catch (RuntimeException e) {
+			if (guard == null)
+				throw e;
+			throw guard.translate(e);
+		}
     	driverTime += System.currentTimeMillis() - start;
+		if (guard != null)
+			guard.read(dbObj);
     	return dbObj;
 	}
 	
 	protected V convertItem(DBObject dbObj) {
-		return (V) m.fromDBObject(clazz, dbObj, cache);
+		V item = (V) m.fromDBObject(clazz, dbObj, cache);
+		if (partialFields != null)
+			m.getChangeTracker().markPartial(item, partialFields);
+		return item;
 	}
 	
 	public void remove() {
@@ -82,12 +114,28 @@ public class MorphiaIterator<T, V> implements Iterable<V>, Iterator<V>{
 		return mapperTime;
 	}
 	
+	/** Returns the tuner of the batch size (with its metrics), or null if it is not adaptive */
+	public BatchSizeTuner getBatchSizeTuner() {
+		return tuner;
+	}
+	
+	/** Returns the document the last item returned by next() was read from, or null */
+	public DBObject getCurrentDocument() {
+		return current;
+	}
+	
 	public DBCursor getCursor() {
+		if (wrapped instanceof BucketIterator)
+			return ((BucketIterator)wrapped).getCursor();
 		return (DBCursor)wrapped;
 	}
 	
 	public void close() {
+		if (guard != null)
+			guard.closed();
 		if (wrapped != null && wrapped instanceof DBCursor)
 			((DBCursor)wrapped).close();
+		else if (wrapped instanceof BucketIterator)
+			((BucketIterator)wrapped).close();
 	}
 }
\ No newline at end of file
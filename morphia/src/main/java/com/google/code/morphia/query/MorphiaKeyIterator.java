@@ -1,8 +1,9 @@
 package com.google.code.morphia.query;
 
+import java.util.Iterator;
+
 import com.google.code.morphia.Key;
 import com.google.code.morphia.mapping.Mapper;
-import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 
 /**
@@ -10,7 +11,7 @@ import com.mongodb.DBObject;
  * @author Scott Hernandez
  */
 public class MorphiaKeyIterator<T> extends MorphiaIterator<T, Key<T>>{
-	public MorphiaKeyIterator(DBCursor cursor, Mapper m, Class<T> clazz, String kind) {
+	public MorphiaKeyIterator(Iterator<DBObject> cursor, Mapper m, Class<T> clazz, String kind) {
 		super(cursor, m, clazz, kind, null);
 	}
 
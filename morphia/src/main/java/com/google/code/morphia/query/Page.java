@@ -0,0 +1,104 @@
+package com.google.code.morphia.query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import com.google.code.morphia.Key;
+import com.google.code.morphia.mapping.Mapper;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+/**
+ * A page of results from {@link Query#fetchPage(int)}, with the continuation token for the next page (see
+ * {@link Query#pageAfter(Object)}).
+ */
+public class Page<T> implements QueryResults<T> {
+	private final Query<T> query;
+	private final List<T> items;
+	private final DBObject next;
+	private final Mapper mapr;
+
+	Page(Query<T> query, List<T> items, DBObject next, Mapper mapr) {
+		this.query = query;
+		this.items = Collections.unmodifiableList(items);
+		this.next = next;
+		this.mapr = mapr;
+	}
+
+	/** @return true if there are more results after this page */
+	public boolean hasNext() {
+		return next != null;
+	}
+
+	/** @return the sort values of the last entity, to pass to {@link Query#pageAfter(Object)}; null on the last page */
+	public DBObject getNextValues() {
+		return next;
+	}
+
+	/** @return the (JSON) continuation token, to pass to {@link Query#pageAfter(Object)}; null on the last page */
+	public String getNextToken() {
+		return next == null ? null : JSON.serialize(next);
+	}
+
+	/** @return the next page, or null if this is the last one */
+	public Page<T> nextPage() {
+		if (next == null)
+			return null;
+		int pageSize = Math.max(1, items.size());
+		return query.clone().pageAfter(next).fetchPage(pageSize);
+	}
+
+	public int size() {
+		return items.size();
+	}
+
+	public Iterator<T> iterator() {
+		return items.iterator();
+	}
+
+	public T get() {
+		return items.isEmpty() ? null : items.get(0);
+	}
+
+	public Key<T> getKey() {
+		return items.isEmpty() ? null : mapr.getKey(items.get(0));
+	}
+
+	public List<T> asList() {
+		return items;
+	}
+
+	public List<Key<T>> asKeyList() {
+		List<Key<T>> keys = new ArrayList<Key<T>>(items.size());
+		for (T item : items)
+			keys.add(mapr.getKey(item));
+		return keys;
+	}
+
+	public Iterable<T> fetch() {
+		return items;
+	}
+
+	public Iterable<T> fetchEmptyEntities() {
+		return items;
+	}
+
+	public Iterable<Key<T>> fetchKeys() {
+		return asKeyList();
+	}
+
+	/** @return the number of results of the whole query (all pages) */
+	public long countAll() {
+		return query.clone().pageAfter(null).countAll();
+	}
+
+	public Iterator<T> tail() {
+		throw new UnsupportedOperationException("a page can't be tailed");
+	}
+
+	public Iterator<T> tail(boolean awaitData) {
+		throw new UnsupportedOperationException("a page can't be tailed");
+	}
+}
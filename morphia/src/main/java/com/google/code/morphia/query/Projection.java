@@ -0,0 +1,65 @@
+package com.google.code.morphia.query;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import com.mongodb.DBObject;
+
+/**
+ * The results of a query mapped into DTOs ({@link Query#project(Class)}); only the fields of the DTO are loaded (and
+ * the _id only if it is one of them).
+ */
+public class Projection<D> implements Iterable<D> {
+	private final QueryImpl<?> query;
+	private final ProjectionPlan<D> plan;
+	private boolean covered = false;
+
+	Projection(QueryImpl<?> query, ProjectionPlan<D> plan) {
+		this.query = query;
+		this.plan = plan;
+	}
+
+	/**
+	 * Answers the query from an index only: the fields of the DTO, the filter and the sort must all be in one declared
+	 * index (which is hinted); a QueryException is thrown when none is.
+	 */
+	public Projection<D> covered() {
+		covered = true;
+		return this;
+	}
+
+	public ProjectionPlan<D> getPlan() {
+		return plan;
+	}
+
+	/** @return the index answering the query in covered mode */
+	public DBObject getCoveringIndex() {
+		return query.getCoveringIndex(plan);
+	}
+
+	public MorphiaIterator<?, D> fetch() {
+		return query.fetchProjected(plan, covered);
+	}
+
+	public Iterator<D> iterator() {
+		return fetch();
+	}
+
+	public List<D> asList() {
+		List<D> results = new ArrayList<D>();
+		for (D d : fetch())
+			results.add(d);
+		return results;
+	}
+
+	/** @return the first result, or null */
+	public D get() {
+		MorphiaIterator<?, D> it = ((QueryImpl<?>) query.clone().limit(1)).fetchProjected(plan, covered);
+		try {
+			return it.hasNext() ? it.next() : null;
+		} finally {
+			it.close();
+		}
+	}
+}
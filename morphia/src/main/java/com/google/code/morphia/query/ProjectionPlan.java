@@ -0,0 +1,231 @@
+package com.google.code.morphia.query;
+
+import java.beans.Introspector;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.code.morphia.annotations.Property;
+import com.google.code.morphia.annotations.Reference;
+import com.google.code.morphia.annotations.Serialized;
+import com.google.code.morphia.mapping.MappedClass;
+import com.google.code.morphia.mapping.MappedField;
+import com.google.code.morphia.mapping.Mapper;
+import com.google.code.morphia.mapping.MappingException;
+import com.google.code.morphia.utils.ReflectionUtils;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * <p>
+ * How the stored fields of an entity are mapped into a DTO ({@link Query#project(Class)}): each property of the DTO (a
+ * field of a class, or a getter of an interface) is matched, by java or stored name, to a field of the entity once; the
+ * documents are then mapped without the className, the entity cache or the lifecycle methods.
+ * </p>
+ * <p>
+ * Properties are simple values (converted like the entity fields), or single embedded objects. A plan is immutable and
+ * thread-safe.
+ * </p>
+ */
+public class ProjectionPlan<D> {
+	/** A property of the DTO, and the entity field it is read from */
+	private static class Prop {
+		final String name;
+		final String storedName;
+		final MappedField mf;
+		final Class<?> type;
+		final Field field;
+		final boolean embedded;
+
+		Prop(String name, String storedName, MappedField mf, Class<?> type, Field field, boolean embedded) {
+			this.name = name;
+			this.storedName = storedName;
+			this.mf = mf;
+			this.type = type;
+			this.field = field;
+			this.embedded = embedded;
+		}
+	}
+
+	/** An interface DTO: the getters return the values of the properties */
+	private static class DtoHandler implements InvocationHandler {
+		private final Class<?> dto;
+		private final Map<String, Object> values;
+		private final Map<Method, String> getters;
+
+		DtoHandler(Class<?> dto, Map<String, Object> values, Map<Method, String> getters) {
+			this.dto = dto;
+			this.values = values;
+			this.getters = getters;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String prop = getters.get(method);
+			if (prop != null) {
+				Object val = values.get(prop);
+				return val == null && method.getReturnType().isPrimitive() ? defaultValue(method.getReturnType()) : val;
+			}
+			if ("toString".equals(method.getName()) && method.getParameterTypes().length == 0)
+				return dto.getSimpleName() + values;
+			if ("hashCode".equals(method.getName()) && method.getParameterTypes().length == 0)
+				return values.hashCode();
+			if ("equals".equals(method.getName()) && method.getParameterTypes().length == 1)
+				return args[0] != null && Proxy.isProxyClass(args[0].getClass()) && Proxy.getInvocationHandler(args[0]) instanceof DtoHandler
+						&& values.equals(((DtoHandler) Proxy.getInvocationHandler(args[0])).values);
+			throw new UnsupportedOperationException(method.getName() + " is not a getter of " + dto.getName());
+		}
+	}
+
+	private final Mapper mapr;
+	private final Class<D> dto;
+	private final List<Prop> props = new ArrayList<Prop>();
+	private final Map<Method, String> getters = new HashMap<Method, String>();
+	private final Constructor<D> constructor;
+	private final boolean id;
+
+	public ProjectionPlan(Mapper mapr, Class<?> entityClass, Class<D> dto) {
+		this.mapr = mapr;
+		this.dto = dto;
+		MappedClass mc = mapr.getMappedClass(entityClass);
+		boolean hasId = false;
+		if (dto.isInterface()) {
+			constructor = null;
+			for (Method m : dto.getMethods()) {
+				String name = propertyName(m);
+				if (name == null)
+					throw new MappingException(m.getName() + " of " + dto.getName() + " is not a getter; only getters can be projected");
+				getters.put(m, name);
+				hasId |= addProp(mc, name, m.getReturnType(), null);
+			}
+		} else {
+			try {
+				constructor = dto.getDeclaredConstructor();
+				constructor.setAccessible(true);
+			} catch (NoSuchMethodException e) {
+				throw new MappingException(dto.getName() + " needs a no-arg constructor to be projected into", e);
+			}
+			for (Field f : ReflectionUtils.getDeclaredAndInheritedFields(dto, true)) {
+				if (Modifier.isStatic(f.getModifiers()) || Modifier.isTransient(f.getModifiers()))
+					continue;
+				f.setAccessible(true);
+				hasId |= addProp(mc, f.getName(), f.getType(), f);
+			}
+		}
+		this.id = hasId;
+	}
+
+	/** @return true if the property is the _id */
+	private boolean addProp(MappedClass mc, String name, Class<?> type, Field field) {
+		MappedField mf = mc.getMappedFieldByJavaField(name);
+		if (mf == null)
+			mf = mc.getMappedField(name);
+		if (mf == null)
+			throw new MappingException("The " + name + " property of " + dto.getName() + " is not a field of " + mc.getClazz().getName());
+		if (mf.hasAnnotation(Reference.class))
+			throw new MappingException("The @Reference " + mf.getFullName() + " can't be projected");
+		boolean simple = mf.hasAnnotation(Property.class) || mf.hasAnnotation(Serialized.class) || mf.isTypeMongoCompatible()
+				|| mapr.getConverters().hasSimpleValueConverter(mf);
+		if (!simple && mf.isMultipleValues())
+			throw new MappingException("Only simple values and single embedded objects can be projected; not " + mf.getFullName());
+		props.add(new Prop(name, mf.getNameToStore(), mf, type, field, !simple));
+		return Mapper.ID_KEY.equals(mf.getNameToStore());
+	}
+
+	/** @return the stored names of the fields read */
+	public List<String> getStoredNames() {
+		List<String> names = new ArrayList<String>(props.size());
+		for (Prop p : props)
+			names.add(p.storedName);
+		return Collections.unmodifiableList(names);
+	}
+
+	/** @return true if the DTO reads the _id */
+	public boolean hasId() {
+		return id;
+	}
+
+	/** @return the fields to load: the properties, without the _id unless it is one */
+	public DBObject getFieldsObject() {
+		BasicDBObject fields = new BasicDBObject();
+		for (Prop p : props)
+			fields.put(p.storedName, 1);
+		if (!id)
+			fields.put(Mapper.ID_KEY, 0);
+		return fields;
+	}
+
+	/** Maps the (projected) document into a new DTO */
+	public D map(DBObject dbObj) {
+		if (constructor == null) {
+			Map<String, Object> values = new HashMap<String, Object>();
+			for (Prop p : props)
+				values.put(p.name, decode(p, dbObj.get(p.storedName)));
+			return dto.cast(Proxy.newProxyInstance(dto.getClassLoader(), new Class<?>[] {dto}, new DtoHandler(dto, values, getters)));
+		}
+
+		D d;
+		try {
+			d = constructor.newInstance();
+		} catch (Exception e) {
+			throw new MappingException("Could not create a " + dto.getName(), e);
+		}
+		for (Prop p : props) {
+			Object val = decode(p, dbObj.get(p.storedName));
+			if (val == null)
+				continue;
+			try {
+				p.field.set(d, val);
+			} catch (Exception e) {
+				throw new MappingException("Could not set " + p.name + " of " + dto.getName() + " to " + val, e);
+			}
+		}
+		return d;
+	}
+
+	private Object decode(Prop p, Object val) {
+		if (val == null)
+			return null;
+		if (p.embedded)
+			return val instanceof DBObject ? mapr.fromDBObject(p.type, (DBObject) val, mapr.createEntityCache()) : null;
+		if (p.type.equals(p.mf.getType()))
+			return mapr.getConverters().decode(p.type, val, p.mf);
+		return mapr.getConverters().decode(p.type, val);
+	}
+
+	private static String propertyName(Method m) {
+		if (m.getParameterTypes().length != 0 || void.class.equals(m.getReturnType()))
+			return null;
+		String name = m.getName();
+		if (name.startsWith("get") && name.length() > 3)
+			return Introspector.decapitalize(name.substring(3));
+		if (name.startsWith("is") && name.length() > 2 && (boolean.class.equals(m.getReturnType()) || Boolean.class.equals(m.getReturnType())))
+			return Introspector.decapitalize(name.substring(2));
+		return name;
+	}
+
+	private static Object defaultValue(Class<?> type) {
+		if (boolean.class.equals(type))
+			return false;
+		if (char.class.equals(type))
+			return '\0';
+		if (long.class.equals(type))
+			return 0L;
+		if (float.class.equals(type))
+			return 0f;
+		if (double.class.equals(type))
+			return 0d;
+		if (byte.class.equals(type))
+			return (byte) 0;
+		if (short.class.equals(type))
+			return (short) 0;
+		return 0;
+	}
+}
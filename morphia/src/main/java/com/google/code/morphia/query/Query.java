@@ -1,7 +1,12 @@
 package com.google.code.morphia.query;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
 import org.bson.types.CodeWScope;
 
+import com.mongodb.DBObject;
 import com.mongodb.ReadPreference;
 
 /**
@@ -76,6 +81,12 @@ public interface Query<T> extends QueryResults<T>, Cloneable {
 	 */
 	Query<T> batchSize(int value);
 	
+	/**
+	 * Tunes the batch size while iterating, to read about targetBytes per batch and consume a batch in about
+	 * targetMillis; see {@link BatchSizeTuner}. The batch size (if any) is the starting one. 0 for the defaults.
+	 */
+	Query<T> adaptiveBatchSize(int targetBytes, long targetMillis);
+	
 	/**
 	 * Starts the query results at a particular zero-based offset.
 	 * 
@@ -85,6 +96,75 @@ public interface Query<T> extends QueryResults<T>, Cloneable {
 	@Deprecated
 	Query<T> skip(int value);
 	
+	/**
+	 * <p>Keyset (seek) pagination: starts the results after the given entity, instead of skipping an offset. The
+	 * query is sorted by its order plus _id (as the tie-breaker), and filtered to the entities after the given
+	 * ones in that order; so a deep page costs the same as the first one.</p>
+	 * <p>Takes the last entity of the previous page, a continuation token ({@link Page#getNextToken()}), a DBObject of
+	 * the sort values (by stored field name, with _id), or an array of the sort values (in order, with the _id last);
+	 * null starts at the first page. The sort fields should not be null.</p>
+	 */
+	Query<T> pageAfter(Object lastEntityOrSortValues);
+	
+	/** @return true if there is any result; fetches (only the _id of) at most one */
+	boolean exists();
+	
+	/** Counts the results, but stops counting at max; for "1000+" like displays. Ignores limit and offset. */
+	long countUpTo(long max);
+	
+	/**
+	 * Loads only part of an array field: limit elements after skipping skip (from the end if negative). The entities
+	 * loaded can't be saved (or merged) over the whole array; use updates.
+	 */
+	Query<T> slice(String field, int skip, int limit);
+	
+	/**
+	 * Loads only the first element of an array field matching the criteria (on the fields of the elements, like
+	 * {@code {"name": "x"}}); the other fields are loaded too, unless chosen with {@link #retrievedFields}. The entities
+	 * loaded can't be saved (or merged) over the whole array; use updates.
+	 */
+	Query<T> elemMatchProjection(String field, DBObject criteria);
+	
+	/**
+	 * Maps the results into DTOs (classes with a no-arg constructor, or interfaces of getters) whose properties are
+	 * named like fields of the entity; only those fields are loaded, and no className, cache or lifecycle is involved.
+	 * See {@link ProjectionPlan}.
+	 */
+	<D> Projection<D> project(Class<D> dto);
+	
+	/**
+	 * Reads the fields of the results into primitive arrays, one per field (see {@link Columns}); only those fields are
+	 * loaded, and no entities are created.
+	 */
+	Columns columns(String... fields);
+	
+	/**
+	 * Writes the results, as they come from the cursor, as a JSON array (see {@link JsonOptions}); the entities are never
+	 * mapped, and only the current batch is held. @return the number of documents written
+	 */
+	long writeJson(Writer out, JsonOptions options) throws IOException;
+	
+	/** Writes the results as a JSON array, in UTF-8; the stream is flushed, not closed. See {@link #writeJson(Writer, JsonOptions)} */
+	long writeJson(OutputStream out, JsonOptions options) throws IOException;
+	
+	/**
+	 * Iterates over the results a batch (of the batch size, or 100) at a time; the batches can be mapped in parallel
+	 * while the next ones are read ({@link ResultStream#parallel}). Close it to close the cursor early.
+	 */
+	ResultStream<T> stream();
+	
+	/** Sets the guardrails (size, time, indexes) of the query; the ones not set come from the datastore */
+	Query<T> limits(QueryLimits limits);
+	
+	/**
+	 * Cancels the iterations (fetch, asList...) of this query running in other threads: their cursors are closed and
+	 * they throw a {@link QueryLimitException}. A thread blocked reading from the server sees it when the read returns.
+	 */
+	void cancel();
+	
+	/** Fetches a page of (up to pageSize) results, with keyset pagination; see {@link #pageAfter(Object)} */
+	Page<T> fetchPage(int pageSize);
+	
 	/** Turns on validation (for all calls made after); by default validation is on*/
 	Query<T> enableValidation();
 	/** Turns off validation (for all calls made after)*/
@@ -0,0 +1,131 @@
+package com.google.code.morphia.query;
+
+import java.util.List;
+
+import com.google.code.morphia.IndexAdvisor;
+import com.google.code.morphia.IndexAdvisor.QueryShape;
+import com.google.code.morphia.query.QueryLimitException.Reason;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBEncoder;
+import com.mongodb.MongoException;
+
+/**
+ * Enforces the {@link QueryLimits} of one iteration of a query, and lets another thread cancel it. The guard is
+ * registered with the query (for {@link Query#cancel()}) only while iterating: from the first hasNext() until the
+ * last result, the end, or the close.
+ */
+class QueryGuard {
+	/** the server error when $maxTimeMS is exceeded */
+	private static final int EXCEEDED_TIME_LIMIT = 50;
+
+	private final QueryImpl<?> query;
+	private final DBObject sort;
+	private final QueryLimits limits;
+	private final long deadline;
+	private final int limit;
+	private final List<QueryGuard> running;
+	private MorphiaIterator<?, ?> iterator;
+	private DefaultDBEncoder encoder;
+	private volatile boolean cancelled = false;
+	private boolean registered = false;
+	private boolean done = false;
+	private int documents = 0;
+	private long bytes = 0;
+
+	/**
+	 * @param limits the limits, or null for none
+	 * @param limit the number of results the query returns at most; 0 for no limit
+	 */
+	QueryGuard(QueryImpl<?> query, DBObject sort, QueryLimits limits, int limit, List<QueryGuard> running) {
+		this.query = query;
+		this.sort = sort;
+		this.limits = limits;
+		this.limit = Math.abs(limit);
+		this.deadline = limits != null && limits.getMaxTime() > 0 ? System.currentTimeMillis() + limits.getMaxTime() : 0;
+		this.running = running;
+	}
+
+	void attach(MorphiaIterator<?, ?> iterator) {
+		this.iterator = iterator;
+	}
+
+	/** Stops the iteration: closes the cursor; the iterating thread gets a QueryLimitException */
+	void cancel() {
+		cancelled = true;
+		close();
+	}
+
+	/** checks the cancellation and the deadline, before each call to the driver */
+	void check() {
+		if (!registered && !done) {
+			registered = true;
+			running.add(this);
+		}
+		if (cancelled)
+			throw fail(Reason.CANCELLED, "The query was cancelled", null);
+		if (deadline > 0 && System.currentTimeMillis() > deadline)
+			throw fail(Reason.DEADLINE, "The query took more than " + limits.getMaxTime() + "ms", null);
+	}
+
+	/** counts a document read, before it is mapped */
+	void read(DBObject dbObj) {
+		documents++;
+		//the last result; nothing left to cancel
+		if (limit > 0 && documents >= limit)
+			unregister();
+		if (limits == null)
+			return;
+		if (limits.getMaxDocuments() > 0 && documents > limits.getMaxDocuments())
+			throw fail(Reason.MAX_DOCUMENTS, "The query returned more than " + limits.getMaxDocuments() + " documents", null);
+		if (limits.getMaxBytes() > 0) {
+			if (encoder == null)
+				encoder = new DefaultDBEncoder();
+			bytes += encoder.encode(dbObj).length;
+			if (bytes > limits.getMaxBytes())
+				throw fail(Reason.MAX_BYTES, "The query returned more than " + limits.getMaxBytes() + " bytes", null);
+		}
+	}
+
+	/** the iteration is over (no more results); it may have been because of a cancel */
+	void finished() {
+		unregister();
+		if (cancelled)
+			throw fail(Reason.CANCELLED, "The query was cancelled", null);
+	}
+
+	/** @return the exception to throw for an error from the driver */
+	RuntimeException translate(RuntimeException e) {
+		if (cancelled)
+			return fail(Reason.CANCELLED, "The query was cancelled", e);
+		if (e instanceof MongoException && ((MongoException) e).getCode() == EXCEEDED_TIME_LIMIT)
+			return fail(Reason.DEADLINE, "The query took more than " + limits.getMaxTime() + "ms (on the server)", e);
+		return e;
+	}
+
+	/** the iterator was closed */
+	void closed() {
+		unregister();
+	}
+
+	private void unregister() {
+		done = true;
+		if (registered) {
+			registered = false;
+			running.remove(this);
+		}
+	}
+
+	private void close() {
+		MorphiaIterator<?, ?> it = iterator;
+		if (it != null)
+			it.close();
+	}
+
+	private QueryLimitException fail(Reason reason, String msg, Throwable cause) {
+		if (reason != Reason.CANCELLED)
+			close();
+		unregister();
+		QueryShape shape = IndexAdvisor.shapeOf(query.getEntityClass(), query.getCollection(), query.getQueryObject(), sort);
+		return new QueryLimitException(reason, shape, msg, cause);
+	}
+}
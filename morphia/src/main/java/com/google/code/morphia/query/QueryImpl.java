@@ -1,25 +1,36 @@
 package com.google.code.morphia.query;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.bson.BSONObject;
 import org.bson.types.CodeWScope;
 
 import com.google.code.morphia.Datastore;
 import com.google.code.morphia.DatastoreImpl;
+import com.google.code.morphia.IndexAdvisor;
 import com.google.code.morphia.Key;
+import com.google.code.morphia.annotations.Bucketed;
 import com.google.code.morphia.annotations.Entity;
 import com.google.code.morphia.logging.Logr;
 import com.google.code.morphia.logging.MorphiaLoggerFactory;
+import com.google.code.morphia.mapping.BucketMapper;
 import com.google.code.morphia.mapping.MappedClass;
 import com.google.code.morphia.mapping.MappedField;
 import com.google.code.morphia.mapping.Mapper;
 import com.google.code.morphia.mapping.cache.EntityCache;
+import com.google.code.morphia.mapping.lazy.proxy.ProxyHelper;
+import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
 import com.mongodb.BasicDBObjectBuilder;
 import com.mongodb.Bytes;
@@ -27,6 +38,7 @@ import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import com.mongodb.ReadPreference;
+import com.mongodb.util.JSON;
 
 /**
  * <p>Implementation of Query</p>
@@ -39,6 +51,8 @@ public class QueryImpl<T> extends CriteriaContainerImpl implements Query<T>, Cri
 	private static final Logr log = MorphiaLoggerFactory.get(QueryImpl.class);
 	
 	private EntityCache cache;
+	/** true if the cache was set (and is shared with other queries); clones keep it */
+	private boolean sharedCache = false;
 	private boolean validateName = true;
 	private boolean validateType = true;
 	
@@ -50,6 +64,9 @@ public class QueryImpl<T> extends CriteriaContainerImpl implements Query<T>, Cri
 	private int offset = 0;
 	private int limit = -1;
 	private int batchSize = 0;
+	private boolean adaptive = false;
+	private int targetBatchBytes = 0;
+	private long targetBatchMillis = 0;
 	private String indexHint;
 	private Class<T> clazz = null;
 	private BasicDBObject baseQuery = null;
@@ -58,6 +75,12 @@ public class QueryImpl<T> extends CriteriaContainerImpl implements Query<T>, Cri
 	private boolean tail = false;
 	private boolean tail_await_data;
 	private ReadPreference readPref = null;
+	private boolean keyset = false;
+	private BasicDBObject seekAfter = null;
+	private QueryLimits limits = null;
+	/** the array fields sliced or projected, to their projection */
+	private BasicDBObject projections = null;
+	private final List<QueryGuard> running = new CopyOnWriteArrayList<QueryGuard>();
 	
 	public QueryImpl(Class<T> clazz, DBCollection coll, Datastore ds) {
 		super(CriteriaJoin.AND);
@@ -89,7 +112,11 @@ public class QueryImpl<T> extends CriteriaContainerImpl implements Query<T>, Cri
 	public QueryImpl<T> clone(){
 		QueryImpl<T> n = new QueryImpl<T>(clazz, dbColl, ds);
 		n.batchSize = batchSize;
-		n.cache = this.ds.getMapper().createEntityCache(); // fresh cache
+		n.adaptive = adaptive;
+		n.targetBatchBytes = targetBatchBytes;
+		n.targetBatchMillis = targetBatchMillis;
+		n.cache = sharedCache ? cache : this.ds.getMapper().createEntityCache(); // fresh cache, unless shared
+		n.sharedCache = sharedCache;
 		n.fields = fields == null ? null : Arrays.copyOf(fields, fields.length);
 		n.includeFields = includeFields;
 		n.indexHint = indexHint;
@@ -109,6 +136,10 @@ public class QueryImpl<T> extends CriteriaContainerImpl implements Query<T>, Cri
 		n.children = children == null ? null : new ArrayList<Criteria>(children);
 		n.tail = tail;
 		n.tail_await_data = tail_await_data;
+		n.keyset = keyset;
+		n.seekAfter = seekAfter;
+		n.limits = limits;
+		n.projections = (BasicDBObject) (projections == null ? null : projections.clone());
 		return n;
 	}
 
@@ -116,6 +147,17 @@ public class QueryImpl<T> extends CriteriaContainerImpl implements Query<T>, Cri
 		return dbColl;
 	}
 	
+	/** Uses the given cache (instead of one per query) when mapping results; lets several queries share an identity map. */
+	public QueryImpl<T> setEntityCache(EntityCache cache) {
+		this.cache = cache;
+		this.sharedCache = true;
+		return this;
+	}
+	
+	public EntityCache getEntityCache() {
+		return cache;
+	}
+	
 	public void setQueryObject(DBObject query) {
 		this.baseQuery = (BasicDBObject) query;
 	}
@@ -136,6 +178,18 @@ public class QueryImpl<T> extends CriteriaContainerImpl implements Query<T>, Cri
 		
 		this.addTo(obj);
 		
+		if (seekAfter != null) {
+			DBObject seek = getSeekCondition();
+			if (obj.keySet().isEmpty())
+				obj.putAll(seek);
+			else {
+				BasicDBList and = new BasicDBList();
+				and.add(obj);
+				and.add(seek);
+				obj = new BasicDBObject("$and", and);
+			}
+		}
+		
 		return obj;
 	}
 	
@@ -144,25 +198,88 @@ public class QueryImpl<T> extends CriteriaContainerImpl implements Query<T>, Cri
 	}
 	
 	public DBObject getFieldsObject() {
-		if (fields == null || fields.length == 0) 
+		if ((fields == null || fields.length == 0) && projections == null) 
 			return null;
 
-		Map<String, Integer> fieldsFilter = new HashMap<String, Integer>();
-		for(String field : this.fields) {
-			StringBuffer sb = new StringBuffer(field); //validate might modify prop string to translate java field name to db field name
-			Mapper.validate(clazz, ds.getMapper(), sb, FilterOperator.EQUAL, null, validateName, false);
-			field = sb.toString();
-			fieldsFilter.put(field, (includeFields ? 1 : 0));
-		}
+		Map<String, Object> fieldsFilter = new HashMap<String, Object>();
+		if (fields != null)
+			for(String field : this.fields) {
+				StringBuffer sb = new StringBuffer(field); //validate might modify prop string to translate java field name to db field name
+				Mapper.validate(clazz, ds.getMapper(), sb, FilterOperator.EQUAL, null, validateName, false);
+				field = sb.toString();
+				fieldsFilter.put(field, (includeFields ? 1 : 0));
+			}
 		
 		//Add className field just in case.
-		if (includeFields)
+		if (Boolean.TRUE.equals(includeFields))
 			fieldsFilter.put(Mapper.CLASS_NAME_FIELDNAME, 1);
 		
+		if (projections != null) {
+			fieldsFilter.putAll(projections);
+			if (hasElemMatchProjection()) {
+				//an $elemMatch projection only includes; include the other fields too, unless they were chosen
+				if (Boolean.FALSE.equals(includeFields))
+					throw new QueryException("An $elemMatch projection can't be used with excluded fields");
+				if (includeFields == null)
+					for (MappedField mf : ds.getMapper().getMappedClass(clazz).getPersistenceFields())
+						if (!fieldsFilter.containsKey(mf.getNameToStore()))
+							fieldsFilter.put(mf.getNameToStore(), 1);
+				fieldsFilter.put(Mapper.CLASS_NAME_FIELDNAME, 1);
+			}
+		}
+		
 		return new BasicDBObject(fieldsFilter);
 	}
 	
+	private boolean hasElemMatchProjection() {
+		for (String f : projections.keySet())
+			if (((DBObject) projections.get(f)).containsField("$elemMatch"))
+				return true;
+		return false;
+	}
+	
+	public Query<T> slice(String field, int skip, int limit) {
+		if (limit < 1)
+			throw new QueryException("The slice limit must be positive");
+		Object slice = skip == 0 ? (Object) limit : Arrays.asList(skip, limit);
+		return project(validateProjected(field), new BasicDBObject("$slice", slice));
+	}
+	
+	public Query<T> elemMatchProjection(String field, DBObject criteria) {
+		String stored = validateProjected(field);
+		//the criteria are on the fields of the elements
+		BasicDBObject elemCriteria = new BasicDBObject();
+		for (String key : criteria.keySet()) {
+			String name = key;
+			if (!key.startsWith("$")) {
+				StringBuffer sb = new StringBuffer(stored).append('.').append(key);
+				Mapper.validate(clazz, ds.getMapper(), sb, FilterOperator.EQUAL, null, validateName, false);
+				name = sb.substring(stored.length() + 1);
+			}
+			elemCriteria.put(name, criteria.get(key));
+		}
+		return project(stored, new BasicDBObject("$elemMatch", elemCriteria));
+	}
+	
+	private Query<T> project(String stored, DBObject projection) {
+		if (projections == null)
+			projections = new BasicDBObject();
+		projections.put(stored, projection);
+		return this;
+	}
+	
+	/** @return the stored name of the (array) field */
+	private String validateProjected(String field) {
+		StringBuffer sb = new StringBuffer(field);
+		MappedField mf = Mapper.validate(clazz, ds.getMapper(), sb, FilterOperator.EQUAL, null, validateName, false);
+		if (validateName && mf != null && !mf.isMultipleValues())
+			throw new QueryException("Only arrays can be sliced or projected; " + field + " is not a list/array in " + clazz.getName());
+		return sb.toString();
+	}
+	
 	public DBObject getSortObject() {
+		if (keyset)
+			return getSeekSort();
 		return (sort == null) ? null : sort;
 	}
 	
@@ -175,15 +292,222 @@ public class QueryImpl<T> extends CriteriaContainerImpl implements Query<T>, Cri
 	}
 	
 	public long countAll() {
+		BucketMapper bm = getBucketMapper();
+		if (bm != null) {
+			long count = 0;
+			BucketIterator it = prepareBucketIterator(bm);
+			try {
+				for (; it.hasNext(); it.next())
+					count++;
+			} finally {
+				it.close();
+			}
+			return count;
+		}
 		DBObject query = getQueryObject();
+		recordShape(query, null);
+		checkIndexed(query, null);
 		if (log.isTraceEnabled())
 			log.trace("Executing count(" + dbColl.getName() + ") for query: " + query);
 		return dbColl.getCount(query);
 	}
 	
+	public boolean exists() {
+		BucketMapper bm = getBucketMapper();
+		if (bm != null) {
+			BucketIterator it = prepareBucketIterator(bm);
+			try {
+				return it.hasNext();
+			} finally {
+				it.close();
+			}
+		}
+		DBObject query = getQueryObject();
+		recordShape(query, null);
+		checkIndexed(query, null);
+		if (log.isTraceEnabled())
+			log.trace("Executing exists(" + dbColl.getName() + ") for query: " + query);
+		DBCursor cursor = dbColl.find(query, new BasicDBObject(Mapper.ID_KEY, 1)).limit(1);
+		if (null != readPref)
+			cursor.setReadPreference(readPref);
+		try {
+			return cursor.hasNext();
+		} finally {
+			cursor.close();
+		}
+	}
+	
+	public long countUpTo(long max) {
+		if (max < 1)
+			return 0;
+		BucketMapper bm = getBucketMapper();
+		if (bm != null) {
+			long count = 0;
+			BucketIterator it = prepareBucketIterator(bm);
+			try {
+				for (; count < max && it.hasNext(); it.next())
+					count++;
+			} finally {
+				it.close();
+			}
+			return count;
+		}
+		DBObject query = getQueryObject();
+		recordShape(query, null);
+		checkIndexed(query, null);
+		if (log.isTraceEnabled())
+			log.trace("Executing countUpTo(" + max + ", " + dbColl.getName() + ") for query: " + query);
+		return dbColl.getCount(query, null, max, 0);
+	}
+	
+	/** records the query with the index advisor, if any */
+	private void recordShape(DBObject query, DBObject sort) {
+		IndexAdvisor advisor = ds.getIndexAdvisor();
+		if (advisor != null)
+			advisor.record(clazz, dbColl, query, sort);
+	}
+	
+	public <D> Projection<D> project(Class<D> dto) {
+		if (getBucketMapper() != null)
+			throw new QueryException("Samples of @Bucketed " + clazz.getName() + " can't be projected");
+		return new Projection<D>(this, ds.getProjectionPlan(clazz, dto));
+	}
+	
+	/** iterates over the results mapped into DTOs, answered from an index only if covered */
+	<D> MorphiaIterator<T, D> fetchProjected(final ProjectionPlan<D> plan, boolean covered) {
+		DBObject index = covered ? getCoveringIndex(plan) : null;
+		DBCursor cursor = prepareCursor(plan.getFieldsObject());
+		if (index != null)
+			cursor.hint(index);
+		return guard(new MorphiaIterator<T, D>(cursor, ds.getMapper(), clazz, dbColl.getName(), null) {
+			@Override
+			protected D convertItem(DBObject dbObj) {
+				return plan.map(dbObj);
+			}
+		});
+	}
+	
+	/** @return the declared index with the fields read, filtered and sorted */
+	DBObject getCoveringIndex(ProjectionPlan<?> plan) {
+		IndexAdvisor.QueryShape shape = IndexAdvisor.shapeOf(clazz, dbColl, getQueryObject(), getSortObject());
+		List<String> needed = new ArrayList<String>(plan.getStoredNames());
+		needed.addAll(shape.getEqualities());
+		needed.addAll(shape.getRanges());
+		needed.addAll(shape.getSort().keySet());
+		for (BasicDBObject idx : IndexAdvisor.declaredIndexes(ds.getMapper(), clazz))
+			if (idx.keySet().containsAll(needed))
+				return idx;
+		throw new QueryException("No declared index of " + clazz.getName() + " covers the fields " + needed);
+	}
+	
+	public Columns columns(String... fields) {
+		if (getBucketMapper() != null)
+			throw new QueryException("Samples of @Bucketed " + clazz.getName() + " can't be read into columns");
+		if (fields == null || fields.length == 0)
+			throw new QueryException("No fields to read into columns");
+		Columns columns = new Columns();
+		BasicDBObject projection = new BasicDBObject();
+		int capacity = limit > 0 ? limit : 64;
+		for (String field : fields) {
+			StringBuffer sb = new StringBuffer(field);
+			MappedField mf = Mapper.validate(clazz, ds.getMapper(), sb, FilterOperator.EQUAL, null, true, false);
+			if (mf == null || mf.isMultipleValues())
+				throw new QueryException("Only single valued fields can be read into columns; not " + field + " of " + clazz.getName());
+			columns.add(field, sb.toString(), mf, ds.getMapper().getConverters(), capacity);
+			projection.put(sb.toString(), 1);
+		}
+		if (!projection.containsField(Mapper.ID_KEY))
+			projection.put(Mapper.ID_KEY, 0);
+		
+		//the (projected) documents are appended as they come, and dropped
+		MorphiaIterator<T, DBObject> it = guard(new MorphiaIterator<T, DBObject>(prepareCursor(projection), ds.getMapper(), clazz, dbColl.getName(), null) {
+			@Override
+			protected DBObject convertItem(DBObject dbObj) {
+				return dbObj;
+			}
+		});
+		try {
+			while (it.hasNext())
+				columns.append(it.next());
+		} finally {
+			it.close();
+		}
+		columns.trim();
+		return columns;
+	}
+	
+	public long writeJson(OutputStream out, JsonOptions options) throws IOException {
+		return writeJson(new BufferedWriter(new OutputStreamWriter(out, "UTF-8")), options);
+	}
+	
+	public long writeJson(Writer out, JsonOptions options) throws IOException {
+		if (getBucketMapper() != null)
+			throw new QueryException("Samples of @Bucketed " + clazz.getName() + " can't be written as json");
+		//the documents are written as they come, never mapped
+		MorphiaIterator<T, DBObject> it = guard(new MorphiaIterator<T, DBObject>(prepareCursor(), ds.getMapper(), clazz, dbColl.getName(), null) {
+			@Override
+			protected DBObject convertItem(DBObject dbObj) {
+				return dbObj;
+			}
+		});
+		try {
+			return new JsonResultWriter(ds.getMapper(), out, options).write(it);
+		} finally {
+			it.close();
+		}
+	}
+	
+	public ResultStream<T> stream() {
+		int size = batchSize == 0 ? 100 : Math.abs(batchSize);
+		return new ResultStream<T>((MorphiaIterator<T, T>) fetch(), ds.getMapper(), size);
+	}
+	
+	public Query<T> limits(QueryLimits limits) {
+		this.limits = limits;
+		return this;
+	}
+	
+	/** @return the limits of the query, with the datastore ones as the defaults; null if there are none */
+	public QueryLimits getLimits() {
+		QueryLimits defaults = ds.getQueryLimits();
+		return limits == null ? defaults : limits.withDefaults(defaults);
+	}
+	
+	public void cancel() {
+		for (QueryGuard guard : running)
+			guard.cancel();
+	}
+	
+	/** enforces the limits on (and allows the cancel of) the iteration, and tunes its batches if adaptive */
+	private <V> MorphiaIterator<T, V> guard(MorphiaIterator<T, V> it) {
+		QueryGuard guard = new QueryGuard(this, keyset ? getSeekSort() : sort, getLimits(), limit, running);
+		it.guard = guard;
+		guard.attach(it);
+		if (projections != null)
+			it.partialFields = projections.keySet().toArray(new String[projections.size()]);
+		if (adaptive && it.wrapped instanceof DBCursor)
+			it.tuner = new BatchSizeTuner((DBCursor) it.wrapped, targetBatchBytes, targetBatchMillis, batchSize);
+		return it;
+	}
+	
+	/** rejects the query if the limits say so and the server would scan the collection */
+	private void checkIndexed(DBObject query, DBObject sort) {
+		QueryLimits l = getLimits();
+		if (l == null || !l.isRejectUnindexed())
+			return;
+		IndexAdvisor.QueryShape shape = ds.getExplainedShape(clazz, dbColl, query, sort);
+		if (shape.getStatus() == IndexAdvisor.Status.UNINDEXED)
+			throw new QueryLimitException(QueryLimitException.Reason.UNINDEXED, shape, "The query needs a collection scan");
+	}
+	
 	public DBCursor prepareCursor() {
+		return prepareCursor(getFieldsObject());
+	}
+	
+	private DBCursor prepareCursor(DBObject fields) {
 		DBObject query = getQueryObject();
-		DBObject fields = getFieldsObject();
+		recordShape(query, keyset ? getSeekSort() : sort);
+		checkIndexed(query, keyset ? getSeekSort() : sort);
 		
 		if (log.isTraceEnabled())
 			log.trace("Running query(" + dbColl.getName() + ") : " + query + ", fields:" + fields + ",off:" + offset + ",limit:" + limit);
@@ -199,10 +523,15 @@ public class QueryImpl<T> extends CriteriaContainerImpl implements Query<T>, Cri
 			cursor.batchSize(batchSize);
 		if (snapshotted)
 			cursor.snapshot();
-		if (sort != null)
+		if (keyset)
+			cursor.sort(getSeekSort());
+		else if (sort != null)
 			cursor.sort(sort);
 		if (indexHint != null)
 			cursor.hint(indexHint);
+		QueryLimits l = getLimits();
+		if (l != null && l.getMaxTime() > 0)
+			cursor.addSpecial("$maxTimeMS", l.getMaxTime());
 
 		if (null != readPref) {
 			cursor.setReadPreference(readPref);
@@ -232,20 +561,62 @@ public class QueryImpl<T> extends CriteriaContainerImpl implements Query<T>, Cri
 	}
 	
 
+	/** @return the BucketMapper if the entities are {@link com.google.code.morphia.annotations.Bucketed}, or null */
+	protected BucketMapper getBucketMapper() {
+		if (clazz == null || !clazz.isAnnotationPresent(Bucketed.class))
+			return null;
+		return BucketMapper.of(ds.getMapper().getMappedClass(clazz));
+	}
+	
+	/** Queries the buckets and unwinds the matching samples */
+	protected BucketIterator prepareBucketIterator(BucketMapper bm) {
+		DBObject query = getQueryObject();
+		DBObject bucketQuery = bm.toBucketQuery(query);
+		DBObject bucketSort = bm.toBucketSort(sort);
+		checkIndexed(bucketQuery, bucketSort);
+		
+		if (log.isTraceEnabled())
+			log.trace("Running bucket query(" + dbColl.getName() + ") : " + bucketQuery + " for samples matching " + query + ",off:" + offset + ",limit:" + limit);
+		
+		DBCursor cursor = dbColl.find(bucketQuery);
+		cursor.setDecoderFactory( this.ds.getDecoderFact() );
+		if (batchSize > 0)
+			cursor.batchSize(batchSize);
+		if (bucketSort != null)
+			cursor.sort(bucketSort);
+		if (null != readPref)
+			cursor.setReadPreference(readPref);
+		if (noTimeout)
+			cursor.addOption(Bytes.QUERYOPTION_NOTIMEOUT);
+		
+		int sortDir = bucketSort == null ? 0 : (((Number) bucketSort.get(BucketMapper.START_KEY)).intValue() < 0 ? -1 : 1);
+		return new BucketIterator(cursor, bm, query, sortDir, offset, limit);
+	}
+
 	public Iterable<T> fetch() {
+		BucketMapper bm = getBucketMapper();
+		if (bm != null)
+			return guard(new MorphiaIterator<T,T>(prepareBucketIterator(bm), ds.getMapper(), clazz, dbColl.getName(), cache));
+		
 		DBCursor cursor = prepareCursor();
 		if (log.isTraceEnabled())
 			log.trace("Getting cursor(" + dbColl.getName() + ")  for query:" + cursor.getQuery());
 
-		return new MorphiaIterator<T,T>(cursor, ds.getMapper(), clazz, dbColl.getName(), cache);
+		return guard(new MorphiaIterator<T,T>(cursor, ds.getMapper(), clazz, dbColl.getName(), cache));
 	}
 	
 
 	public Iterable<Key<T>> fetchKeys() {
 		String[] oldFields = fields;
 		Boolean oldInclude = includeFields;
+		BucketMapper bm = getBucketMapper();
+		if (bm != null)
+			return guard(new MorphiaKeyIterator<T>(prepareBucketIterator(bm), ds.getMapper(), clazz, dbColl.getName()));
+		
+		BasicDBObject oldProjections = projections;
 		fields = new String[] {Mapper.ID_KEY};
 		includeFields = true;
+		projections = null;
 		DBCursor cursor = prepareCursor();
 
 		if (log.isTraceEnabled())
@@ -253,7 +624,8 @@ public class QueryImpl<T> extends CriteriaContainerImpl implements Query<T>, Cri
 
 		fields = oldFields;
 		includeFields = oldInclude;
-		return new MorphiaKeyIterator<T>(cursor, ds.getMapper(), clazz, dbColl.getName());
+		projections = oldProjections;
+		return guard(new MorphiaKeyIterator<T>(cursor, ds.getMapper(), clazz, dbColl.getName()));
 	}
 	
 
@@ -288,11 +660,14 @@ public class QueryImpl<T> extends CriteriaContainerImpl implements Query<T>, Cri
 	public Iterable<T> fetchEmptyEntities() {
 		String[] oldFields = fields;
 		Boolean oldInclude = includeFields;
+		BasicDBObject oldProjections = projections;
 		fields = new String[] {Mapper.ID_KEY};
 		includeFields = true;
+		projections = null;
 		Iterable<T> res = fetch();
 		fields = oldFields;
 		includeFields = oldInclude;
+		projections = oldProjections;
 		return res;
 	}
 	
@@ -369,18 +744,26 @@ public class QueryImpl<T> extends CriteriaContainerImpl implements Query<T>, Cri
 	public T get() {
 		int oldLimit = limit;
 		limit = 1;
-		Iterator<T> it = fetch().iterator();
+		MorphiaIterator<T, T> it = (MorphiaIterator<T, T>) fetch().iterator();
 		limit = oldLimit;
-		return (it.hasNext()) ? it.next() : null ;
+		try {
+			return (it.hasNext()) ? it.next() : null ;
+		} finally {
+			it.close();
+		}
 	}
 	
 
 	public Key<T> getKey() {
 		int oldLimit = limit;
 		limit = 1;
-		Iterator<Key<T>> it = fetchKeys().iterator();
+		MorphiaIterator<T, Key<T>> it = (MorphiaIterator<T, Key<T>>) fetchKeys().iterator();
 		limit = oldLimit;
-		return (it.hasNext()) ?  it.next() : null;
+		try {
+			return (it.hasNext()) ?  it.next() : null;
+		} finally {
+			it.close();
+		}
 	}
 	
 
@@ -394,6 +777,13 @@ public class QueryImpl<T> extends CriteriaContainerImpl implements Query<T>, Cri
 		return this;
 	}
 	
+	public Query<T> adaptiveBatchSize(int targetBytes, long targetMillis) {
+		this.adaptive = true;
+		this.targetBatchBytes = targetBytes;
+		this.targetBatchMillis = targetMillis;
+		return this;
+	}
+	
 	public int getBatchSize() {
 		return batchSize;
 	}
@@ -408,6 +798,100 @@ public class QueryImpl<T> extends CriteriaContainerImpl implements Query<T>, Cri
 		return this;
 	}
 	
+	public Query<T> pageAfter(Object last) {
+		if (clazz != null && clazz.isAnnotationPresent(Bucketed.class))
+			throw new QueryException("@Bucketed entities can't be paged by key");
+		keyset = true;
+		seekAfter = null;
+		if (last == null)
+			return this;
+		
+		BasicDBObject seekSort = getSeekSort();
+		DBObject values;
+		if (last instanceof String)
+			values = (DBObject) JSON.parse((String) last);
+		else if (last instanceof DBObject)
+			values = (DBObject) last;
+		else if (last instanceof Object[]) {
+			Object[] vals = (Object[]) last;
+			if (vals.length != seekSort.size())
+				throw new QueryException("Expected " + seekSort.size() + " values (for " + seekSort.keySet() + ") but got " + vals.length);
+			values = new BasicDBObject();
+			int i = 0;
+			for (String key : seekSort.keySet())
+				values.put(key, ds.getMapper().toMongoObject(null, null, vals[i++]));
+		} else
+			values = ds.getMapper().toDBObject(ProxyHelper.unwrap(last), null, false);
+		
+		seekAfter = getSeekValues(values);
+		return this;
+	}
+	
+	public Page<T> fetchPage(int pageSize) {
+		if (pageSize < 1)
+			throw new QueryException("pageSize must be positive");
+		if (!keyset)
+			pageAfter(null);
+		QueryImpl<T> q = clone();
+		q.limit = pageSize + 1;
+		
+		final DBObject[] last = new DBObject[1];
+		MorphiaIterator<T, T> it = guard(new MorphiaIterator<T, T>(q.prepareCursor(), ds.getMapper(), clazz, dbColl.getName(), cache) {
+			@Override
+			protected T convertItem(DBObject dbObj) {
+				last[0] = dbObj;
+				return super.convertItem(dbObj);
+			}
+		});
+		List<T> items = new ArrayList<T>(pageSize);
+		boolean more;
+		try {
+			while (items.size() < pageSize && it.hasNext())
+				items.add(it.next());
+			more = it.hasNext();
+		} finally {
+			it.close();
+		}
+		return new Page<T>(this, items, more ? getSeekValues(last[0]) : null, ds.getMapper());
+	}
+	
+	/** @return the sort with _id (as the tie-breaker) */
+	protected BasicDBObject getSeekSort() {
+		BasicDBObject seekSort = sort == null ? new BasicDBObject() : (BasicDBObject) sort.clone();
+		if (!seekSort.containsField(Mapper.ID_KEY))
+			seekSort.put(Mapper.ID_KEY, 1);
+		return seekSort;
+	}
+	
+	/** @return the values of the sort fields in the document */
+	protected BasicDBObject getSeekValues(DBObject doc) {
+		BasicDBObject values = new BasicDBObject();
+		for (String key : getSeekSort().keySet()) {
+			Object val = DocumentMatcher.get(doc, key);
+			if (val == null)
+				throw new QueryException("Missing the value of sort field " + key + " to page after");
+			values.put(key, val);
+		}
+		return values;
+	}
+	
+	/** @return {$or: [{a: {$gt: va}}, {a: va, b: {$gt: vb}}, ...]}; the entities after the seek values in sort order */
+	protected DBObject getSeekCondition() {
+		BasicDBObject seekSort = getSeekSort();
+		List<String> keys = new ArrayList<String>(seekSort.keySet());
+		BasicDBList or = new BasicDBList();
+		for (int i = 0; i < keys.size(); i++) {
+			BasicDBObject clause = new BasicDBObject();
+			for (int j = 0; j < i; j++)
+				clause.put(keys.get(j), seekAfter.get(keys.get(j)));
+			String key = keys.get(i);
+			boolean desc = ((Number) seekSort.get(key)).intValue() < 0;
+			clause.put(key, new BasicDBObject(desc ? FilterOperator.LESS_THAN.val() : FilterOperator.GREATER_THAN.val(), seekAfter.get(key)));
+			or.add(clause);
+		}
+		return or.size() == 1 ? (DBObject) or.get(0) : new BasicDBObject("$or", or);
+	}
+	
 
 	public Query<T> order(String condition) {
 		if (snapshotted)
@@ -0,0 +1,38 @@
+package com.google.code.morphia.query;
+
+import com.google.code.morphia.IndexAdvisor.QueryShape;
+
+/**
+ * A query broke one of its {@link QueryLimits}, or was cancelled.
+ */
+public class QueryLimitException extends QueryException {
+	private static final long serialVersionUID = 1L;
+
+	public enum Reason {
+		MAX_DOCUMENTS, MAX_BYTES, DEADLINE, CANCELLED, UNINDEXED
+	}
+
+	private final Reason reason;
+	private final transient QueryShape shape;
+
+	public QueryLimitException(Reason reason, QueryShape shape, String message) {
+		super(message + "; query " + shape);
+		this.reason = reason;
+		this.shape = shape;
+	}
+
+	public QueryLimitException(Reason reason, QueryShape shape, String message, Throwable cause) {
+		super(message + "; query " + shape, cause);
+		this.reason = reason;
+		this.shape = shape;
+	}
+
+	public Reason getReason() {
+		return reason;
+	}
+
+	/** @return the shape of the query (fields filtered, sort) */
+	public QueryShape getShape() {
+		return shape;
+	}
+}
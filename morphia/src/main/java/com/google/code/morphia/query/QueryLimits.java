@@ -0,0 +1,70 @@
+package com.google.code.morphia.query;
+
+/**
+ * Guardrails for the queries of a datastore ({@link com.google.code.morphia.AdvancedDatastore#setQueryLimits}) or of a
+ * query ({@link Query#limits(QueryLimits)}, which override the datastore ones they set). A query breaking one throws a
+ * {@link QueryLimitException}.
+ */
+public class QueryLimits {
+	private int maxDocuments = 0;
+	private long maxBytes = 0;
+	private long maxTime = 0;
+	private Boolean rejectUnindexed = null;
+
+	/** The most documents an iteration (fetch, asList...) may map; 0 for no limit */
+	public QueryLimits maxDocuments(int maxDocuments) {
+		this.maxDocuments = maxDocuments;
+		return this;
+	}
+
+	/** The most bytes (of BSON) an iteration may map; 0 for no limit */
+	public QueryLimits maxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		return this;
+	}
+
+	/** The time (ms) an iteration may take, from the fetch; also sent to the server as $maxTimeMS. 0 for no limit */
+	public QueryLimits maxTime(long maxTime) {
+		this.maxTime = maxTime;
+		return this;
+	}
+
+	/** Rejects the queries the server would answer with a collection scan (checked once per shape, with explain) */
+	public QueryLimits rejectUnindexed(boolean rejectUnindexed) {
+		this.rejectUnindexed = rejectUnindexed;
+		return this;
+	}
+
+	public int getMaxDocuments() {
+		return maxDocuments;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public long getMaxTime() {
+		return maxTime;
+	}
+
+	public boolean isRejectUnindexed() {
+		return Boolean.TRUE.equals(rejectUnindexed);
+	}
+
+	/** @return these limits, with the ones not set taken from the defaults */
+	public QueryLimits withDefaults(QueryLimits defaults) {
+		if (defaults == null)
+			return this;
+		QueryLimits l = new QueryLimits();
+		l.maxDocuments = maxDocuments > 0 ? maxDocuments : defaults.maxDocuments;
+		l.maxBytes = maxBytes > 0 ? maxBytes : defaults.maxBytes;
+		l.maxTime = maxTime > 0 ? maxTime : defaults.maxTime;
+		l.rejectUnindexed = rejectUnindexed != null ? rejectUnindexed : defaults.rejectUnindexed;
+		return l;
+	}
+
+	@Override
+	public String toString() {
+		return "QueryLimits{maxDocuments=" + maxDocuments + ", maxBytes=" + maxBytes + ", maxTime=" + maxTime + ", rejectUnindexed=" + isRejectUnindexed() + "}";
+	}
+}
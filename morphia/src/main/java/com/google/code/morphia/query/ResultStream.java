@@ -0,0 +1,178 @@
+package com.google.code.morphia.query;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.google.code.morphia.mapping.Mapper;
+import com.google.code.morphia.mapping.cache.EntityCache;
+import com.mongodb.DBObject;
+
+/**
+ * <p>
+ * The results of a query ({@link Query#stream()}), handed out a batch at a time ({@link #nextBatch()}) or one by one;
+ * close it (or read it to the end) to close the cursor.
+ * </p>
+ * <p>
+ * In {@link #parallel(ExecutorService)} mode the batches are mapped on the executor, a few ahead, while the documents
+ * of the next ones are read from the driver; the order of the results is kept. Each batch is mapped with its own entity
+ * cache.
+ * </p>
+ */
+@SuppressWarnings("unchecked")
+public class ResultStream<T> implements Iterable<T>, Iterator<T>, Closeable {
+	private final MorphiaIterator<T, T> docs;
+	private final Mapper mapr;
+	private final int batchSize;
+	private ExecutorService executor = null;
+	private int ahead = 0;
+	private final LinkedList<Future<List<T>>> pending = new LinkedList<Future<List<T>>>();
+	private Iterator<T> current = Collections.<T> emptyList().iterator();
+	private boolean closed = false;
+
+	ResultStream(MorphiaIterator<T, T> docs, Mapper mapr, int batchSize) {
+		this.docs = docs;
+		this.mapr = mapr;
+		this.batchSize = batchSize;
+	}
+
+	/** Maps the batches on the executor, two ahead of the one read */
+	public ResultStream<T> parallel(ExecutorService executor) {
+		return parallel(executor, 2);
+	}
+
+	/** Maps the batches on the executor, up to ahead of them ahead of the one read */
+	public ResultStream<T> parallel(ExecutorService executor, int ahead) {
+		if (ahead < 1)
+			throw new IllegalArgumentException("At least one batch must be mapped ahead");
+		this.executor = executor;
+		this.ahead = ahead;
+		return this;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * @return the next batch of (mapped) results; empty at the end. Don't mix with {@link #next()}: the results of a
+	 *         batch being iterated are skipped.
+	 */
+	public List<T> nextBatch() {
+		if (closed)
+			return Collections.emptyList();
+		if (executor == null) {
+			List<DBObject> batch = read();
+			if (batch == null) {
+				close();
+				return Collections.emptyList();
+			}
+			return map(batch);
+		}
+
+		fill();
+		if (pending.isEmpty()) {
+			close();
+			return Collections.emptyList();
+		}
+		Future<List<T>> next = pending.removeFirst();
+		//the next ones are read (and mapped) while this one is used
+		fill();
+		try {
+			return next.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			close();
+			throw new QueryException("Interrupted while mapping the results");
+		} catch (ExecutionException e) {
+			close();
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new QueryException("Could not map the results: " + e.getCause());
+		}
+	}
+
+	public boolean hasNext() {
+		while (!current.hasNext()) {
+			List<T> batch = nextBatch();
+			if (batch.isEmpty())
+				return false;
+			current = batch.iterator();
+		}
+		return true;
+	}
+
+	public T next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		return current.next();
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	public Iterator<T> iterator() {
+		return this;
+	}
+
+	/** Closes the cursor, and drops the batches being mapped */
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+		current = Collections.<T> emptyList().iterator();
+		for (Future<List<T>> f : pending)
+			f.cancel(false);
+		pending.clear();
+		docs.close();
+	}
+
+	/** reads (and submits the mapping of) batches until enough are ahead */
+	private void fill() {
+		while (pending.size() < ahead) {
+			final List<DBObject> batch = read();
+			if (batch == null)
+				return;
+			pending.add(executor.submit(new Callable<List<T>>() {
+				public List<T> call() {
+					return map(batch);
+				}
+			}));
+		}
+	}
+
+	/** @return the documents of the next batch, or null at the end */
+	private List<DBObject> read() {
+		if (!docs.hasNext())
+			return null;
+		List<DBObject> batch = new ArrayList<DBObject>(batchSize);
+		while (batch.size() < batchSize && docs.hasNext()) {
+			DBObject dbObj = docs.getNext();
+			if (docs.tuner != null)
+				docs.tuner.observe(dbObj);
+			batch.add(dbObj);
+		}
+		return batch;
+	}
+
+	private List<T> map(List<DBObject> batch) {
+		EntityCache cache = mapr.createEntityCache();
+		List<T> entities = new ArrayList<T>(batch.size());
+		for (DBObject dbObj : batch) {
+			T ent = (T) mapr.fromDBObject(docs.clazz, dbObj, cache);
+			if (docs.partialFields != null)
+				mapr.getChangeTracker().markPartial(ent, docs.partialFields);
+			entities.add(ent);
+		}
+		return entities;
+	}
+}
@@ -158,7 +158,9 @@ public class UpdateOpsImpl<T> implements UpdateOperations<T> {
 			f = sb.toString();
 		}
 
-		if (convert)
+		if (value instanceof UpdateTemplate.Param)
+			val = new UpdateTemplate.Placeholder((UpdateTemplate.Param) value, mf, convert);
+		else if (convert)
 			if (UpdateOperator.PULL_ALL.equals(op) && value instanceof List)
 				val = toDBObjList(mf, (List<?>) value);
 			else
@@ -0,0 +1,168 @@
+package com.google.code.morphia.query;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.code.morphia.mapping.MappedField;
+import com.google.code.morphia.mapping.Mapper;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * <p>
+ * Update operations compiled once, with {@link #param(String) placeholders} for the values which change. The field
+ * names are validated (and translated) when the operations are built; binding the values only converts them:
+ * </p>
+ *
+ * <pre>
+ * UpdateTemplate&lt;Hotel&gt; checkIn = new UpdateTemplate&lt;Hotel&gt;(ds.createUpdateOperations(Hotel.class)
+ * 		.set(&quot;lastGuest&quot;, param(&quot;guest&quot;)).inc(&quot;guests&quot;));
+ * ds.update(query, checkIn.bind(&quot;guest&quot;, guest));
+ * </pre>
+ * <p>
+ * Placeholders can be used for single values (set, add, removeAll and inc); lists of values are constants. A
+ * template is immutable and can be shared between threads.
+ * </p>
+ */
+public class UpdateTemplate<T> {
+	/** A named value, bound with {@link UpdateTemplate#bind(Map)}; it is a Number only so it can be used with inc */
+	public static final class Param extends Number {
+		private static final long serialVersionUID = 1L;
+		private final String name;
+
+		Param(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public int intValue() {
+			throw unbound();
+		}
+
+		@Override
+		public long longValue() {
+			throw unbound();
+		}
+
+		@Override
+		public float floatValue() {
+			throw unbound();
+		}
+
+		@Override
+		public double doubleValue() {
+			throw unbound();
+		}
+
+		private QueryException unbound() {
+			return new QueryException("Parameter " + name + " is not bound");
+		}
+
+		@Override
+		public String toString() {
+			return ":" + name;
+		}
+	}
+
+	/** A param in the operations, with the field it is converted for */
+	static class Placeholder {
+		final Param param;
+		final MappedField mf;
+		final boolean convert;
+
+		Placeholder(Param param, MappedField mf, boolean convert) {
+			this.param = param;
+			this.mf = mf;
+			this.convert = convert;
+		}
+	}
+
+	/** A field of an operator ($set, $inc, ...) and its (constant) value or placeholder */
+	private static class Slot {
+		final String op;
+		final String field;
+		final Object value;
+
+		Slot(String op, String field, Object value) {
+			this.op = op;
+			this.field = field;
+			this.value = value;
+		}
+	}
+
+	private final Mapper mapr;
+	private final Class<T> clazz;
+	private final boolean isolated;
+	private final List<Slot> slots = new ArrayList<Slot>();
+
+	/** Compiles the operations; they can be built with params in place of the values */
+	@SuppressWarnings("unchecked")
+	public UpdateTemplate(UpdateOperations<T> ops) {
+		UpdateOpsImpl<T> impl = (UpdateOpsImpl<T>) ops;
+		this.mapr = impl.mapr;
+		this.clazz = impl.clazz;
+		this.isolated = impl.isIsolated();
+		DBObject compiled = impl.getOps();
+		for (String op : compiled.keySet()) {
+			Map<String, Object> fields = (Map<String, Object>) compiled.get(op);
+			for (Map.Entry<String, Object> e : fields.entrySet())
+				slots.add(new Slot(op, e.getKey(), e.getValue()));
+		}
+	}
+
+	/** @return a placeholder for the named value */
+	public static Param param(String name) {
+		if (name == null || name.length() == 0)
+			throw new IllegalArgumentException("name must not be empty");
+		return new Param(name);
+	}
+
+	/** Binds the values, given as name, value, name, value ... */
+	public UpdateOperations<T> bind(Object... namesAndValues) {
+		if (namesAndValues.length % 2 != 0)
+			throw new IllegalArgumentException("names and values must come in pairs");
+		Map<String, Object> values = new HashMap<String, Object>();
+		for (int i = 0; i < namesAndValues.length; i += 2)
+			values.put((String) namesAndValues[i], namesAndValues[i + 1]);
+		return bind(values);
+	}
+
+	/** @return the operations with the values bound, to pass to update/findAndModify */
+	public UpdateOperations<T> bind(Map<String, Object> values) {
+		UpdateOpsImpl<T> ops = new UpdateOpsImpl<T>(clazz, mapr);
+		ops.setOps(toDBObject(values));
+		if (isolated)
+			ops.isolated();
+		return ops;
+	}
+
+	/** @return the update object ({$set: ..., $inc: ...}) with the values bound */
+	public DBObject toDBObject(Map<String, Object> values) {
+		BasicDBObject u = new BasicDBObject();
+		for (Slot slot : slots) {
+			BasicDBObject fields = (BasicDBObject) u.get(slot.op);
+			if (fields == null) {
+				fields = new BasicDBObject();
+				u.put(slot.op, fields);
+			}
+			Object val = slot.value;
+			if (val instanceof Placeholder) {
+				Placeholder p = (Placeholder) val;
+				String name = p.param.getName();
+				val = values.get(name);
+				if (val == null)
+					throw new QueryException(values.containsKey(name) ? "Value cannot be null; " + name : "Parameter " + name + " is not bound");
+				if (p.convert)
+					val = mapr.toMongoObject(p.mf, null, val);
+			}
+			fields.put(slot.field, val);
+		}
+		return u;
+	}
+}
@@ -0,0 +1,107 @@
+package com.google.code.morphia.utils;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import com.google.code.morphia.Datastore;
+import com.google.code.morphia.mapping.Mapper;
+import com.google.code.morphia.mapping.MappingException;
+import com.google.code.morphia.utils.LongIdEntity.StoredId;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+
+/**
+ * <p>
+ * Hands out (long) ids for a collection from blocks reserved in the {@code ids} collection (see {@link StoredId}); a
+ * block of {@code blockSize} ids costs one {@code $inc} round trip, and the ids in it are then handed out locally.
+ * Ids of a block which aren't used (before a restart) are lost; with a block size of 1 (the default) there are no
+ * gaps, and every id costs a round trip.
+ * </p>
+ * <p>
+ * Asking for several ids at once ({@link #next(int)}) reserves them with a single round trip. This class is
+ * thread-safe.
+ * </p>
+ */
+public class LongIdAllocator {
+	public static final int DEFAULT_BLOCK_SIZE = 1;
+
+	private static final Map<Datastore, Map<String, LongIdAllocator>> allocators = new WeakHashMap<Datastore, Map<String, LongIdAllocator>>();
+
+	/** @return the (shared) allocator for the collection */
+	public static LongIdAllocator forCollection(Datastore ds, String collName) {
+		synchronized (allocators) {
+			Map<String, LongIdAllocator> byColl = allocators.get(ds);
+			if (byColl == null) {
+				byColl = new HashMap<String, LongIdAllocator>();
+				allocators.put(ds, byColl);
+			}
+			LongIdAllocator alloc = byColl.get(collName);
+			if (alloc == null) {
+				alloc = new LongIdAllocator(ds.getCollection(StoredId.class), collName, DEFAULT_BLOCK_SIZE);
+				byColl.put(collName, alloc);
+			}
+			return alloc;
+		}
+	}
+
+	private final DBCollection ids;
+	private final String name;
+	private volatile int blockSize;
+
+	//the reserved range not handed out yet: [next, last]
+	private long next = 1;
+	private long last = 0;
+
+	public LongIdAllocator(DBCollection ids, String name, int blockSize) {
+		this.ids = ids;
+		this.name = name;
+		setBlockSize(blockSize);
+	}
+
+	/** Sets the number of ids reserved at a time */
+	public LongIdAllocator setBlockSize(int blockSize) {
+		if (blockSize < 1)
+			throw new IllegalArgumentException("blockSize must be at least 1");
+		this.blockSize = blockSize;
+		return this;
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/** @return the next id */
+	public synchronized long next() {
+		if (next > last)
+			reserve(blockSize);
+		return next++;
+	}
+
+	/** @return the next n ids; at most one round trip is made */
+	public synchronized long[] next(int n) {
+		long[] res = new long[n];
+		int i = 0;
+		while (i < n && next <= last)
+			res[i++] = next++;
+		if (i < n) {
+			reserve(Math.max(blockSize, n - i));
+			while (i < n)
+				res[i++] = next++;
+		}
+		return res;
+	}
+
+	/** Reserves the next n ids (in the ids collection) as the current range */
+	protected void reserve(int n) {
+		DBObject query = new BasicDBObject(Mapper.ID_KEY, name);
+		DBObject inc = new BasicDBObject("$inc", new BasicDBObject("value", (long) n));
+		DBObject res = ids.findAndModify(query, null, null, false, inc, true, true);
+		if (res == null || !(res.get("value") instanceof Number))
+			throw new MappingException("Could not reserve ids for " + name + "; got " + res);
+
+		last = ((Number) res.get("value")).longValue();
+		next = last - n + 1;
+	}
+}
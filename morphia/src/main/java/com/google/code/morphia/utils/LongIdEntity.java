@@ -1,12 +1,15 @@
 package com.google.code.morphia.utils;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 import com.google.code.morphia.Datastore;
 import com.google.code.morphia.annotations.Entity;
 import com.google.code.morphia.annotations.Id;
 import com.google.code.morphia.annotations.PrePersist;
 import com.google.code.morphia.annotations.Transient;
-import com.google.code.morphia.query.Query;
-import com.google.code.morphia.query.UpdateOperations;
 
 public abstract class LongIdEntity {
 	@Id protected Long myLongId;
@@ -20,15 +23,35 @@ public abstract class LongIdEntity {
 	@PrePersist void prePersist(){
 		if (myLongId == null) {
 			String collName = ds.getCollection(getClass()).getName();
-		    Query<StoredId> q = ds.find(StoredId.class, "_id", collName);
-		    UpdateOperations<StoredId> uOps = ds.createUpdateOperations(StoredId.class).inc("value");
-		    StoredId newId = ds.findAndModify(q, uOps);
-		    if (newId == null) {
-		       newId = new StoredId(collName);
-		       ds.save(newId);
-		    }
-		    
-		    myLongId = newId.getValue();
+			myLongId = LongIdAllocator.forCollection(ds, collName).next();
+		}
+	}
+	
+	/** The allocator used for the ids of the entity class; set its block size to reserve more than one id at a time. */
+	public static LongIdAllocator getIdAllocator(Datastore ds, Class<? extends LongIdEntity> clazz) {
+		return LongIdAllocator.forCollection(ds, ds.getCollection(clazz).getName());
+	}
+	
+	/** Assigns ids to the entities which don't have one yet, with one round trip per collection (for batch inserts). */
+	public static void assignIds(Datastore ds, Iterable<? extends LongIdEntity> entities) {
+		Map<String, List<LongIdEntity>> byColl = new LinkedHashMap<String, List<LongIdEntity>>();
+		for (LongIdEntity ent : entities) {
+			if (ent.myLongId != null)
+				continue;
+			String collName = ds.getCollection(ent.getClass()).getName();
+			List<LongIdEntity> list = byColl.get(collName);
+			if (list == null) {
+				list = new ArrayList<LongIdEntity>();
+				byColl.put(collName, list);
+			}
+			list.add(ent);
+		}
+		
+		for (Map.Entry<String, List<LongIdEntity>> e : byColl.entrySet()) {
+			long[] ids = LongIdAllocator.forCollection(ds, e.getKey()).next(e.getValue().size());
+			int i = 0;
+			for (LongIdEntity ent : e.getValue())
+				ent.myLongId = ids[i++];
 		}
 	}
 	/**
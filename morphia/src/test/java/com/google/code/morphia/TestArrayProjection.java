@@ -0,0 +1,134 @@
+package com.google.code.morphia;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import com.google.code.morphia.annotations.Embedded;
+import com.google.code.morphia.annotations.Entity;
+import com.google.code.morphia.annotations.Id;
+import com.google.code.morphia.annotations.Property;
+import com.google.code.morphia.mapping.MappingException;
+import com.google.code.morphia.query.QueryException;
+import com.mongodb.BasicDBObject;
+
+public class TestArrayProjection extends TestBase {
+
+	@Embedded
+	private static class Reading {
+		@Property("s") String sensor;
+		int value;
+	}
+
+	@Entity
+	private static class Log {
+		@Id ObjectId id;
+		String name;
+		List<Integer> values = new ArrayList<Integer>();
+		List<Reading> readings = new ArrayList<Reading>();
+	}
+
+	private Log saveLog() {
+		Log log = new Log();
+		log.name = "big";
+		for (int i = 0; i < 100; i++) {
+			log.values.add(i);
+			Reading r = new Reading();
+			r.sensor = "s" + (i % 10);
+			r.value = i;
+			log.readings.add(r);
+		}
+		ds.save(log);
+		return log;
+	}
+
+	@Test
+	public void testSlice() throws Exception {
+		saveLog();
+		Log log = ds.createQuery(Log.class).slice("values", 10, 5).get();
+		assertEquals(5, log.values.size());
+		assertEquals(10, log.values.get(0).intValue());
+		assertEquals("big", log.name);
+		assertEquals(100, log.readings.size());
+
+		log = ds.createQuery(Log.class).slice("values", 0, 3).get();
+		assertEquals(3, log.values.size());
+		assertEquals(0, log.values.get(0).intValue());
+
+		log = ds.createQuery(Log.class).slice("values", -2, 2).get();
+		assertEquals(98, log.values.get(0).intValue());
+
+		//paging through the array
+		List<Integer> all = new ArrayList<Integer>();
+		for (int skip = 0; skip < 100; skip += 30)
+			all.addAll(ds.createQuery(Log.class).slice("values", skip, 30).get().values);
+		assertEquals(100, all.size());
+		assertEquals(99, all.get(99).intValue());
+	}
+
+	@Test
+	public void testElemMatchProjection() throws Exception {
+		saveLog();
+		Log log = ds.createQuery(Log.class).elemMatchProjection("readings", new BasicDBObject("sensor", "s3").append("value", new BasicDBObject("$gt", 50))).get();
+		assertEquals(1, log.readings.size());
+		assertEquals(53, log.readings.get(0).value);
+		assertEquals("big", log.name);
+		assertEquals(100, log.values.size());
+
+		log = ds.createQuery(Log.class).retrievedFields(true, "name").elemMatchProjection("readings", new BasicDBObject("value", 7)).get();
+		assertEquals(1, log.readings.size());
+		assertEquals(0, log.values.size());
+		assertNotNull(log.name);
+	}
+
+	@Test
+	public void testValidation() throws Exception {
+		try {
+			ds.createQuery(Log.class).slice("name", 0, 1);
+			fail("name isn't an array");
+		} catch (QueryException e) {
+			//expected
+		}
+		try {
+			ds.createQuery(Log.class).elemMatchProjection("readings", new BasicDBObject("missing", 1));
+			fail("missing isn't a field of the elements");
+		} catch (Exception e) {
+			//expected
+		}
+	}
+
+	@Test
+	public void testPartialEntityIsNotSaved() throws Exception {
+		Log saved = saveLog();
+		Log log = ds.createQuery(Log.class).slice("values", 0, 5).get();
+		try {
+			ds.save(log);
+			fail("saving would truncate the array");
+		} catch (MappingException e) {
+			//expected
+		}
+		try {
+			ds.merge(log);
+			fail("merging would truncate the array");
+		} catch (MappingException e) {
+			//expected
+		}
+		assertEquals(100, ds.get(Log.class, saved.id).values.size());
+
+		//whole entities can be saved
+		Log whole = ds.get(Log.class, saved.id);
+		whole.name = "renamed";
+		ds.save(whole);
+
+		//and updates work on the partial one
+		ds.update(log, ds.createUpdateOperations(Log.class).set("name", "updated"));
+		assertEquals("updated", ds.get(Log.class, saved.id).name);
+		assertEquals(100, ds.get(Log.class, saved.id).values.size());
+	}
+}
@@ -0,0 +1,96 @@
+package com.google.code.morphia;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import com.google.code.morphia.annotations.Id;
+
+public class TestAsyncDatastore extends TestBase {
+
+	private static class Rectangle {
+		@Id ObjectId id;
+		int width;
+
+		Rectangle() {}
+		Rectangle(int w) { width = w; }
+	}
+
+	@Test
+	public void testFanOut() throws Exception {
+		AsyncDatastoreImpl async = new AsyncDatastoreImpl(ds);
+		async.setMaxConcurrency(Rectangle.class, 2);
+		try {
+			List<Future<Key<Rectangle>>> saves = new ArrayList<Future<Key<Rectangle>>>();
+			for (int i = 0; i < 10; i++)
+				saves.add(async.save(new Rectangle(i)));
+			for (Future<Key<Rectangle>> f : saves)
+				assertNotNull(f.get().getId());
+
+			Future<Long> count = async.getCount(Rectangle.class);
+			Future<List<Rectangle>> big = async.asList(ds.createQuery(Rectangle.class).filter("width >=", 5));
+			Future<Rectangle> one = async.get(Rectangle.class, saves.get(0).get().getId());
+
+			assertEquals(10, count.get().longValue());
+			assertEquals(5, big.get().size());
+			assertEquals(0, one.get().width);
+
+			async.delete(ds.createQuery(Rectangle.class).filter("width <", 5)).get();
+			assertEquals(5, ds.getCount(Rectangle.class));
+		} finally {
+			async.shutdown();
+		}
+	}
+
+	@Test
+	public void testCancel() throws Exception {
+		AsyncDatastoreImpl async = new AsyncDatastoreImpl(ds);
+		try {
+			Future<List<Rectangle>> f = async.asList(ds.createQuery(Rectangle.class));
+			f.cancel(true);
+			assertTrue(f.isCancelled());
+		} finally {
+			async.shutdown();
+		}
+	}
+
+	@Test
+	public void testFetchHoldsPermit() throws Exception {
+		AsyncDatastoreImpl async = new AsyncDatastoreImpl(ds);
+		async.setMaxConcurrency(Rectangle.class, 1);
+		try {
+			for (int i = 0; i < 5; i++)
+				ds.save(new Rectangle(i));
+			Iterator<Rectangle> it = async.fetch(ds.createQuery(Rectangle.class).batchSize(2)).get().iterator();
+			Future<Long> count = async.getCount(Rectangle.class);
+			Thread.sleep(100);
+			assertFalse(count.isDone());
+			int n = 0;
+			while (it.hasNext()) {
+				it.next();
+				n++;
+			}
+			assertEquals(5, n);
+			assertEquals(5, count.get(5, TimeUnit.SECONDS).longValue());
+
+			//closing early releases it too, and raising the limit applies to the existing collection
+			FetchResults<Rectangle> results = async.fetch(ds.createQuery(Rectangle.class)).get();
+			async.setMaxConcurrency(Rectangle.class, 2);
+			assertEquals(5, async.getCount(Rectangle.class).get(5, TimeUnit.SECONDS).longValue());
+			results.close();
+			assertFalse(results.hasNext());
+		} finally {
+			async.shutdown();
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package com.google.code.morphia;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import com.google.code.morphia.annotations.Bucketed;
+import com.google.code.morphia.annotations.Entity;
+import com.google.code.morphia.annotations.Id;
+import com.google.code.morphia.mapping.BucketMapper;
+import com.google.code.morphia.query.QueryException;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+public class TestBucketed extends TestBase {
+	private static final long HOUR = 60 * 60 * 1000;
+
+	@Entity("readings")
+	@Bucketed(by = "sensor", time = "at", interval = HOUR, maxSize = 10)
+	private static class Reading {
+		@Id ObjectId id;
+		String sensor;
+		Date at;
+		double value;
+
+		Reading() {
+		}
+
+		Reading(String sensor, long at, double value) {
+			this.sensor = sensor;
+			this.at = new Date(at);
+			this.value = value;
+		}
+	}
+
+	private void saveReadings() {
+		List<Reading> readings = new ArrayList<Reading>();
+		//a reading every 6 minutes, for 3 hours, from 2 sensors
+		for (int i = 0; i < 30; i++) {
+			readings.add(new Reading("s1", i * HOUR / 10, i));
+			readings.add(new Reading("s2", i * HOUR / 10, -i));
+		}
+		ds.save(readings);
+	}
+
+	@Test
+	public void testSamplesAreBucketed() throws Exception {
+		saveReadings();
+
+		assertEquals(6, ds.getCollection(Reading.class).count());
+		assertEquals(60, ds.getCount(Reading.class));
+		assertEquals(60, ds.estimatedCount(Reading.class));
+
+		Reading r = ds.createQuery(Reading.class).filter("sensor", "s1").filter("value", 12d).get();
+		assertNotNull(r.id);
+		assertEquals(new Date(12 * HOUR / 10), r.at);
+		assertEquals("s1", ds.get(Reading.class, r.id).sensor);
+	}
+
+	@Test
+	public void testTimeRangeQuery() throws Exception {
+		saveReadings();
+
+		List<Reading> res = ds.createQuery(Reading.class).filter("sensor", "s2")
+				.filter("at >=", new Date(HOUR / 2)).filter("at <", new Date(2 * HOUR)).order("-at").asList();
+		assertEquals(15, res.size());
+		assertEquals(-19, res.get(0).value, 0);
+		assertEquals(-5, res.get(14).value, 0);
+		for (Reading r : res)
+			assertEquals("s2", r.sensor);
+
+		res = ds.createQuery(Reading.class).filter("at >", new Date(HOUR)).order("at").offset(2).limit(4).asList();
+		assertEquals(4, res.size());
+		assertTrue(res.get(0).at.getTime() > HOUR);
+		assertEquals(15, ds.createQuery(Reading.class).filter("sensor", "s1").filter("value >=", 15d).countAll());
+	}
+
+	@Test
+	public void testBucketsAreCapped() throws Exception {
+		for (int i = 0; i < 25; i++)
+			ds.save(new Reading("s1", 0, i));
+
+		assertEquals(3, ds.getCollection(Reading.class).count());
+		assertEquals(25, ds.createQuery(Reading.class).countAll());
+	}
+
+	@Test(expected = QueryException.class)
+	public void testSamplesCantBeUpdated() throws Exception {
+		saveReadings();
+		ds.update(ds.createQuery(Reading.class).filter("sensor", "s1"), ds.createUpdateOperations(Reading.class).set("value", 1d));
+	}
+
+	@Test
+	public void testConditionsArePushedDown() throws Exception {
+		BucketMapper bm = BucketMapper.of(morphia.getMapper().getMappedClass(Reading.class));
+		assertSame(bm, BucketMapper.of(morphia.getMapper().getMappedClass(Reading.class)));
+
+		DBObject q = bm.toBucketQuery(new BasicDBObject("sensor", "s1").append("value", 12d));
+		assertEquals("s1", q.get(BucketMapper.BY_KEY));
+		assertEquals(12d, q.get(BucketMapper.SAMPLES_KEY + ".value"));
+
+		q = bm.toBucketQuery(new BasicDBObject("value", new BasicDBObject("$gt", 1d).append("$lt", 5d)));
+		DBObject match = (DBObject) ((DBObject) q.get(BucketMapper.SAMPLES_KEY)).get("$elemMatch");
+		assertNotNull(match.get("value"));
+
+		saveReadings();
+		assertEquals(29, ds.createQuery(Reading.class).filter("value !=", 3d).filter("sensor", "s1").countAll());
+		Reading r = ds.createQuery(Reading.class).filter("value", -7d).get();
+		assertEquals(r.at, ds.get(Reading.class, r.id).at);
+		assertEquals(1, ds.createQuery(Reading.class).filter("value >", 2d).filter("value <", 4d).countAll());
+	}
+}
@@ -0,0 +1,163 @@
+package com.google.code.morphia;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ConcurrentModificationException;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import com.google.code.morphia.annotations.Id;
+import com.google.code.morphia.annotations.Version;
+
+public class TestBulkWrite extends TestBase {
+
+	private static class Rectangle {
+		@Id ObjectId id;
+		int width;
+		int height;
+
+		Rectangle() {}
+		Rectangle(int w, int h) { width = w; height = h; }
+	}
+
+	private static class Versioned {
+		@Id ObjectId id;
+		@Version Long version;
+		String name;
+	}
+
+	@Test
+	public void testMixedWrites() throws Exception {
+		Rectangle existing = new Rectangle(1, 1);
+		ds.save(existing);
+
+		BulkWrite<Rectangle> bulk = ds.createBulkWrite(Rectangle.class);
+		bulk.insert(new Rectangle(2, 2))
+			.save(new Rectangle(3, 3))
+			.insert(new Rectangle(4, 4))
+			.update(ds.createQuery(Rectangle.class).filter("width", 1), ds.createUpdateOperations(Rectangle.class).inc("height"))
+			.upsert(ds.createQuery(Rectangle.class).filter("width", 10), ds.createUpdateOperations(Rectangle.class).set("height", 10))
+			.delete(existing);
+		assertEquals(6, bulk.size());
+
+		BulkWriteResult<Rectangle> res = bulk.execute();
+		assertEquals(0, bulk.size());
+		assertFalse(res.getErrors().toString(), res.hasErrors());
+		assertEquals(2, res.getInsertedCount());
+		assertEquals(1, res.getSavedCount());
+		assertEquals(2, res.getUpdatedCount());
+		assertEquals(1, res.getDeletedCount());
+		assertEquals(3, res.getSavedKeys().size());
+
+		assertEquals(4, ds.getCount(Rectangle.class));
+		assertNotNull(ds.find(Rectangle.class, "width", 10).get());
+	}
+
+	@Test
+	public void testOrderedStopsAtVersionConflict() throws Exception {
+		Versioned v = new Versioned();
+		v.name = "first";
+		ds.save(v);
+
+		Versioned stale = ds.get(Versioned.class, v.id);
+		v.name = "second";
+		ds.save(v);
+
+		stale.name = "stale";
+		BulkWriteResult<Versioned> res = ds.createBulkWrite(Versioned.class)
+				.save(stale)
+				.insert(new Versioned())
+				.execute();
+
+		assertTrue(res.hasErrors());
+		assertTrue(res.getItems().get(0).getError() instanceof ConcurrentModificationException);
+		assertFalse(res.getItems().get(1).isExecuted());
+		assertEquals(1, ds.getCount(Versioned.class));
+	}
+
+	@Test
+	public void testUnorderedContinuesAfterConflict() throws Exception {
+		Versioned v = new Versioned();
+		ds.save(v);
+		Versioned stale = ds.get(Versioned.class, v.id);
+		ds.save(v);
+
+		BulkWriteResult<Versioned> res = ds.createBulkWrite(Versioned.class, false)
+				.save(stale)
+				.insert(new Versioned())
+				.insert(new Versioned())
+				.execute();
+
+		assertEquals(1, res.getErrors().size());
+		assertEquals(2, res.getInsertedCount());
+		assertEquals(3, ds.getCount(Versioned.class));
+	}
+
+	private Rectangle withId(ObjectId id, int w) {
+		Rectangle r = new Rectangle(w, w);
+		r.id = id;
+		return r;
+	}
+
+	@Test
+	public void testOrderedInsertStopsAtDuplicateId() throws Exception {
+		ObjectId dup = new ObjectId();
+		BulkWriteResult<Rectangle> res = ds.createBulkWrite(Rectangle.class)
+				.insert(withId(dup, 1))
+				.insert(withId(new ObjectId(), 2))
+				.insert(withId(dup, 3))
+				.insert(withId(new ObjectId(), 4))
+				.execute();
+
+		List<BulkWriteResult.Item<Rectangle>> items = res.getItems();
+		assertTrue(items.get(0).isSuccess());
+		assertTrue(items.get(1).isSuccess());
+		assertNotNull(items.get(2).getError());
+		assertFalse(items.get(3).isExecuted());
+		assertEquals(1, res.getErrors().size());
+		assertEquals(2, res.getInsertedCount());
+		assertEquals(2, ds.getCount(Rectangle.class));
+	}
+
+	@Test
+	public void testUnorderedInsertSkipsDuplicateId() throws Exception {
+		ObjectId dup = new ObjectId();
+		ds.save(withId(dup, 0));
+		BulkWriteResult<Rectangle> res = ds.createBulkWrite(Rectangle.class, false)
+				.insert(withId(new ObjectId(), 1))
+				.insert(withId(dup, 2))
+				.insert(withId(new ObjectId(), 3))
+				.execute();
+
+		List<BulkWriteResult.Item<Rectangle>> items = res.getItems();
+		assertTrue(items.get(0).isSuccess());
+		assertNotNull(items.get(1).getError());
+		assertTrue(items.get(2).isSuccess());
+		assertEquals(2, res.getInsertedCount());
+		assertEquals(3, ds.getCount(Rectangle.class));
+		assertEquals(0, ds.get(Rectangle.class, dup).width);
+	}
+
+	@Test
+	public void testUnorderedInsertReportsEveryDuplicate() throws Exception {
+		ObjectId dup1 = new ObjectId(), dup2 = new ObjectId();
+		ds.save(withId(dup1, 0));
+		ds.save(withId(dup2, 0));
+		BulkWriteResult<Rectangle> res = ds.createBulkWrite(Rectangle.class, false)
+				.insert(withId(dup1, 1))
+				.insert(withId(new ObjectId(), 2))
+				.insert(withId(dup2, 3))
+				.execute();
+
+		List<BulkWriteResult.Item<Rectangle>> items = res.getItems();
+		assertNotNull(items.get(0).getError());
+		assertTrue(items.get(1).isSuccess());
+		assertNotNull(items.get(2).getError());
+		assertEquals(1, res.getInsertedCount());
+	}
+}
@@ -0,0 +1,93 @@
+package com.google.code.morphia;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.code.morphia.annotations.Id;
+import com.google.code.morphia.annotations.PostPersist;
+import com.google.code.morphia.annotations.Version;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+public class TestChangeTracking extends TestBase {
+
+	private static class Counter {
+		static int persisted = 0;
+		@Id ObjectId id;
+		@Version Long version;
+		String name;
+		String description;
+		int count;
+		List<String> tags = new ArrayList<String>();
+
+		@PostPersist
+		void postPersist() {
+			persisted++;
+		}
+	}
+
+	@Before
+	@Override
+	public void setUp() {
+		super.setUp();
+		morphia.getMapper().getOptions().trackChanges = true;
+	}
+
+	@After
+	@Override
+	public void tearDown() {
+		morphia.getMapper().getOptions().trackChanges = false;
+		super.tearDown();
+	}
+
+	@Test
+	public void testOnlyChangedFieldsAreWritten() throws Exception {
+		Counter c = new Counter();
+		c.name = "clicks";
+		c.description = "all clicks";
+		c.tags.add("a");
+		ds.save(c);
+
+		Counter loaded = ds.get(Counter.class, c.id);
+		DBObject changes = morphia.getMapper().getChangeTracker().getChanges(loaded, morphia.getMapper().toDBObject(loaded));
+		assertEquals(new BasicDBObject(), changes);
+
+		//changed behind our back; a full save would overwrite this.
+		ds.update(ds.createQuery(Counter.class), ds.createUpdateOperations(Counter.class).set("name", "views"));
+
+		loaded.count++;
+		loaded.tags.add("b");
+		loaded.description = null;
+		ds.save(loaded);
+
+		DBObject stored = ds.getCollection(Counter.class).findOne();
+		assertEquals("views", stored.get("name"));
+		assertEquals(1, stored.get("count"));
+		assertEquals(2, ((List<?>) stored.get("tags")).size());
+		assertNull(stored.get("description"));
+		assertEquals(loaded.version, stored.get("version"));
+	}
+
+	@Test
+	public void testUnchangedSaveIsSkipped() throws Exception {
+		Counter c = new Counter();
+		c.name = "clicks";
+		ds.save(c);
+
+		Counter loaded = ds.get(Counter.class, c.id);
+		Long version = loaded.version;
+		Counter.persisted = 0;
+		ds.save(loaded);
+		assertEquals(0, Counter.persisted);
+		assertEquals(version, loaded.version);
+		assertEquals(version, ds.getCollection(Counter.class).findOne().get("version"));
+	}
+}
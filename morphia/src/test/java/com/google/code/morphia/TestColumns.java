@@ -0,0 +1,129 @@
+package com.google.code.morphia;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import com.google.code.morphia.annotations.Embedded;
+import com.google.code.morphia.annotations.Entity;
+import com.google.code.morphia.annotations.Id;
+import com.google.code.morphia.annotations.PostLoad;
+import com.google.code.morphia.annotations.Property;
+import com.google.code.morphia.query.Columns;
+import com.google.code.morphia.query.QueryException;
+
+public class TestColumns extends TestBase {
+
+	enum Side { BUY, SELL }
+
+	@Embedded
+	private static class Venue {
+		String code;
+	}
+
+	@Entity
+	private static class Trade {
+		static int loaded = 0;
+		@Id ObjectId id;
+		@Property("p") double price;
+		int qty;
+		Date ts;
+		Side side;
+		String symbol;
+		boolean settled;
+		Venue venue;
+		List<String> tags = new ArrayList<String>();
+
+		@PostLoad
+		void postLoad() {
+			loaded++;
+		}
+	}
+
+	private void saveTrades(int count) {
+		for (int i = 0; i < count; i++) {
+			Trade t = new Trade();
+			t.price = i + 0.5;
+			t.qty = i * 10;
+			t.ts = new Date(1000L * i);
+			t.side = i % 2 == 0 ? Side.BUY : Side.SELL;
+			t.symbol = i % 3 == 0 ? null : "S" + (i % 3);
+			t.settled = i % 4 == 0;
+			t.venue = new Venue();
+			t.venue.code = "V" + (i % 2);
+			ds.save(t);
+		}
+		Trade.loaded = 0;
+	}
+
+	@Test
+	public void testColumns() throws Exception {
+		saveTrades(100);
+		Columns cols = ds.find(Trade.class).order("qty").columns("price", "qty", "ts", "settled");
+		assertEquals(100, cols.size());
+		assertEquals(0, Trade.loaded);
+
+		double[] prices = cols.getDoubles("price");
+		int[] qty = cols.getInts("qty");
+		long[] ts = cols.getLongs("ts");
+		assertEquals(100, prices.length);
+		assertEquals(99.5, prices[99], 0);
+		assertEquals(990, qty[99]);
+		assertEquals(99000L, ts[99]);
+		assertEquals(1, cols.getInts("settled")[4]);
+		assertEquals(0, cols.getInts("settled")[5]);
+		assertEquals(Columns.Type.DOUBLE, cols.getColumn("price").getType());
+	}
+
+	@Test
+	public void testDictionaryAndNulls() throws Exception {
+		saveTrades(30);
+		Columns cols = ds.find(Trade.class).order("qty").filter("qty <", 60).columns("side", "symbol", "venue.code");
+		assertEquals(6, cols.size());
+
+		Columns.Column side = cols.getColumn("side");
+		assertEquals(2, side.getDictionary().size());
+		assertEquals("BUY", side.getString(0));
+		assertEquals("SELL", side.getString(1));
+		assertEquals(side.getInts()[0], side.getInts()[2]);
+
+		Columns.Column symbol = cols.getColumn("symbol");
+		assertTrue(symbol.isNull(0));
+		assertEquals(-1, symbol.getInts()[0]);
+		assertFalse(symbol.isNull(1));
+		assertEquals("S1", symbol.getString(1));
+		assertEquals(2, symbol.getDictionary().size());
+
+		assertEquals("V1", cols.getColumn("venue.code").getString(1));
+	}
+
+	@Test
+	public void testInvalidFields() throws Exception {
+		try {
+			ds.find(Trade.class).columns("tags");
+			fail("tags is a list");
+		} catch (QueryException e) {
+			//expected
+		}
+		try {
+			ds.find(Trade.class).columns("venue");
+			fail("venue is embedded");
+		} catch (QueryException e) {
+			//expected
+		}
+		try {
+			ds.find(Trade.class).columns("missing");
+			fail("missing is not a field");
+		} catch (Exception e) {
+			//expected
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package com.google.code.morphia;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import com.google.code.morphia.annotations.Entity;
+import com.google.code.morphia.annotations.Id;
+import com.google.code.morphia.annotations.Property;
+import com.google.code.morphia.query.ValidationException;
+import com.mongodb.DBObject;
+
+public class TestCounterAccumulator extends TestBase {
+
+	@Entity
+	private static class Page {
+		@Id ObjectId id;
+		String url;
+		long views;
+		long clicks;
+		@Property("s") int shares;
+	}
+
+	@Test
+	public void testIncrementsAreBatched() throws Exception {
+		Page p = new Page();
+		p.url = "/index.html";
+		ds.save(p);
+		Key<Page> key = ds.getKey(p);
+
+		CounterAccumulator counters = new CounterAccumulator(ds, 60000, 1000000);
+		try {
+			for (int i = 0; i < 100; i++)
+				counters.inc(key, "views");
+			counters.inc(Page.class, p.id, "clicks", 5);
+			assertEquals(101, counters.getPendingIncrements());
+			assertEquals(0L, ds.get(Page.class, p.id).views);
+
+			counters.flush();
+			assertEquals(1, counters.getFlushedUpdates());
+			assertEquals(0, counters.getPendingIncrements());
+
+			Page loaded = ds.get(Page.class, p.id);
+			assertEquals(100L, loaded.views);
+			assertEquals(5L, loaded.clicks);
+		} finally {
+			counters.shutdown();
+		}
+	}
+
+	@Test
+	public void testConcurrentIncrements() throws Exception {
+		Page p = new Page();
+		ds.save(p);
+
+		final CounterAccumulator counters = new CounterAccumulator(ds, 5, 500);
+		final ObjectId id = p.id;
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 8; t++)
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 1000; i++)
+						counters.inc(Page.class, id, "views");
+				}
+			});
+		for (Thread t : threads)
+			t.start();
+		for (Thread t : threads)
+			t.join();
+		counters.shutdown();
+
+		assertEquals(8000L, ds.get(Page.class, p.id).views);
+	}
+
+	@Test
+	public void testIntFieldsStayInts() throws Exception {
+		Page p = new Page();
+		ds.save(p);
+
+		CounterAccumulator counters = new CounterAccumulator(ds, 60000, 1000000);
+		try {
+			counters.inc(Page.class, p.id, "shares", 3);
+			counters.flush();
+			assertEquals(3, counters.getFlushedIncrements());
+		} finally {
+			counters.shutdown();
+		}
+
+		DBObject dbObj = ds.getCollection(Page.class).findOne();
+		assertTrue(dbObj.get("s") instanceof Integer);
+		assertEquals(3, ds.get(Page.class, p.id).shares);
+	}
+
+	@Test(expected = ValidationException.class)
+	public void testUnknownField() throws Exception {
+		CounterAccumulator counters = new CounterAccumulator(ds);
+		try {
+			counters.inc(Page.class, new ObjectId(), "likes");
+		} finally {
+			counters.shutdown();
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package com.google.code.morphia;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import com.google.code.morphia.annotations.CappedAt;
+import com.google.code.morphia.annotations.Entity;
+import com.google.code.morphia.annotations.Id;
+import com.google.code.morphia.annotations.PrePersist;
+
+public class TestEventSink extends TestBase {
+
+	@Entity(value = "activity", cap = @CappedAt(value = 10 * 1024 * 1024, count = 100000))
+	private static class Activity {
+		@Id ObjectId id;
+		String user;
+		int n;
+		boolean prePersisted;
+
+		@PrePersist void prePersist() {
+			prePersisted = true;
+		}
+	}
+
+	@Test
+	public void testEventsAreBatched() throws Exception {
+		morphia.map(Activity.class);
+		ds.ensureCaps();
+
+		final EventSink<Activity> sink = ads.createEventSink(Activity.class, 100, 10, 10000);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 4; t++) {
+			final String user = "user" + t;
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 250; i++) {
+						Activity a = new Activity();
+						a.user = user;
+						a.n = i;
+						sink.offer(a);
+					}
+				}
+			});
+		}
+		for (Thread t : threads)
+			t.start();
+		for (Thread t : threads)
+			t.join();
+		sink.shutdown();
+
+		assertEquals(0, sink.getQueueDepth());
+		assertEquals(1000, sink.getWritten());
+		assertEquals(0, sink.getDropped());
+		assertTrue(sink.getBatches() < 1000);
+		assertEquals(1000, ds.getCount(Activity.class));
+		//no lifecycle calls
+		assertEquals(0, ds.getCount(ds.createQuery(Activity.class).filter("prePersisted", true)));
+	}
+
+	@Test
+	public void testOfferAfterShutdownIsDropped() throws Exception {
+		EventSink<Activity> sink = ads.createEventSink(Activity.class, 10, 60000, 10);
+		sink.shutdown();
+		assertFalse(sink.offer(new Activity()));
+		assertEquals(1, sink.getDropped());
+	}
+
+	@Test
+	public void testEventsAreMappedWhenOffered() throws Exception {
+		EventSink<Activity> sink = ads.createEventSink(Activity.class, 10, 60000, 10);
+		Activity a = new Activity();
+		a.n = 1;
+		assertTrue(sink.offer(a));
+		a.n = 2;
+		sink.flush();
+		assertEquals(1, ds.find(Activity.class).get().n);
+		sink.shutdown();
+	}
+}
@@ -0,0 +1,121 @@
+package com.google.code.morphia;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import com.google.code.morphia.IndexAdvisor.QueryShape;
+import com.google.code.morphia.IndexAdvisor.Status;
+import com.google.code.morphia.annotations.Entity;
+import com.google.code.morphia.annotations.Id;
+import com.google.code.morphia.annotations.Index;
+import com.google.code.morphia.annotations.Indexed;
+import com.google.code.morphia.annotations.Indexes;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+public class TestIndexAdvisor extends TestBase {
+
+	@Entity
+	@Indexes(@Index("user, -created"))
+	private static class Event {
+		@Id ObjectId id;
+		String user;
+		long created;
+		@Indexed String type;
+		@Indexed String source;
+		int size;
+	}
+
+	private IndexAdvisor advisor() {
+		ds.ensureIndexes(Event.class);
+		return ads.enableIndexAdvisor(false);
+	}
+
+	private QueryShape shape(IndexAdvisor advisor) {
+		List<QueryShape> shapes = advisor.getShapes();
+		assertEquals(1, shapes.size());
+		return shapes.get(0);
+	}
+
+	@Test
+	public void testIndexedShapes() throws Exception {
+		IndexAdvisor advisor = advisor();
+		ds.find(Event.class, "user", "scott").order("-created").asList();
+		QueryShape shape = shape(advisor);
+		assertEquals(Status.INDEXED, shape.getStatus());
+		assertEquals(new BasicDBObject("user", 1).append("created", -1), shape.getUsedIndex());
+
+		//same shape, other values
+		ds.find(Event.class, "user", "olivier").order("-created").asList();
+		assertEquals(2, shape(advisor).getCount());
+
+		advisor.reset();
+		ds.find(Event.class).order("user, -created").asList();
+		assertEquals(Status.INDEXED, shape(advisor).getStatus());
+
+		advisor.reset();
+		ds.find(Event.class).order("-user, created").asList();
+		assertEquals(Status.INDEXED, shape(advisor).getStatus());
+	}
+
+	@Test
+	public void testUnindexedShapes() throws Exception {
+		IndexAdvisor advisor = advisor();
+		ds.find(Event.class).filter("size >", 10).order("created").asList();
+		ds.find(Event.class).field("size").lessThan(5).countAll();
+		ds.update(ds.createQuery(Event.class).filter("size", 3), ds.createUpdateOperations(Event.class).inc("size"));
+
+		List<QueryShape> unindexed = advisor.getUnindexedShapes();
+		assertEquals(3, unindexed.size());
+		for (QueryShape shape : unindexed)
+			assertNull(shape.getUsedIndex());
+		assertTrue(advisor.getReport().contains("UNINDEXED"));
+
+		advisor.reset();
+		ds.find(Event.class).filter("size >", 10).filter("type in", new String[] {"a", "b"}).order("-created").asList();
+		QueryShape shape = shape(advisor);
+		assertEquals(Status.SORT_IN_MEMORY, shape.getStatus());
+		assertEquals(new BasicDBObject("type", 1), shape.getUsedIndex());
+		assertEquals(new BasicDBObject("type", 1).append("created", -1).append("size", 1), shape.getSuggestedIndex());
+	}
+
+	@Test
+	public void testUnusedIndexes() throws Exception {
+		IndexAdvisor advisor = advisor();
+		ds.find(Event.class, "type", "click").asList();
+		ds.find(Event.class, "user", "scott").asList();
+
+		Map<String, List<DBObject>> unused = advisor.getUnusedIndexes();
+		String coll = ds.getCollection(Event.class).getName();
+		assertEquals(1, unused.size());
+		assertEquals(1, unused.get(coll).size());
+		assertEquals(new BasicDBObject("source", 1), unused.get(coll).get(0));
+		assertTrue(advisor.getReport().contains("UNUSED"));
+	}
+
+	@Test
+	public void testExplain() throws Exception {
+		ds.ensureIndexes(Event.class);
+		IndexAdvisor advisor = ads.enableIndexAdvisor(true);
+		Event e = new Event();
+		e.user = "scott";
+		e.size = 4;
+		ds.save(e);
+
+		ds.find(Event.class, "size", 4).asList();
+		QueryShape shape = shape(advisor);
+		assertTrue(shape.isExplained());
+		assertEquals(Status.UNINDEXED, shape.getStatus());
+
+		advisor.reset();
+		ds.find(Event.class, "user", "scott").asList();
+		assertEquals(Status.INDEXED, shape(advisor).getStatus());
+	}
+}
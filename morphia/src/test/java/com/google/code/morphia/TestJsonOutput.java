@@ -0,0 +1,108 @@
+package com.google.code.morphia;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import com.google.code.morphia.annotations.Embedded;
+import com.google.code.morphia.annotations.Entity;
+import com.google.code.morphia.annotations.Id;
+import com.google.code.morphia.annotations.PostLoad;
+import com.google.code.morphia.annotations.Property;
+import com.google.code.morphia.query.JsonOptions;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.util.JSON;
+
+public class TestJsonOutput extends TestBase {
+
+	enum Color { RED, BLUE }
+
+	@Embedded
+	private static class Line {
+		@Property("q") int quantity;
+		String sku;
+	}
+
+	@Entity
+	private static class Order {
+		static int loaded = 0;
+		@Id ObjectId id;
+		@Property("n") String name;
+		Date created = new Date(0);
+		Color color = Color.RED;
+		List<Line> lines = new ArrayList<Line>();
+		Map<String, Line> bySku = new HashMap<String, Line>();
+
+		@PostLoad
+		void postLoad() {
+			loaded++;
+		}
+	}
+
+	private void saveOrders(int count) {
+		for (int i = 0; i < count; i++) {
+			Order o = new Order();
+			o.name = "order \"" + i + "\"";
+			Line l = new Line();
+			l.quantity = i;
+			l.sku = "sku" + i;
+			o.lines.add(l);
+			o.bySku.put(l.sku, l);
+			ds.save(o);
+		}
+		Order.loaded = 0;
+	}
+
+	@Test
+	public void testWriteJson() throws Exception {
+		saveOrders(3);
+		StringWriter out = new StringWriter();
+		assertEquals(3, ds.find(Order.class).order("n").writeJson(out, new JsonOptions()));
+		assertEquals(0, Order.loaded);
+
+		BasicDBList orders = (BasicDBList) JSON.parse(out.toString());
+		assertEquals(3, orders.size());
+		BasicDBObject first = (BasicDBObject) orders.get(0);
+		assertEquals("order \"0\"", first.get("name"));
+		assertTrue(first.get("id") instanceof String);
+		assertEquals("1970-01-01T00:00:00.000Z", first.get("created"));
+		assertEquals("RED", first.get("color"));
+		assertFalse(first.containsField("className"));
+		BasicDBObject line = (BasicDBObject) ((BasicDBList) first.get("lines")).get(0);
+		assertEquals(0, line.get("quantity"));
+		assertEquals(0, ((BasicDBObject) ((BasicDBObject) first.get("bySku")).get("sku0")).get("quantity"));
+	}
+
+	@Test
+	public void testOptions() throws Exception {
+		saveOrders(2);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ds.find(Order.class).limit(1).writeJson(out, new JsonOptions().javaNames(false).isoDates(false).className(true).flushEvery(1));
+		BasicDBList orders = (BasicDBList) JSON.parse(out.toString("UTF-8"));
+		assertEquals(1, orders.size());
+		BasicDBObject first = (BasicDBObject) orders.get(0);
+		assertTrue(first.containsField("_id"));
+		assertTrue(first.containsField("n"));
+		assertTrue(first.containsField("className"));
+		assertEquals(0L, ((Number) first.get("created")).longValue());
+	}
+
+	@Test
+	public void testEmpty() throws Exception {
+		StringWriter out = new StringWriter();
+		assertEquals(0, ds.find(Order.class).writeJson(out, null));
+		assertEquals("[]", out.toString());
+	}
+}
@@ -0,0 +1,90 @@
+package com.google.code.morphia;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import com.google.code.morphia.annotations.Entity;
+import com.google.code.morphia.annotations.Id;
+import com.google.code.morphia.query.KeysetPager;
+import com.google.code.morphia.query.Page;
+
+public class TestKeysetPaging extends TestBase {
+
+	@Entity
+	private static class Item {
+		@Id ObjectId id;
+		int rank;
+		String name;
+
+		Item() {
+		}
+
+		Item(int rank, String name) {
+			this.rank = rank;
+			this.name = name;
+		}
+	}
+
+	private void saveItems() {
+		//ranks repeat, so _id breaks the ties
+		for (int i = 0; i < 25; i++)
+			ds.save(new Item(i % 5, "item" + i));
+	}
+
+	@Test
+	public void testPagesCoverAllResults() throws Exception {
+		saveItems();
+
+		List<Item> all = new ArrayList<Item>();
+		int pages = 0;
+		for (Page<Item> page : new KeysetPager<Item>(ds.createQuery(Item.class).order("-rank"), 7)) {
+			assertTrue(page.size() <= 7);
+			all.addAll(page.asList());
+			pages++;
+		}
+		assertEquals(4, pages);
+		assertEquals(25, all.size());
+		for (int i = 1; i < all.size(); i++)
+			assertTrue(all.get(i - 1).rank >= all.get(i).rank);
+		Set<ObjectId> ids = new HashSet<ObjectId>();
+		for (Item item : all)
+			ids.add(item.id);
+		assertEquals(25, ids.size());
+	}
+
+	@Test
+	public void testPageAfterToken() throws Exception {
+		saveItems();
+
+		Page<Item> first = ds.createQuery(Item.class).filter("rank >", 0).order("rank").fetchPage(10);
+		assertEquals(10, first.size());
+		assertTrue(first.hasNext());
+		assertNotNull(first.getNextToken());
+		assertEquals(20, first.countAll());
+
+		Page<Item> second = ds.createQuery(Item.class).filter("rank >", 0).order("rank").pageAfter(first.getNextToken()).fetchPage(10);
+		assertEquals(10, second.size());
+		assertFalse(second.hasNext());
+		assertNull(second.getNextToken());
+		assertNull(second.nextPage());
+		assertEquals(3, second.get().rank);
+
+		//after the last entity of a page
+		Item last = first.asList().get(9);
+		Page<Item> again = ds.createQuery(Item.class).filter("rank >", 0).order("rank").pageAfter(last).fetchPage(10);
+		assertEquals(10, again.size());
+		for (int i = 0; i < 10; i++)
+			assertEquals(second.asList().get(i).id, again.asList().get(i).id);
+	}
+}
@@ -0,0 +1,122 @@
+package com.google.code.morphia;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import com.google.code.morphia.annotations.Entity;
+import com.google.code.morphia.annotations.Id;
+import com.google.code.morphia.query.QueryException;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+public class TestParallelScan extends TestBase {
+
+	@Entity
+	private static class Doc {
+		@Id ObjectId id;
+		int n;
+	}
+
+	@Entity
+	private static class NumberedDoc {
+		@Id long id;
+		int n;
+	}
+
+	@Entity
+	private static class NamedDoc {
+		@Id String id;
+		int n;
+	}
+
+	@Test
+	public void testScanSeesEveryEntityOnce() throws Exception {
+		for (int i = 0; i < 500; i++) {
+			Doc d = new Doc();
+			//spread the ids over time
+			d.id = new ObjectId(new java.util.Date(System.currentTimeMillis() - (500 - i) * 60000L));
+			d.n = i;
+			ds.save(d);
+		}
+
+		final Set<Integer> seen = Collections.synchronizedSet(new HashSet<Integer>());
+		long count = ds.parallelScan(ds.createQuery(Doc.class).filter("n >=", 100), 4, new EntityHandler<Doc>() {
+			public void handle(Doc d) {
+				assertTrue(seen.add(d.n));
+			}
+		});
+		assertEquals(400, count);
+		assertEquals(400, seen.size());
+	}
+
+	@Test
+	public void testResumeFromCheckpoint() throws Exception {
+		for (int i = 0; i < 100; i++) {
+			NumberedDoc d = new NumberedDoc();
+			d.id = i;
+			d.n = i;
+			ds.save(d);
+		}
+
+		ParallelScan<NumberedDoc> scan = ads.createParallelScan(ds.createQuery(NumberedDoc.class), 3);
+		assertEquals(3, scan.getPartitions().size());
+		final Set<Long> seen = Collections.synchronizedSet(new HashSet<Long>());
+		try {
+			scan.run(new EntityHandler<NumberedDoc>() {
+				public void handle(NumberedDoc d) {
+					if (d.id == 50)
+						throw new IllegalStateException("fail half way");
+					seen.add(d.id);
+				}
+			});
+			fail("the handler failed");
+		} catch (QueryException e) {
+			assertFalse(scan.isDone());
+		}
+
+		DBObject checkpoint = scan.getCheckpoint();
+		ParallelScan<NumberedDoc> resumed = new ParallelScan<NumberedDoc>(ds, ds.createQuery(NumberedDoc.class), checkpoint);
+		resumed.run(new EntityHandler<NumberedDoc>() {
+			public void handle(NumberedDoc d) {
+				assertTrue(d.id == 50 || !seen.contains(d.id));
+				seen.add(d.id);
+			}
+		});
+		assertTrue(resumed.isDone());
+		assertEquals(100, seen.size());
+	}
+
+	@Test
+	public void testSplitStringIds() throws Exception {
+		for (int i = 0; i < 300; i++) {
+			NamedDoc d = new NamedDoc();
+			d.id = "doc" + i;
+			d.n = i;
+			ds.save(d);
+		}
+
+		final Set<Integer> seen = Collections.synchronizedSet(new HashSet<Integer>());
+		ParallelScan<NamedDoc> scan = ads.createParallelScan(ds.createQuery(NamedDoc.class).filter("n <", 200), 4);
+		assertTrue(scan.getPartitions().size() > 1);
+		assertEquals(200, scan.run(new EntityHandler<NamedDoc>() {
+			public void handle(NamedDoc d) {
+				assertTrue(seen.add(d.n));
+			}
+		}));
+		assertEquals(200, seen.size());
+	}
+
+	@Test(expected = QueryException.class)
+	public void testResumeChecksTheQuery() throws Exception {
+		new ParallelScan<Doc>(ds, ds.createQuery(Doc.class).limit(10), new BasicDBObject("partitions", new java.util.ArrayList<Object>()));
+	}
+}
@@ -19,6 +19,8 @@ package com.google.code.morphia;
 import com.google.code.morphia.annotations.Entity;
 import com.google.code.morphia.annotations.Id;
 import com.google.code.morphia.query.MorphiaIterator;
+import com.google.code.morphia.query.UpdateOpsImpl;
+import com.google.code.morphia.query.UpdateTemplate;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
@@ -34,7 +36,9 @@ import org.junit.Test;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  *
@@ -252,6 +256,49 @@ public class TestPerf  extends TestBase{
     	}
     }
 
+	@Test
+	public void testUpdateTemplatePerf() throws Exception {
+		int count = 100000;
+		UpdateTemplate<Address> template = new UpdateTemplate<Address>(ds.createUpdateOperations(Address.class)
+				.set("street", UpdateTemplate.param("street")).set("added", UpdateTemplate.param("added")).inc("zip", UpdateTemplate.param("zip")));
+		Map<String, Object> values = new HashMap<String, Object>();
+
+		//warm up both
+		buildUpdates(template, values, count / 10, true);
+		buildUpdates(template, values, count / 10, false);
+
+		long startTicks = new Date().getTime();
+		buildUpdates(template, values, count, false);
+		long rebuildTime = new Date().getTime() - startTicks;
+
+		startTicks = new Date().getTime();
+		buildUpdates(template, values, count, true);
+		long templateTime = new Date().getTime() - startTicks;
+
+		String msg = String.format("UpdateTemplate (%s) is slower than rebuilding the UpdateOperations: %sX (%s/%s)",
+				count,
+				DF.format((double)templateTime/Math.max(1, rebuildTime)),
+				templateTime,
+				rebuildTime);
+		System.out.println(msg);
+		Assert.assertTrue(msg, templateTime <= rebuildTime);
+	}
+
+	private void buildUpdates(UpdateTemplate<Address> template, Map<String, Object> values, int count, boolean useTemplate) {
+		Date added = new Date();
+		for (int i = 0; i < count; i++) {
+			if (useTemplate) {
+				values.put("street", "Maple " + i);
+				values.put("added", added);
+				values.put("zip", i);
+				template.toDBObject(values);
+			} else {
+				((UpdateOpsImpl) ds.createUpdateOperations(Address.class)
+						.set("street", "Maple " + i).set("added", added).inc("zip", i)).getOps();
+			}
+		}
+	}
+
 	@Entity(value="imageMeta", noClassnameStored=true)
 	public static class TestObj {
 		@Id public ObjectId id = new ObjectId();
@@ -0,0 +1,76 @@
+package com.google.code.morphia;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import com.google.code.morphia.annotations.Entity;
+import com.google.code.morphia.annotations.Id;
+import com.google.code.morphia.query.UpdateException;
+
+public class TestPipelinedWriter extends TestBase {
+
+	@Entity
+	private static class Event {
+		@Id ObjectId id = new ObjectId();
+		int seq;
+	}
+
+	@Test
+	public void testWritesAreCheckpointed() throws Exception {
+		PipelinedWriter writer = ads.createPipelinedWriter(1000, 60000);
+		try {
+			for (int i = 0; i < 2500; i++) {
+				Event e = new Event();
+				e.seq = i;
+				if (i % 2 == 0)
+					writer.insert(e);
+				else
+					writer.save(e);
+			}
+		} finally {
+			writer.close();
+		}
+		assertEquals(2500, writer.getOpCount());
+		assertTrue(writer.getFailedWindows().isEmpty());
+		assertEquals(2500, ds.getCount(Event.class));
+	}
+
+	@Test
+	public void testFailureIsAttributedToWindow() throws Exception {
+		Event existing = new Event();
+		ds.save(existing);
+
+		PipelinedWriter writer = ads.createPipelinedWriter(1000, 60000);
+		try {
+			for (int i = 0; i < 3; i++)
+				writer.insert(new Event());
+			Event dup = new Event();
+			dup.id = existing.id;
+			writer.insert(dup);
+			try {
+				writer.checkpoint();
+				fail("the duplicate insert should have been reported");
+			} catch (UpdateException e) {
+				//expected
+			}
+
+			assertEquals(1, writer.getFailedWindows().size());
+			PipelinedWriter.Window w = writer.getFailedWindows().get(0);
+			assertEquals(0, w.getFirstOp());
+			assertEquals(4, w.getKeys().size());
+			assertNotNull(w.getError());
+
+			//the next window is fine
+			writer.insert(new Event());
+			writer.checkpoint();
+		} finally {
+			writer.close();
+		}
+		assertEquals(5, ds.getCount(Event.class));
+	}
+}
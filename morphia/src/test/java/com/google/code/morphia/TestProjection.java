@@ -0,0 +1,142 @@
+package com.google.code.morphia;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import com.google.code.morphia.annotations.Embedded;
+import com.google.code.morphia.annotations.Entity;
+import com.google.code.morphia.annotations.Id;
+import com.google.code.morphia.annotations.Index;
+import com.google.code.morphia.annotations.Indexes;
+import com.google.code.morphia.annotations.PostLoad;
+import com.google.code.morphia.annotations.Property;
+import com.google.code.morphia.mapping.MappingException;
+import com.google.code.morphia.query.QueryException;
+
+public class TestProjection extends TestBase {
+
+	enum Status { OPEN, CLOSED }
+
+	@Embedded
+	private static class Address {
+		String city;
+	}
+
+	@Entity
+	@Indexes(@Index("status, name"))
+	private static class Account {
+		static int loaded = 0;
+		@Id ObjectId id;
+		String name;
+		@Property("st") Status status;
+		int balance;
+		Address address;
+		String notes = "lots of text";
+
+		@PostLoad
+		void postLoad() {
+			loaded++;
+		}
+	}
+
+	private static class AccountRow {
+		String name;
+		Status status;
+		long balance;
+	}
+
+	private static class AccountCity {
+		ObjectId id;
+		Address address;
+	}
+
+	private interface AccountName {
+		String getName();
+		Status getStatus();
+	}
+
+	private static class Unknown {
+		String missing;
+	}
+
+	private void saveAccounts() {
+		for (int i = 0; i < 10; i++) {
+			Account a = new Account();
+			a.name = "a" + i;
+			a.status = i % 2 == 0 ? Status.OPEN : Status.CLOSED;
+			a.balance = i * 100;
+			a.address = new Address();
+			a.address.city = "c" + i;
+			ds.save(a);
+		}
+		Account.loaded = 0;
+	}
+
+	@Test
+	public void testProjectIntoClass() throws Exception {
+		saveAccounts();
+		List<AccountRow> rows = ds.find(Account.class).filter("status", Status.OPEN).order("name").project(AccountRow.class).asList();
+		assertEquals(5, rows.size());
+		assertEquals("a0", rows.get(0).name);
+		assertEquals(Status.OPEN, rows.get(0).status);
+		assertEquals(200, rows.get(1).balance);
+		assertEquals(0, Account.loaded);
+
+		AccountCity city = ds.find(Account.class, "name", "a3").project(AccountCity.class).get();
+		assertNotNull(city.id);
+		assertEquals("c3", city.address.city);
+	}
+
+	@Test
+	public void testProjectIntoInterface() throws Exception {
+		saveAccounts();
+		List<AccountName> names = ds.find(Account.class).order("-name").project(AccountName.class).asList();
+		assertEquals(10, names.size());
+		assertEquals("a9", names.get(0).getName());
+		assertEquals(Status.CLOSED, names.get(0).getStatus());
+	}
+
+	@Test
+	public void testFieldsObject() throws Exception {
+		saveAccounts();
+		assertEquals(0, ds.find(Account.class).project(AccountRow.class).getPlan().getFieldsObject().get("_id"));
+		assertNull(ds.find(Account.class).project(AccountRow.class).getPlan().getFieldsObject().get("className"));
+		assertEquals(1, ds.find(Account.class).project(AccountCity.class).getPlan().getFieldsObject().get("_id"));
+		try {
+			ds.find(Account.class).project(Unknown.class);
+			fail("missing is not a field of Account");
+		} catch (MappingException e) {
+			//expected
+		}
+	}
+
+	@Test
+	public void testCovered() throws Exception {
+		ds.ensureIndexes(Account.class);
+		saveAccounts();
+		List<AccountName> names = ds.find(Account.class).filter("status", Status.CLOSED).order("name").project(AccountName.class).covered().asList();
+		assertEquals(5, names.size());
+		assertEquals("a1", names.get(0).getName());
+		assertEquals(2, ds.find(Account.class).filter("status", Status.CLOSED).project(AccountName.class).covered().getCoveringIndex().keySet().size());
+
+		try {
+			ds.find(Account.class).project(AccountRow.class).covered().asList();
+			fail("balance is not indexed");
+		} catch (QueryException e) {
+			//expected
+		}
+		try {
+			ds.find(Account.class).filter("balance >", 5).project(AccountName.class).covered().asList();
+			fail("balance is not indexed");
+		} catch (QueryException e) {
+			//expected
+		}
+	}
+}
@@ -42,6 +42,8 @@ import com.google.code.morphia.annotations.Entity;
 import com.google.code.morphia.annotations.Id;
 import com.google.code.morphia.annotations.Property;
 import com.google.code.morphia.annotations.Reference;
+import com.google.code.morphia.query.BatchSizeTuner;
+import com.google.code.morphia.query.MorphiaIterator;
 import com.google.code.morphia.query.Query;
 import com.google.code.morphia.query.QueryImpl;
 import com.google.code.morphia.query.ValidationException;
@@ -605,6 +607,63 @@ public class TestQuery  extends TestBase {
         assertNull(ds.find(Hotel.class,"_id", -1).get());
     }
 
+    @Test
+    public void testExistsAndCountUpTo() throws Exception {
+        assertTrue(!ds.createQuery(Rectangle.class).exists());
+        assertEquals(0, ds.createQuery(Rectangle.class).countUpTo(10));
+
+        for (int i = 1; i <= 5; i++)
+            ds.save(new Rectangle(i, 10));
+
+        assertTrue(ds.createQuery(Rectangle.class).exists());
+        assertTrue(ds.createQuery(Rectangle.class).filter("width >", 4).exists());
+        assertTrue(!ds.createQuery(Rectangle.class).filter("width >", 5).exists());
+        assertEquals(3, ds.createQuery(Rectangle.class).countUpTo(3));
+        assertEquals(5, ds.createQuery(Rectangle.class).countUpTo(100));
+        assertEquals(2, ds.createQuery(Rectangle.class).filter("width <", 3).countUpTo(100));
+        assertEquals(0, ds.createQuery(Rectangle.class).countUpTo(0));
+    }
+
+    @Test
+    public void testEstimatedCount() throws Exception {
+        for (int i = 1; i <= 5; i++)
+            ds.save(new Rectangle(i, 10));
+        assertEquals(5, ds.estimatedCount(Rectangle.class));
+
+        //cached for the ttl
+        ds.save(new Rectangle(6, 10));
+        assertEquals(5, ds.estimatedCount(Rectangle.class));
+
+        ((DatastoreImpl) ds).setEstimatedCountTtl(0);
+        assertEquals(6, ds.estimatedCount(Rectangle.class));
+    }
+
+    @Test
+    public void testAdaptiveBatchSize() throws Exception {
+        for (int i = 0; i < 200; i++)
+            ds.save(new Rectangle(i, 10));
+
+        //~50 byte documents, 2KB per batch
+        MorphiaIterator<Rectangle, Rectangle> it = (MorphiaIterator<Rectangle, Rectangle>) ds.createQuery(Rectangle.class).adaptiveBatchSize(2000, 0).fetch();
+        int count = 0;
+        for (Rectangle r : it)
+            count++;
+        assertEquals(200, count);
+        BatchSizeTuner tuner = it.getBatchSizeTuner();
+        assertTrue(tuner.getAdjustments() > 0);
+        assertTrue(tuner.getAverageDocumentBytes() > 0);
+        assertTrue(tuner.getBatchSize() > 10 && tuner.getBatchSize() < 100);
+
+        //a slow consumer, 20ms per batch
+        it = (MorphiaIterator<Rectangle, Rectangle>) ds.createQuery(Rectangle.class).limit(50).adaptiveBatchSize(0, 20).fetch();
+        for (Rectangle r : it)
+            Thread.sleep(2);
+        assertTrue(it.getBatchSizeTuner().getBatchSize() <= 12);
+        assertEquals(it.getBatchSizeTuner().getBatchSizes().get(it.getBatchSizeTuner().getAdjustments() - 1).intValue(), it.getBatchSizeTuner().getBatchSize());
+
+        assertNull(((MorphiaIterator<Rectangle, Rectangle>) ds.createQuery(Rectangle.class).fetch()).getBatchSizeTuner());
+    }
+
     @Test
     public void testSimpleSort() throws Exception {
         Rectangle[] rects = {
@@ -0,0 +1,139 @@
+package com.google.code.morphia;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Iterator;
+
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import com.google.code.morphia.annotations.Entity;
+import com.google.code.morphia.annotations.Id;
+import com.google.code.morphia.annotations.Indexed;
+import com.google.code.morphia.query.Query;
+import com.google.code.morphia.query.QueryLimitException;
+import com.google.code.morphia.query.QueryLimitException.Reason;
+import com.google.code.morphia.query.QueryLimits;
+
+public class TestQueryLimits extends TestBase {
+
+	@Entity
+	private static class Item {
+		@Id ObjectId id;
+		@Indexed int n;
+		int m;
+		String text = "some text to make the documents bigger";
+	}
+
+	private void saveItems(int count) {
+		for (int i = 0; i < count; i++) {
+			Item item = new Item();
+			item.n = i;
+			item.m = i;
+			ds.save(item);
+		}
+	}
+
+	private void assertFails(Query<Item> q, Reason reason) {
+		try {
+			q.asList();
+			fail("should have broken a limit: " + reason);
+		} catch (QueryLimitException e) {
+			assertEquals(reason, e.getReason());
+			assertNotNull(e.getShape());
+		}
+	}
+
+	@Test
+	public void testMaxDocuments() throws Exception {
+		saveItems(20);
+		assertFails(ds.createQuery(Item.class).limits(new QueryLimits().maxDocuments(10)), Reason.MAX_DOCUMENTS);
+		assertEquals(10, ds.createQuery(Item.class).limit(10).limits(new QueryLimits().maxDocuments(10)).asList().size());
+
+		//from the datastore, overridden by the query
+		ads.setQueryLimits(new QueryLimits().maxDocuments(5));
+		assertFails(ds.createQuery(Item.class), Reason.MAX_DOCUMENTS);
+		assertEquals(20, ds.createQuery(Item.class).limits(new QueryLimits().maxDocuments(50)).asList().size());
+		assertEquals(5, ds.createQuery(Item.class).limits(new QueryLimits().maxTime(60000)).limit(5).asList().size());
+	}
+
+	@Test
+	public void testMaxBytes() throws Exception {
+		saveItems(20);
+		assertFails(ds.createQuery(Item.class).limits(new QueryLimits().maxBytes(500)), Reason.MAX_BYTES);
+		assertEquals(20, ds.createQuery(Item.class).limits(new QueryLimits().maxBytes(100000)).asList().size());
+	}
+
+	@Test
+	public void testDeadline() throws Exception {
+		saveItems(20);
+		Iterator<Item> it = ds.createQuery(Item.class).batchSize(2).limits(new QueryLimits().maxTime(50)).fetch().iterator();
+		try {
+			it.next();
+			Thread.sleep(100);
+			while (it.hasNext())
+				it.next();
+			fail("should have passed the deadline");
+		} catch (QueryLimitException e) {
+			assertEquals(Reason.DEADLINE, e.getReason());
+		}
+	}
+
+	@Test
+	public void testCancel() throws Exception {
+		saveItems(20);
+		final Query<Item> q = ds.createQuery(Item.class).batchSize(2);
+		Iterator<Item> it = q.fetch().iterator();
+		it.next();
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				q.cancel();
+			}
+		};
+		t.start();
+		t.join();
+		try {
+			while (it.hasNext())
+				it.next();
+			fail("should have been cancelled");
+		} catch (QueryLimitException e) {
+			assertEquals(Reason.CANCELLED, e.getReason());
+		}
+		//a new iteration is not cancelled
+		assertEquals(20, q.asList().size());
+	}
+
+	@Test
+	public void testRejectUnindexed() throws Exception {
+		ds.ensureIndexes(Item.class);
+		saveItems(5);
+		ads.setQueryLimits(new QueryLimits().rejectUnindexed(true));
+		assertEquals(1, ds.createQuery(Item.class).filter("n", 3).asList().size());
+		assertEquals(5, ds.createQuery(Item.class).asList().size());
+		assertFails(ds.createQuery(Item.class).filter("m", 3), Reason.UNINDEXED);
+		try {
+			ds.createQuery(Item.class).filter("m >", 3).countAll();
+			fail("should have been rejected");
+		} catch (QueryLimitException e) {
+			assertEquals(Reason.UNINDEXED, e.getReason());
+			assertTrue(e.getShape().getRanges().contains("m"));
+		}
+		try {
+			ds.createQuery(Item.class).filter("m", 3).exists();
+			fail("should have been rejected");
+		} catch (QueryLimitException e) {
+			assertEquals(Reason.UNINDEXED, e.getReason());
+		}
+		try {
+			ds.createQuery(Item.class).filter("m", 3).countUpTo(10);
+			fail("should have been rejected");
+		} catch (QueryLimitException e) {
+			assertEquals(Reason.UNINDEXED, e.getReason());
+		}
+		assertTrue(ds.createQuery(Item.class).filter("n", 3).exists());
+	}
+}
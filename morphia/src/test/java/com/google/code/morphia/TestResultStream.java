@@ -0,0 +1,85 @@
+package com.google.code.morphia;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import com.google.code.morphia.annotations.Entity;
+import com.google.code.morphia.annotations.Id;
+import com.google.code.morphia.query.ResultStream;
+
+public class TestResultStream extends TestBase {
+
+	@Entity
+	private static class Event {
+		@Id ObjectId id;
+		int n;
+	}
+
+	private void saveEvents(int count) {
+		for (int i = 0; i < count; i++) {
+			Event e = new Event();
+			e.n = i;
+			ds.save(e);
+		}
+	}
+
+	@Test
+	public void testBatches() throws Exception {
+		saveEvents(25);
+		ResultStream<Event> stream = ds.find(Event.class).order("n").batchSize(10).stream();
+		assertEquals(10, stream.nextBatch().size());
+		assertEquals(10, stream.nextBatch().size());
+		List<Event> last = stream.nextBatch();
+		assertEquals(5, last.size());
+		assertEquals(24, last.get(4).n);
+		assertTrue(stream.nextBatch().isEmpty());
+	}
+
+	@Test
+	public void testIterate() throws Exception {
+		saveEvents(25);
+		int expected = 0;
+		for (Event e : ds.find(Event.class).order("n").batchSize(7).stream())
+			assertEquals(expected++, e.n);
+		assertEquals(25, expected);
+	}
+
+	@Test
+	public void testParallel() throws Exception {
+		saveEvents(100);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			ResultStream<Event> stream = ds.find(Event.class).order("n").batchSize(8).stream().parallel(executor, 3);
+			int expected = 0;
+			for (Event e : stream)
+				assertEquals(expected++, e.n);
+			assertEquals(100, expected);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testClose() throws Exception {
+		saveEvents(25);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			ResultStream<Event> stream = ds.find(Event.class).batchSize(5).stream().parallel(executor);
+			assertTrue(stream.hasNext());
+			stream.next();
+			stream.close();
+			assertFalse(stream.hasNext());
+			assertTrue(stream.nextBatch().isEmpty());
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package com.google.code.morphia;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import com.google.code.morphia.annotations.Entity;
+import com.google.code.morphia.annotations.Id;
+import com.google.code.morphia.annotations.Reference;
+
+public class TestSession extends TestBase {
+
+	@Entity
+	private static class Author {
+		@Id ObjectId id;
+		String name;
+	}
+
+	@Entity
+	private static class Book {
+		@Id ObjectId id;
+		String title;
+		@Reference Author author;
+		@Reference List<Book> related = new ArrayList<Book>();
+	}
+
+	@Test
+	public void testIdentityMap() throws Exception {
+		Author a = new Author();
+		a.name = "tolkien";
+		ds.save(a);
+
+		Session s = ds.createSession();
+		Author first = s.createQuery(Author.class).get();
+		Author second = s.createQuery(Author.class).filter("name", "tolkien").get();
+		assertSame(first, second);
+		assertSame(first, s.get(Author.class, a.id));
+		//clones (used by pages, projections...) share the identity map too
+		assertSame(first, s.createQuery(Author.class).clone().get());
+
+		s.clear();
+		Author third = s.get(Author.class, a.id);
+		assertNotNull(third);
+		assertEquals(a.name, third.name);
+	}
+
+	@Test
+	public void testFlushOrdersReferences() throws Exception {
+		Session s = ds.createSession();
+
+		Author a = new Author();
+		a.name = "tolkien";
+		Book sequel = new Book();
+		sequel.title = "the two towers";
+		sequel.author = a;
+		Book book = new Book();
+		book.title = "the fellowship of the ring";
+		book.author = a;
+		book.related.add(sequel);
+
+		//queued before the entities they reference
+		s.save(book);
+		s.save(sequel);
+		s.save(a);
+		assertEquals(3, s.getPendingCount());
+		assertEquals(0, ds.getCount(Book.class));
+
+		s.flush();
+		assertEquals(0, s.getPendingCount());
+		assertEquals(2, ds.getCount(Book.class));
+		assertEquals(1, ds.getCount(Author.class));
+
+		Book loaded = ds.get(Book.class, book.id);
+		assertEquals(a.id, loaded.author.id);
+		assertEquals(sequel.id, loaded.related.get(0).id);
+
+		assertSame(book, s.get(Book.class, book.id));
+	}
+
+	@Test
+	public void testDelete() throws Exception {
+		Author a = new Author();
+		a.name = "tolkien";
+		Author b = new Author();
+		b.name = "lewis";
+		ds.save(a, b);
+
+		Session s = ds.createSession();
+		Author loaded = s.get(Author.class, a.id);
+		s.delete(loaded);
+		assertNull(s.get(Author.class, a.id));
+		assertEquals(2, ds.getCount(Author.class));
+
+		//saving it again cancels the delete
+		Author other = s.get(Author.class, b.id);
+		s.delete(other);
+		s.save(other);
+
+		s.flush();
+		assertEquals(1, ds.getCount(Author.class));
+		assertNotNull(ds.get(Author.class, b.id));
+	}
+}
@@ -20,9 +20,12 @@ import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static com.google.code.morphia.query.UpdateTemplate.param;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.bson.types.ObjectId;
 import org.junit.Assert;
@@ -35,11 +38,14 @@ import com.google.code.morphia.TestQuery.Pic;
 import com.google.code.morphia.annotations.Entity;
 import com.google.code.morphia.annotations.Id;
 import com.google.code.morphia.query.Query;
+import com.google.code.morphia.query.QueryException;
+import com.google.code.morphia.query.UpdateTemplate;
 import com.google.code.morphia.query.UpdateResults;
 import com.google.code.morphia.query.ValidationException;
 import com.google.code.morphia.testmodel.Circle;
 import com.google.code.morphia.testmodel.Rectangle;
 import com.google.code.morphia.testutil.StandardTests;
+import com.mongodb.DBObject;
 import com.mongodb.WriteConcern;
 
 /**
@@ -400,5 +406,34 @@ public class TestUpdateOps  extends TestBase {
 		assertEquals(cpk3.pic, picKey);
 	
 	}
+
+	@Test
+    public void testUpdateTemplate() throws Exception {
+		ds.save(new Rectangle(1, 10));
+		ds.save(new Rectangle(2, 10));
+		
+		UpdateTemplate<Rectangle> grow = new UpdateTemplate<Rectangle>(
+				ds.createUpdateOperations(Rectangle.class).set("height", param("height")).inc("width", param("by")));
+		
+		assertEquals(1, ds.update(ds.find(Rectangle.class, "height", 1D), grow.bind("height", 5D, "by", 2)).getUpdatedCount());
+		assertEquals(1, ds.update(ds.find(Rectangle.class, "height", 2D), grow.bind("height", 6D, "by", 3)).getUpdatedCount());
+		
+		assertEquals(12D, ds.find(Rectangle.class, "height", 5D).get().getWidth(), 0);
+		assertEquals(13D, ds.find(Rectangle.class, "height", 6D).get().getWidth(), 0);
+		
+		//field names are translated once
+		Map<String, Object> values = new HashMap<String, Object>();
+		values.put("height", 7D);
+		values.put("by", 1);
+		DBObject u = grow.toDBObject(values);
+		assertEquals(7D, ((DBObject) u.get("$set")).get("h"));
+		assertEquals(1, ((DBObject) u.get("$inc")).get("w"));
+	}
 	
+	@Test(expected = QueryException.class)
+    public void testUpdateTemplateUnboundParam() throws Exception {
+		UpdateTemplate<Rectangle> t = new UpdateTemplate<Rectangle>(
+				ds.createUpdateOperations(Rectangle.class).set("height", param("height")));
+		t.bind("width", 1D);
+	}
 }
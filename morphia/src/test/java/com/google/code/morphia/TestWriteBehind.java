@@ -0,0 +1,165 @@
+package com.google.code.morphia;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.code.morphia.annotations.Entity;
+import com.google.code.morphia.annotations.Id;
+import com.google.code.morphia.query.UpdateException;
+
+public class TestWriteBehind extends TestBase {
+
+	@Entity
+	private static class Presence {
+		@Id ObjectId id = new ObjectId();
+		String status;
+		long lastSeen;
+	}
+
+	@Entity
+	private static class Visit {
+		@Id ObjectId id;
+		String page;
+	}
+
+	@After
+	@Override
+	public void tearDown() {
+		ads.disableWriteBehind();
+		super.tearDown();
+	}
+
+	@Test
+	public void testRepeatedSavesAreCoalesced() throws Exception {
+		WriteBehindBuffer buffer = ads.enableWriteBehind(60000, 100, 1000, Presence.class);
+
+		Presence p = new Presence();
+		for (int i = 1; i <= 10; i++) {
+			p.lastSeen = i;
+			ds.save(p);
+		}
+		assertEquals(1, buffer.getPendingCount());
+		assertEquals(9, buffer.getCoalescedCount());
+		assertEquals(0, ds.getCount(Presence.class));
+
+		buffer.flush();
+		assertEquals(0, buffer.getPendingCount());
+		assertEquals(1, buffer.getWrittenCount());
+		assertEquals(10L, ds.get(Presence.class, p.id).lastSeen);
+	}
+
+	@Test
+	public void testDeleteDropsBufferedState() throws Exception {
+		WriteBehindBuffer buffer = ads.enableWriteBehind(60000, 100, 1000);
+
+		Presence p = new Presence();
+		ds.save(p);
+		ds.delete(p);
+		assertEquals(0, buffer.getPendingCount());
+
+		buffer.flush();
+		assertNull(ds.get(Presence.class, p.id));
+	}
+
+	@Test
+	public void testUpdateFlushesFirst() throws Exception {
+		ads.enableWriteBehind(60000, 100, 1000, Presence.class);
+
+		Presence p = new Presence();
+		p.status = "online";
+		ds.save(p);
+		ds.update(ds.createQuery(Presence.class), ds.createUpdateOperations(Presence.class).set("status", "away"));
+
+		assertEquals("away", ds.get(Presence.class, p.id).status);
+	}
+
+	@Test
+	public void testBackgroundFlushAndShutdown() throws Exception {
+		WriteBehindBuffer buffer = ads.enableWriteBehind(10, 2, 4, Presence.class);
+
+		for (int i = 0; i < 20; i++)
+			ds.save(new Presence());
+		ads.disableWriteBehind();
+
+		assertEquals(0, buffer.getPendingCount());
+		assertEquals(20, ds.getCount(Presence.class));
+	}
+
+	@Test
+	public void testBufferedStateIsMappedWhenSaved() throws Exception {
+		WriteBehindBuffer buffer = ads.enableWriteBehind(60000, 100, 1000, Presence.class);
+
+		Presence p = new Presence();
+		p.status = "online";
+		ds.save(p);
+		//changed after the save; not written until saved again
+		p.status = "away";
+		buffer.flush();
+		assertEquals("online", ds.get(Presence.class, p.id).status);
+	}
+
+	@Test
+	public void testNewEntitiesAreInsertedTogether() throws Exception {
+		WriteBehindBuffer buffer = ads.enableWriteBehind(60000, 100, 1000, Visit.class);
+
+		List<Visit> visits = new ArrayList<Visit>();
+		for (int i = 0; i < 5; i++) {
+			Visit v = new Visit();
+			v.page = "p" + i;
+			ds.save(v);
+			assertNotNull(v.id);
+			visits.add(v);
+		}
+		assertEquals(5, buffer.getPendingCount());
+		assertEquals(0, ds.getCount(Visit.class));
+
+		//a save after the first, before the flush, is still part of the insert
+		visits.get(0).page = "home";
+		ds.save(visits.get(0));
+		buffer.flush();
+		assertEquals(5, buffer.getWrittenCount());
+		assertEquals(5, ds.getCount(Visit.class));
+		assertEquals("home", ds.get(Visit.class, visits.get(0).id).page);
+	}
+
+	@Test
+	public void testBulkWritesAreNotBuffered() throws Exception {
+		WriteBehindBuffer buffer = ads.enableWriteBehind(60000, 100, 1000, Presence.class);
+
+		BulkWriteResult<Presence> res = ds.createBulkWrite(Presence.class).save(new Presence()).save(new Presence()).execute();
+		assertEquals(2, res.getSavedCount());
+		assertEquals(0, buffer.getPendingCount());
+		assertEquals(2, ds.getCount(Presence.class));
+	}
+
+	@Test
+	public void testFailingMergeIsDropped() throws Exception {
+		WriteBehindBuffer buffer = ads.enableWriteBehind(60000, 100, 1000, Presence.class);
+
+		//never stored, so the merge can not update anything
+		Presence p = new Presence();
+		p.status = "online";
+		ds.merge(p);
+		for (int i = 0; i < WriteBehindBuffer.MAX_ATTEMPTS; i++) {
+			assertEquals(1, buffer.getPendingCount());
+			try {
+				buffer.flush();
+				fail("merge of a missing entity should fail");
+			} catch (UpdateException e) {
+				//expected
+			}
+		}
+		assertEquals(0, buffer.getPendingCount());
+		assertEquals(1, buffer.getDroppedCount());
+		assertNull(ds.get(Presence.class, p.id));
+	}
+}
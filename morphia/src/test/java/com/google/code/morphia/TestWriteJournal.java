@@ -0,0 +1,153 @@
+package com.google.code.morphia;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.code.morphia.annotations.Entity;
+import com.google.code.morphia.annotations.Id;
+import com.google.code.morphia.testmodel.Rectangle;
+import com.mongodb.BasicDBObject;
+
+public class TestWriteJournal extends TestBase {
+
+	@Entity
+	private static class Order {
+		@Id ObjectId id;
+		int n;
+		String status = "new";
+	}
+
+	private File file;
+
+	@Before
+	@Override
+	public void setUp() {
+		super.setUp();
+		try {
+			file = File.createTempFile("morphia-journal", ".dat");
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@After
+	@Override
+	public void tearDown() {
+		ads.disableJournal();
+		file.delete();
+		super.tearDown();
+	}
+
+	@Test
+	public void testWritesAreReplayed() throws Exception {
+		WriteJournal journal = ads.enableJournal(file, WriteJournal.DEFAULT_SIZE, WriteJournal.Sync.INTERVAL, Order.class);
+		for (int i = 0; i < 100; i++) {
+			Order o = new Order();
+			o.n = i;
+			ds.save(o);
+			assertNotNull(o.id);
+		}
+		journal.remove(ds.getCollection(Order.class).getName(), new BasicDBObject("n", 99));
+		journal.drain();
+
+		assertEquals(0, journal.getPendingCount());
+		assertEquals(0, journal.getPendingBytes());
+		assertEquals(101, journal.getAppended());
+		assertEquals(101, journal.getReplayed());
+		assertEquals(0, journal.getFailed());
+		assertEquals(99, ds.getCount(Order.class));
+	}
+
+	@Test
+	public void testUpdatesAreJournaled() throws Exception {
+		WriteJournal journal = ads.enableJournal(file, WriteJournal.DEFAULT_SIZE, WriteJournal.Sync.NEVER, Order.class);
+		for (int i = 0; i < 10; i++) {
+			Order o = new Order();
+			o.n = i;
+			ds.save(o);
+		}
+		journal.update(ds.createQuery(Order.class), ds.createUpdateOperations(Order.class).set("status", "paid"), false, true);
+		journal.delete(ds.createQuery(Order.class).filter("n", 0));
+		assertEquals(12, journal.getAppended());
+		journal.drain();
+
+		assertEquals(9, ds.getCount(ds.createQuery(Order.class).filter("status", "paid")));
+		assertEquals(0, journal.getFailed());
+	}
+
+	@Test
+	public void testDatastoreUpdatesWaitForTheJournal() throws Exception {
+		WriteJournal journal = ads.enableJournal(file, WriteJournal.DEFAULT_SIZE, WriteJournal.Sync.NEVER, Order.class);
+		for (int i = 0; i < 10; i++) {
+			Order o = new Order();
+			o.n = i;
+			ds.save(o);
+		}
+		assertEquals(10, ds.update(ds.createQuery(Order.class), ds.createUpdateOperations(Order.class).set("status", "paid")).getUpdatedCount());
+		assertEquals(1, ds.delete(ds.createQuery(Order.class).filter("n", 0)).getN());
+		assertEquals(10, journal.getAppended());
+		assertEquals(0, journal.getPendingCount());
+	}
+
+	@Test
+	public void testOnlyTheGivenClassesAreJournaled() throws Exception {
+		WriteJournal journal = ads.enableJournal(file, WriteJournal.DEFAULT_SIZE, WriteJournal.Sync.NEVER, Order.class);
+		ds.save(new Rectangle(1, 2));
+		assertEquals(0, journal.getAppended());
+		assertEquals(1, ds.getCount(Rectangle.class));
+	}
+
+	@Test
+	public void testConflictingInsertFails() throws Exception {
+		Order stored = new Order();
+		stored.n = 1;
+		ds.save(stored);
+
+		WriteJournal journal = ads.enableJournal(file, WriteJournal.DEFAULT_SIZE, WriteJournal.Sync.NEVER, Order.class);
+		//the same document again: already applied
+		ads.insert(stored);
+		journal.drain();
+		assertEquals(0, journal.getFailed());
+
+		Order other = new Order();
+		other.id = stored.id;
+		other.n = 2;
+		ads.insert(other);
+		journal.drain();
+		assertEquals(1, journal.getFailed());
+		assertEquals(1, ds.get(Order.class, stored.id).n);
+	}
+
+	@Test
+	public void testFindAndModifyWaitsForTheJournal() throws Exception {
+		ads.enableJournal(file, WriteJournal.DEFAULT_SIZE, WriteJournal.Sync.NEVER, Order.class);
+		Order o = new Order();
+		ds.save(o);
+		Order paid = ds.findAndModify(ds.createQuery(Order.class).filter("id", o.id), ds.createUpdateOperations(Order.class).set("status", "paid"));
+		assertEquals("paid", paid.status);
+	}
+
+	@Test
+	public void testSmallJournalIsReused() throws Exception {
+		WriteJournal journal = ads.enableJournal(file, 4 * 1024, WriteJournal.Sync.ALWAYS, Order.class);
+		for (int i = 0; i < 1000; i++) {
+			Order o = new Order();
+			o.n = i;
+			ads.insert(o);
+		}
+		ads.disableJournal();
+
+		assertEquals(4 * 1024, journal.getCapacity());
+		assertTrue(journal.getBatches() > 1);
+		assertEquals(1000, journal.getReplayed());
+		assertEquals(1000, ds.getCount(Order.class));
+	}
+}
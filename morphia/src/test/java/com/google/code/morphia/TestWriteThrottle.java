@@ -0,0 +1,63 @@
+package com.google.code.morphia;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import com.google.code.morphia.annotations.Entity;
+import com.google.code.morphia.annotations.Id;
+
+public class TestWriteThrottle extends TestBase {
+
+	@Entity
+	private static class Backfill {
+		@Id ObjectId id;
+		int n;
+	}
+
+	@Test
+	public void testWritesAreLimited() throws Exception {
+		ads.setWriteThrottle(Backfill.class, new WriteThrottle(50, 1));
+
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < 26; i++) {
+			Backfill b = new Backfill();
+			b.n = i;
+			ds.save(b);
+		}
+		long took = System.currentTimeMillis() - start;
+
+		assertTrue("took " + took + "ms", took >= 450);
+		assertEquals(26, ds.getCount(Backfill.class));
+
+		ads.setWriteThrottle(Backfill.class, null);
+		assertEquals(null, ads.getWriteThrottle(ds.getCollection(Backfill.class).getName()));
+	}
+
+	@Test
+	public void testAdaptiveRate() throws Exception {
+		WriteThrottle throttle = new WriteThrottle(1000).setTargetLatency(5).setMinRate(10);
+
+		//slow writes cut the rate
+		for (int i = 0; i < 5; i++) {
+			Thread.sleep(110);
+			throttle.record(TimeUnit.MILLISECONDS.toNanos(50));
+		}
+		double slowed = throttle.getRate();
+		assertTrue("rate " + slowed, slowed < 500);
+		assertTrue(slowed >= 10);
+
+		//fast writes bring it back up
+		for (int i = 0; i < 20; i++)
+			throttle.record(TimeUnit.MICROSECONDS.toNanos(100));
+		for (int i = 0; i < 3; i++) {
+			Thread.sleep(110);
+			throttle.record(TimeUnit.MICROSECONDS.toNanos(100));
+		}
+		assertTrue(throttle.getRate() > slowed);
+	}
+}
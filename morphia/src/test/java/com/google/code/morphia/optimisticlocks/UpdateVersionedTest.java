@@ -0,0 +1,108 @@
+package com.google.code.morphia.optimisticlocks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import com.google.code.morphia.Key;
+import com.google.code.morphia.Mutation;
+import com.google.code.morphia.RetryPolicy;
+import com.google.code.morphia.TestBase;
+import com.google.code.morphia.VersionConflictStats;
+import com.google.code.morphia.annotations.Entity;
+import com.google.code.morphia.annotations.Id;
+import com.google.code.morphia.annotations.Version;
+
+public class UpdateVersionedTest extends TestBase {
+
+	@Entity
+	static class Account {
+		@Id ObjectId id;
+		@Version Long version;
+		long balance;
+	}
+
+	/** Adds to the balance; the first {@code conflicts} times, another writer changes the account first. */
+	private class Deposit implements Mutation<Account> {
+		int conflicts;
+		int applied;
+
+		Deposit(int conflicts) {
+			this.conflicts = conflicts;
+		}
+
+		public Account apply(Account acc) {
+			if (applied++ < conflicts) {
+				Account other = ds.get(Account.class, acc.id);
+				other.balance += 1000;
+				ds.save(other);
+			}
+			acc.balance += 10;
+			return acc;
+		}
+	}
+
+	@Test
+	public void testRetriesOnConflict() throws Exception {
+		Account acc = new Account();
+		ds.save(acc);
+
+		Deposit deposit = new Deposit(1);
+		Account saved = ds.updateVersioned(ds.getKey(acc), deposit, new RetryPolicy().setBackoff(1, 2, 10));
+		assertEquals(2, deposit.applied);
+		assertEquals(1010L, saved.balance);
+		assertEquals(1010L, ds.get(Account.class, acc.id).balance);
+
+		VersionConflictStats stats = ads.getVersionConflictStats(Account.class);
+		assertEquals(1, stats.getConflicts());
+		assertEquals(1, stats.getRetries());
+		assertEquals(1, stats.getUpdates());
+	}
+
+	@Test
+	public void testGivesUp() throws Exception {
+		Account acc = new Account();
+		ds.save(acc);
+
+		Deposit deposit = new Deposit(Integer.MAX_VALUE);
+		try {
+			ds.updateVersioned(ds.getKey(acc), deposit, new RetryPolicy().setMaxAttempts(3).setBackoff(0, 1, 0));
+			fail("should have thrown a ConcurrentModificationException");
+		} catch (ConcurrentModificationException e) {
+			//expected
+		}
+		assertEquals(3, deposit.applied);
+		assertEquals(1, ads.getVersionConflictStats(Account.class).getExhausted());
+	}
+
+	@Test
+	public void testLocalWritersAreSerialized() throws Exception {
+		Account acc = new Account();
+		ds.save(acc);
+		final Key<Account> key = ds.getKey(acc);
+		final RetryPolicy policy = new RetryPolicy().setLockLocally(true);
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 4; t++)
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 10; i++)
+						ds.updateVersioned(key, new Deposit(0), policy);
+				}
+			});
+		for (Thread t : threads)
+			t.start();
+		for (Thread t : threads)
+			t.join();
+
+		assertEquals(400L, ds.get(Account.class, acc.id).balance);
+		assertEquals(0, ads.getVersionConflictStats(Account.class).getConflicts());
+	}
+}
@@ -5,6 +5,9 @@ package com.google.code.morphia.utils;
 
 import static org.junit.Assert.assertEquals;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.junit.Test;
 
 import com.google.code.morphia.Datastore;
@@ -30,4 +33,32 @@ public class LongIdEntityTest extends TestBase
 		assertEquals(2L, ent.myLongId, 0);
 	}
 
+	@Test
+	public void testBlockAllocation() throws Exception {
+		LongIdEntity.getIdAllocator(ds, MyEntity.class).setBlockSize(10);
+		for (int i = 1; i <= 3; i++) {
+			MyEntity ent = new MyEntity(ds);
+			ds.save(ent);
+			assertEquals(i, ent.myLongId, 0);
+		}
+		//one block reserved
+		assertEquals(10L, ds.get(LongIdEntity.StoredId.class, ds.getCollection(MyEntity.class).getName()).getValue(), 0);
+	}
+
+	@Test
+	public void testAssignIds() throws Exception {
+		List<MyEntity> ents = new ArrayList<MyEntity>();
+		for (int i = 0; i < 5; i++)
+			ents.add(new MyEntity(ds));
+		LongIdEntity.assignIds(ds, ents);
+		for (int i = 0; i < 5; i++)
+			assertEquals(i + 1, ents.get(i).myLongId, 0);
+
+		ds.save(ents);
+		assertEquals(5, ds.getCount(MyEntity.class));
+		MyEntity ent = new MyEntity(ds);
+		ds.save(ent);
+		assertEquals(6L, ent.myLongId, 0);
+	}
+
 }